@@ -0,0 +1,17 @@
+package de.fabmax.pubsub;
+
+/**
+ * Channel provider, which reports whether a published message was accepted. Is implemented by the library's nodes,
+ * {@link de.fabmax.pubsub.ChannelProvider} itself stays unchanged for existing implementations.
+ */
+interface AcknowledgingChannelProvider extends ChannelProvider {
+
+    /**
+     * Publishes the given message like {@link #publish(Message)} and reports whether it was accepted.
+     *
+     * @return true if the message was queued for all receivers, false if it was dropped for at least one receiver
+     *         because of a full send queue or a missing connection
+     */
+    boolean tryPublish(Message message);
+
+}
@@ -6,6 +6,7 @@ import org.pmw.tinylog.Logger;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
@@ -14,7 +15,8 @@ import java.util.Set;
 /**
  * Created by Max on 09.03.2015.
  */
-public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListener, NodeListener {
+public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListener, NodeListener,
+        SlowConsumerListener {
 
     private final AddressChecker mAddressChecker;
     private final DnsServiceDiscovery mDiscovery;
@@ -27,6 +29,7 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
     private DnsServiceDiscovery.DiscoveredService mRemoteHost;
 
     private final Object mLock = new Object();
+    private final List<SlowConsumerListener> mSlowConsumerListeners = new ArrayList<>();
 
     public AutoNode() {
         this(ServerNode.DEFAULT_PORT);
@@ -53,7 +56,7 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
     public void open() {
         // don't start server yet, wait for discovery result, which is initially fired even if no services are found
         //startServer();
-        mDiscovery.start();
+        mDiscovery.start(mConnectionConfig.getThreadFactory());
     }
 
     @Override
@@ -73,7 +76,9 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
                 try {
                     Logger.info("Switching to server role");
                     mServer = new ServerNode(mServerPort, true, getNodeId());
+                    mServer.setConnectionConfig(mConnectionConfig);
                     mServer.addNodeListener(this);
+                    mServer.addSlowConsumerListener(this);
                     mServer.enableServiceAdvertising(mServiceName, mServiceType);
                     mServer.open();
 
@@ -92,6 +97,7 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
         synchronized (mLock) {
             if (mServer != null) {
                 mServer.removeNodeListener(this);
+                mServer.removeSlowConsumerListener(this);
                 mServer.close();
                 mServer = null;
             }
@@ -108,6 +114,7 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
                 mRemoteHost = service;
                 Logger.info("Switching to client role");
                 mClient = new ClientNode(mRemoteHost.address, mRemoteHost.port, true, getNodeId());
+                mClient.setConnectionConfig(mConnectionConfig);
                 mClient.addNodeListener(this);
                 mClient.open();
 
@@ -139,17 +146,23 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
         stopClient();
         stopServer();
         mDiscovery.close();
+        mDispatcher.close();
     }
 
     @Override
-    public void publish(Message message) {
+    public boolean tryPublish(Message message) {
         synchronized (mLock) {
+            if (mClient == null && mServer == null) {
+                return false;
+            }
+            boolean accepted = true;
             if (mClient != null) {
-                mClient.publish(message);
+                accepted &= mClient.tryPublish(message);
             }
             if (mServer != null) {
-                mServer.publish(message);
+                accepted &= mServer.tryPublish(message);
             }
+            return accepted;
         }
     }
 
@@ -210,6 +223,41 @@ public class AutoNode extends Node implements DnsServiceDiscovery.DiscoveryListe
         fireOnRemoteNoteDisconnected(nodeId);
     }
 
+    /**
+     * Adds a listener, which is notified about slow clients while this node is in server role.
+     *
+     * @see de.fabmax.pubsub.ServerNode#addSlowConsumerListener(SlowConsumerListener)
+     */
+    public void addSlowConsumerListener(SlowConsumerListener listener) {
+        synchronized (mSlowConsumerListeners) {
+            mSlowConsumerListeners.add(listener);
+        }
+    }
+
+    public void removeSlowConsumerListener(SlowConsumerListener listener) {
+        synchronized (mSlowConsumerListeners) {
+            mSlowConsumerListeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void onSlowConsumerDetected(ConsumerStats stats) {
+        synchronized (mSlowConsumerListeners) {
+            for (SlowConsumerListener l : mSlowConsumerListeners) {
+                l.onSlowConsumerDetected(stats);
+            }
+        }
+    }
+
+    @Override
+    public void onSlowConsumerRecovered(ConsumerStats stats) {
+        synchronized (mSlowConsumerListeners) {
+            for (SlowConsumerListener l : mSlowConsumerListeners) {
+                l.onSlowConsumerRecovered(stats);
+            }
+        }
+    }
+
     private static class AddressChecker implements Comparator<InetAddress> {
 
         boolean isHigherPriority(InetAddress addr1, InetAddress addr2) {
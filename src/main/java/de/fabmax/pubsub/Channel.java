@@ -2,8 +2,8 @@ package de.fabmax.pubsub;
 
 import org.pmw.tinylog.Logger;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by Max on 24.02.2015.
@@ -12,36 +12,77 @@ public class Channel {
 
     private final ChannelProvider mProvider;
     private final String mChannelId;
+    private final Dispatcher mDispatcher;
+    private volatile DispatchMode mDispatchMode = DispatchMode.INLINE;
 
-    private final List<MessageListener> mChannelListeners = new ArrayList<>();
+    // listeners are called without holding a lock, so that a slow listener doesn't block adding / removing others
+    private final List<MessageListener> mChannelListeners = new CopyOnWriteArrayList<>();
 
     protected Channel(ChannelProvider provider, String channelId) {
+        this(provider, channelId, null);
+    }
+
+    /**
+     * @param dispatcher dispatcher used for non-inline dispatch modes, null if the channel only supports
+     *                   {@link de.fabmax.pubsub.DispatchMode#INLINE}
+     */
+    Channel(ChannelProvider provider, String channelId, Dispatcher dispatcher) {
         mProvider = provider;
         mChannelId = channelId;
+        mDispatcher = dispatcher;
     }
 
     public String getChannelId() {
         return mChannelId;
     }
 
+    public DispatchMode getDispatchMode() {
+        return mDispatchMode;
+    }
+
+    /**
+     * Sets on which thread the listeners of this channel are called. Default is
+     * {@link de.fabmax.pubsub.DispatchMode#INLINE}. The number of worker threads and their queue capacity are set in
+     * the node's {@link de.fabmax.pubsub.ConnectionConfig}.
+     */
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        if (dispatchMode == null) {
+            throw new NullPointerException("dispatchMode must not be null");
+        }
+        if (dispatchMode != DispatchMode.INLINE && mDispatcher == null) {
+            throw new UnsupportedOperationException("Channel " + mChannelId + " only supports inline dispatch");
+        }
+        mDispatchMode = dispatchMode;
+    }
+
     protected void onMessageReceived(Message message) {
-        synchronized (mChannelListeners) {
-            for (MessageListener l : mChannelListeners) {
-                l.onMessageReceived(message);
-            }
+        DispatchMode mode = mDispatchMode;
+        if (mode == DispatchMode.INLINE) {
+            deliver(message);
+        } else {
+            mDispatcher.dispatch(this, message, mode);
         }
     }
 
-    public void addMessageListener(MessageListener listener) {
-        synchronized (mChannelListeners) {
-            mChannelListeners.add(listener);
+    /**
+     * Calls all listeners of this channel for the given message.
+     */
+    void deliver(Message message) {
+        for (MessageListener l : mChannelListeners) {
+            l.onMessageReceived(message);
         }
     }
 
+    public void addMessageListener(MessageListener listener) {
+        mChannelListeners.add(listener);
+    }
+
     public void removeMessageListener(MessageListener listener) {
-        synchronized (mChannelListeners) {
-            mChannelListeners.remove(listener);
-        }
+        mChannelListeners.remove(listener);
+    }
+
+    boolean hasMessageListeners() {
+        return !mChannelListeners.isEmpty();
     }
 
     public void sendPtpMessage(Message message, Node fromNode, long toNodeId) {
@@ -50,6 +91,7 @@ public class Channel {
         }
         PtpMessage ptp = new PtpMessage(fromNode, toNodeId);
         ptp.setTopic(message.getTopic());
+        ptp.setPriority(message.getPriority());
         if (message.getData() != null) {
             ptp.setData(message.getData());
         }
@@ -61,4 +103,20 @@ public class Channel {
         mProvider.publish(message);
     }
 
+    /**
+     * Publishes the given message and reports whether it was accepted. Channels of custom
+     * {@link de.fabmax.pubsub.ChannelProvider}s can't tell, they publish the message and always return true.
+     *
+     * @return true if the message was queued for all receivers, false if it was dropped for at least one receiver
+     *         because of a full send queue or a missing connection
+     */
+    public boolean tryPublish(Message message) {
+        message.setChannelId(mChannelId);
+        if (mProvider instanceof AcknowledgingChannelProvider) {
+            return ((AcknowledgingChannelProvider) mProvider).tryPublish(message);
+        }
+        mProvider.publish(message);
+        return true;
+    }
+
 }
@@ -1,31 +1,111 @@
 package de.fabmax.pubsub;
 
+import de.fabmax.pubsub.codec.Codec;
+import de.fabmax.pubsub.util.ThreadFactories;
+import de.fabmax.pubsub.util.UnixSockets;
 import org.pmw.tinylog.Logger;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Max on 24.02.2015.
  */
-class ClientAcceptor extends Thread implements Closeable {
+class ClientAcceptor implements Runnable, Closeable {
+
+    /** Time a rejected client gets to close its end of the connection after receiving the retry hint */
+    private static final long REJECT_LINGER_MILLIS = 100;
 
     private final ServerNode mServer;
+    private final NioReactor mReactor;
+    private final Thread mThread;
     private ServerSocket mServerSock;
+    private ServerSocketChannel mServerChannel;
+    private final String mUnixSocketPath;
+    private final String mLocalAddress;
+    private int mUnixClientCount = 0;
+
+    // admission control, see ConnectionConfig.setMaxAcceptRate(), only used by the accepting thread
+    private long mAdmissionSecond = 0;
+    private int mAdmittedCount = 0;
+    private int mRejectedCount = 0;
+    /** Closes rejected client connections after they lingered, so that the accepting thread isn't blocked */
+    private final ScheduledExecutorService mRejectCloser;
 
     private boolean mClosed;
 
-    public ClientAcceptor(ServerNode server, int serverPort) throws IOException {
+    /**
+     * Creates a new ClientAcceptor. If reactor is null, accepted clients are served by blocking
+     * {@link de.fabmax.pubsub.StreamConnection}s, otherwise by {@link de.fabmax.pubsub.NioConnection}s assigned to the
+     * given reactor.
+     */
+    public ClientAcceptor(ServerNode server, int serverPort, NioReactor reactor) throws IOException {
+        mServer = server;
+        mReactor = reactor;
+        mUnixSocketPath = null;
+        if (reactor != null) {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.bind(new InetSocketAddress(serverPort));
+            mServerSock = mServerChannel.socket();
+        } else {
+            mServerSock = new ServerSocket(serverPort);
+        }
+        mLocalAddress = mServerSock.getInetAddress() + ":" + mServerSock.getLocalPort();
+        mClosed = false;
+        mThread = ThreadFactories.newThread(server.getConnectionConfig().getThreadFactory(), this, "ClientAcceptor",
+                server.isDaemon());
+        mRejectCloser = newRejectCloser(server);
+    }
+
+    /**
+     * Creates a new ClientAcceptor listening on a unix domain socket bound to the given path. Accepted clients are
+     * served the same way as TCP clients, depending on reactor being null or not.
+     */
+    public ClientAcceptor(ServerNode server, String unixSocketPath, NioReactor reactor) throws IOException {
         mServer = server;
-        mServerSock = new ServerSocket(serverPort);
+        mReactor = reactor;
+        mUnixSocketPath = unixSocketPath;
+        mServerChannel = UnixSockets.bind(unixSocketPath);
+        mLocalAddress = UnixSockets.SCHEME + unixSocketPath;
         mClosed = false;
+        mThread = ThreadFactories.newThread(server.getConnectionConfig().getThreadFactory(), this,
+                "ClientAcceptor " + mLocalAddress, server.isDaemon());
+        mRejectCloser = newRejectCloser(server);
+    }
+
+    private static ScheduledExecutorService newRejectCloser(final ServerNode server) {
+        // the executor starts its thread when the first client is rejected
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return ThreadFactories.newThread(server.getConnectionConfig().getThreadFactory(), runnable,
+                        "RejectedClientCloser", server.isDaemon());
+            }
+        });
+    }
+
+    public void start() {
+        mThread.start();
     }
 
     @Override
     public void close() {
         mClosed = true;
+        // connections of already rejected clients are still closed after they lingered
+        mRejectCloser.shutdown();
         if (mServerSock != null) {
             try {
                 mServerSock.close();
@@ -34,16 +114,176 @@ class ClientAcceptor extends Thread implements Closeable {
             }
             mServerSock = null;
         }
+        if (mUnixSocketPath != null && mServerChannel != null) {
+            try {
+                mServerChannel.close();
+            } catch(IOException e) {
+                Logger.error("Failed closing server socket", e);
+            }
+            mServerChannel = null;
+            // unix domain sockets leave their socket file behind
+            if (!new File(mUnixSocketPath).delete()) {
+                Logger.debug("Unable to delete socket file " + mUnixSocketPath);
+            }
+        }
+    }
+
+    /**
+     * Accepts the next client.
+     *
+     * @return connection to the accepted client or null if the client was rejected
+     */
+    private Connection acceptConnection() throws IOException {
+        if (mUnixSocketPath != null) {
+            SocketChannel clientChannel = mServerChannel.accept();
+            long retryHint = admitClient();
+            if (retryHint > 0) {
+                reject(clientChannel, retryHint);
+                return null;
+            }
+            // clients connect with unnamed addresses, number them to keep client addresses unique
+            String clientAddress = mLocalAddress + "#" + (++mUnixClientCount);
+            if (mReactor != null) {
+                return new NioConnection(clientChannel, clientAddress, Codec.defaultCodecFactory,
+                        mServer.getConnectionConfig(), mReactor);
+            } else {
+                return new StreamConnection(clientChannel, clientAddress, Codec.defaultCodecFactory,
+                        mServer.getConnectionConfig(), mServer.isDaemon());
+            }
+        } else if (mServerChannel != null) {
+            SocketChannel clientChannel = mServerChannel.accept();
+            long retryHint = admitClient();
+            if (retryHint > 0) {
+                reject(clientChannel, retryHint);
+                return null;
+            }
+            return new NioConnection(clientChannel, Codec.defaultCodecFactory, mServer.getConnectionConfig(), mReactor);
+        } else {
+            Socket clientSock = mServerSock.accept();
+            long retryHint = admitClient();
+            if (retryHint > 0) {
+                reject(clientSock, retryHint);
+                return null;
+            }
+            return new StreamConnection(clientSock, Codec.defaultCodecFactory, mServer.getConnectionConfig(),
+                    mServer.isDaemon());
+        }
+    }
+
+    /**
+     * Decides whether a newly accepted client is served, based on the number of clients accepted within the current
+     * second.
+     *
+     * @return 0 if the client is admitted, otherwise the retry hint in milliseconds
+     */
+    private long admitClient() {
+        int maxRate = mServer.getConnectionConfig().getMaxAcceptRate();
+        if (maxRate <= 0) {
+            return 0;
+        }
+        long second = System.nanoTime() / 1000000000L;
+        if (second != mAdmissionSecond) {
+            mAdmissionSecond = second;
+            mAdmittedCount = 0;
+            mRejectedCount = 0;
+        }
+        if (mAdmittedCount < maxRate) {
+            mAdmittedCount++;
+            return 0;
+        }
+        // every further batch of maxRate rejected clients is sent one second further into the future, clients
+        // randomize the hint between half and the full value, which keeps the reconnect rate below maxRate
+        int batch = mRejectedCount++ / maxRate;
+        return 2000L * (batch + 1);
+    }
+
+    private byte[] encodeRetryHint(long retryHint) {
+        return Codec.defaultCodecFactory.createCodec().encodeMessage(ControlMessages.retryHint(retryHint));
+    }
+
+    /**
+     * Sends the retry hint to the rejected client and closes the connection after the client had some time to close
+     * its end. The client's registration messages are discarded before closing, otherwise unread data would reset
+     * the connection and the client might lose the hint. Closing is done by a separate thread, the accepting thread
+     * continues right away.
+     */
+    private void reject(final SocketChannel clientChannel, long retryHint) {
+        try {
+            clientChannel.write(ByteBuffer.wrap(encodeRetryHint(retryHint)));
+            clientChannel.shutdownOutput();
+            clientChannel.configureBlocking(false);
+        } catch (IOException e) {
+            Logger.debug("Failed rejecting client", e);
+        }
+        closeLater(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer discard = ByteBuffer.allocate(4096);
+                    while (clientChannel.read(discard) > 0) {
+                        discard.clear();
+                    }
+                } catch (IOException e) {
+                    Logger.debug("Failed discarding data of rejected client", e);
+                }
+                try {
+                    clientChannel.close();
+                } catch (IOException e) {
+                    Logger.debug("Failed closing rejected client connection", e);
+                }
+            }
+        });
+        Logger.debug("Rejected client, accept rate exceeded, retry hint: " + retryHint + " ms");
+    }
+
+    private void reject(final Socket clientSock, long retryHint) {
+        try {
+            clientSock.getOutputStream().write(encodeRetryHint(retryHint));
+            clientSock.shutdownOutput();
+        } catch (IOException e) {
+            Logger.debug("Failed rejecting client", e);
+        }
+        closeLater(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = clientSock.getInputStream();
+                    byte[] discard = new byte[4096];
+                    while (in.available() > 0 && in.read(discard) > 0) {
+                        // discard without blocking
+                    }
+                } catch (IOException e) {
+                    Logger.debug("Failed discarding data of rejected client", e);
+                }
+                try {
+                    clientSock.close();
+                } catch (IOException e) {
+                    Logger.debug("Failed closing rejected client connection", e);
+                }
+            }
+        });
+        Logger.debug("Rejected client, accept rate exceeded, retry hint: " + retryHint + " ms");
+    }
+
+    private void closeLater(Runnable closeTask) {
+        try {
+            mRejectCloser.schedule(closeTask, REJECT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // acceptor was closed in the meantime
+            closeTask.run();
+        }
     }
 
     @Override
     public void run() {
-        Logger.debug("Waiting for clients to connect at " +
-                mServerSock.getInetAddress() + ":" + mServerSock.getLocalPort());
+        Logger.debug("Waiting for clients to connect at " + mLocalAddress);
         while (!mClosed) {
             try {
-                Socket clientSock = mServerSock.accept();
-                ClientHandler handler = new ClientHandler(mServer, clientSock);
+                Connection connection = acceptConnection();
+                if (connection == null) {
+                    continue;
+                }
+                ClientHandler handler = new ClientHandler(mServer, connection);
                 mServer.clientConnected(handler);
 
             } catch (IOException e) {
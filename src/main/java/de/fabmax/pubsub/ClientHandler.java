@@ -1,20 +1,19 @@
 package de.fabmax.pubsub;
 
-import de.fabmax.pubsub.codec.Codec;
 import de.fabmax.pubsub.util.ChannelEndpoint;
 import de.fabmax.pubsub.util.EndpointParameter;
 import de.fabmax.pubsub.util.MessageMapper;
 import org.pmw.tinylog.Logger;
 
-import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * ClientHandler has to be public for reflections used by {@link de.fabmax.pubsub.util.MessageMapper} to work.
  */
-public class ClientHandler implements ChannelProvider, ConnectionListener {
+public class ClientHandler implements AcknowledgingChannelProvider, ConnectionListener {
 
     private final ServerNode mServer;
     private final Connection mClientConnection;
@@ -25,14 +24,23 @@ public class ClientHandler implements ChannelProvider, ConnectionListener {
 
     private final HashSet<String> mRegisteredChannels = new HashSet<>();
 
-    public ClientHandler(ServerNode server, Socket clientSock) throws IOException {
-        mClientConnection = new Connection(clientSock, Codec.defaultCodecFactory, server.isDaemon());
-        mClientAddress = clientSock.getRemoteSocketAddress().toString();
+    ClientHandler(ServerNode server, Connection clientConnection) {
+        mClientConnection = clientConnection;
+        mClientAddress = clientConnection.getRemoteAddress();
         mServer = server;
         mControlChannel = new Channel(this, ControlMessages.CONTROL_CHANNEL_ID);
         mControlChannel.addMessageListener(new MessageMapper(this));
 
         mClientConnection.setConnectionListener(this);
+        mClientConnection.setRelayMode(server.getConnectionConfig().isRelayMode());
+    }
+
+    /**
+     * Opens the client connection. Is called by {@link de.fabmax.pubsub.ServerNode} after this handler was added to
+     * its clients, so that the handler receives all node registrations, which are not included in the known node IDs
+     * sent here.
+     */
+    void start() {
         mClientConnection.open();
 
         // tell client all known node IDs (including the server's)
@@ -49,6 +57,68 @@ public class ClientHandler implements ChannelProvider, ConnectionListener {
         return mClientAddress;
     }
 
+    /**
+     * Returns a snapshot of the statistics of the queue holding the messages, which are to be sent to the client.
+     */
+    public QueueStats getSendQueueStats() {
+        return mClientConnection.getSendQueueStats();
+    }
+
+    /**
+     * Returns the compression statistics of the connection to the client.
+     */
+    public CompressionStats getCompressionStats() {
+        return mClientConnection.getCompressionStats();
+    }
+
+    int getSendQueueDepth() {
+        return mClientConnection.getSendQueueDepth();
+    }
+
+    /**
+     * Returns true if all queued frames were written to the connection or the connection is closed.
+     */
+    boolean isFlushed() {
+        return mClientConnection.isClosed() ||
+                (mClientConnection.getSendQueueDepth() == 0 && mClientConnection.getWriteStallNanos() == 0);
+    }
+
+    long getBytesWritten() {
+        return mClientConnection.getBytesWritten();
+    }
+
+    long getWriteStallNanos() {
+        return mClientConnection.getWriteStallNanos();
+    }
+
+    SlowConsumerConfig.DegradedMode getDegradedMode() {
+        return mClientConnection.getDegradedMode();
+    }
+
+    /**
+     * Is called by {@link de.fabmax.pubsub.SlowConsumerMonitor} to change how messages for this client are handled.
+     */
+    void setDegradedMode(SlowConsumerConfig.DegradedMode degradedMode, int sampleRate) {
+        mClientConnection.setDegradedMode(degradedMode, sampleRate);
+    }
+
+    /**
+     * Disconnects a slow client. Unlike {@link #close()} the server is notified about the disconnect.
+     */
+    void evict() {
+        mClientConnection.setDegradedMode(SlowConsumerConfig.DegradedMode.EVICT, 1);
+        mClientConnection.close();
+    }
+
+    /**
+     * Returns a copy of the IDs of all channels the client has subscribed to.
+     */
+    List<String> getRegisteredChannels() {
+        synchronized (mRegisteredChannels) {
+            return new ArrayList<>(mRegisteredChannels);
+        }
+    }
+
     /**
      * Is called by {@link de.fabmax.pubsub.ServerNode} when server is closed.
      */
@@ -79,9 +149,49 @@ public class ClientHandler implements ChannelProvider, ConnectionListener {
 
     @Override
     public void publish(Message message) {
-        if (mRegisteredChannels.contains(message.getChannelId())) {
-            mClientConnection.sendMessage(message);
+        tryPublish(message);
+    }
+
+    /**
+     * Sends the given message to the client if the client is subscribed to the message's channel.
+     *
+     * @return true if the message was queued, false if it was dropped or the client is not subscribed
+     */
+    @Override
+    public boolean tryPublish(Message message) {
+        boolean subscribed;
+        synchronized (mRegisteredChannels) {
+            subscribed = mRegisteredChannels.contains(message.getChannelId());
         }
+        return subscribed && mClientConnection.sendMessage(message);
+    }
+
+    /**
+     * Is called by {@link de.fabmax.pubsub.ServerNode} to send a message, which is shared between multiple clients.
+     * The server only calls this for clients subscribed to the message's channel, hence the subscription is not
+     * checked again.
+     *
+     * @return true if the frame was queued
+     */
+    boolean publish(SharedFrame frame) {
+        return mClientConnection.sendFrame(frame);
+    }
+
+    /**
+     * Returns the number of normal priority messages, which can currently be queued for the client without
+     * overflowing its send queue.
+     */
+    int getSendQueueSpace() {
+        return mClientConnection.getSendQueueSpace();
+    }
+
+    /**
+     * Sends a control message, which marks a position in the stream of the client's messages. The message is queued
+     * even if the send queue is full and never blocks the caller, see {@link Connection#sendStreamMarker(Message)}.
+     */
+    void sendStreamMarker(Message ctrlMessage) {
+        ctrlMessage.setChannelId(ControlMessages.CONTROL_CHANNEL_ID);
+        mClientConnection.sendStreamMarker(ctrlMessage);
     }
 
     protected void sendControlMessage(Message ctrlMessage) {
@@ -96,9 +206,65 @@ public class ClientHandler implements ChannelProvider, ConnectionListener {
         mServer.clientRegistered(mNodeId, this);
     }
 
+    @ChannelEndpoint
+    public void registerStripe(@EndpointParameter(name = "nodeId") long nodeId) {
+        Logger.debug(mClientAddress + " is an additional connection of node: " + nodeId);
+        mNodeId = nodeId;
+    }
+
     @ChannelEndpoint
     public void registerChannel(@EndpointParameter(name = "channelId") String channelId) {
         Logger.debug(mClientAddress + " registered channel: " + channelId);
-        mRegisteredChannels.add(channelId);
+        boolean added;
+        synchronized (mRegisteredChannels) {
+            added = mRegisteredChannels.add(channelId);
+        }
+        if (added) {
+            mServer.clientSubscribed(this, channelId);
+        }
+    }
+
+    @ChannelEndpoint
+    public void resumeChannel(@EndpointParameter(name = "channelId") String channelId,
+                              @EndpointParameter(name = "epoch") long epoch,
+                              @EndpointParameter(name = "sequence") long sequence) {
+        Logger.debug(mClientAddress + " resumed channel: " + channelId + " after sequence " + sequence);
+        boolean added;
+        synchronized (mRegisteredChannels) {
+            added = mRegisteredChannels.add(channelId);
+        }
+        if (added) {
+            mServer.clientSubscribed(this, channelId, epoch, sequence);
+        }
+    }
+
+    @ChannelEndpoint
+    public void multicastJoined(@EndpointParameter(name = "channelId") String channelId) {
+        Logger.debug(mClientAddress + " joined multicast group of channel: " + channelId);
+        mServer.multicastJoined(this, channelId);
+    }
+
+    @ChannelEndpoint
+    public void multicastLeft(@EndpointParameter(name = "channelId") String channelId,
+                              @EndpointParameter(name = "sequence") long nextSequence) {
+        Logger.debug(mClientAddress + " left multicast group of channel: " + channelId);
+        mServer.multicastLeft(this, channelId, nextSequence);
+    }
+
+    @ChannelEndpoint
+    public void requestCompression(@EndpointParameter(name = "compression") String compression) {
+        ConnectionConfig config = mServer.getConnectionConfig();
+        Compression selected = Compression.NONE;
+        if (config.getCompression() != Compression.NONE) {
+            try {
+                selected = Compression.valueOf(compression);
+            } catch (IllegalArgumentException e) {
+                Logger.warn(mClientAddress + " requested unsupported compression: " + compression);
+            }
+        }
+        Logger.debug(mClientAddress + " requested compression " + compression + ", selected: " + selected);
+        // the client can decompress frames right away, no need to wait for the client to enable compression as well
+        sendControlMessage(ControlMessages.selectCompression(selected));
+        mClientConnection.setCompression(selected, config.getCompressionThreshold());
     }
 }
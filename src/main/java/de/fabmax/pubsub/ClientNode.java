@@ -4,29 +4,53 @@ import de.fabmax.pubsub.codec.Codec;
 import de.fabmax.pubsub.util.ChannelEndpoint;
 import de.fabmax.pubsub.util.EndpointParameter;
 import de.fabmax.pubsub.util.MessageMapper;
+import de.fabmax.pubsub.util.ThreadFactories;
+import de.fabmax.pubsub.util.UnixSockets;
 import org.pmw.tinylog.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Max on 24.02.2015.
  */
 public class ClientNode extends Node implements ConnectionListener {
 
+    private static final long SHM_ACCEPT_TIMEOUT_MILLIS = 2000;
+    /** Connections lasting at least this long reset the reconnect backoff */
+    private static final long STABLE_CONNECTION_MILLIS = 1000;
+
     private final boolean mIsDaemon;
     private final HashSet<Long> mKnownNodeIds = new HashSet<>();
 
     private final InetAddress mServerAddr;
     private final int mServerPort;
+    /** Address of a server on the same host or in the same JVM, null if the server is connected via TCP */
+    private final String mLocalAddress;
 
-    private ConnectThread mConnector;
+    private Connector mConnector;
     private Channel mControlChannel;
+    /** Serializes connect and disconnect handling, so that listeners are notified in order */
+    private final Object mConnectionStateLock = new Object();
+    /** True after onConnect() until the connection was closed, guarded by mConnectionStateLock */
+    private boolean mConnected = false;
+    /** Buffers messages published while not connected, null if disabled */
+    private Outbox mOutbox;
+    /** Last received sequence numbers of channels with replay enabled on the server, mapped by channel ID */
+    private final ConcurrentHashMap<String, ReplayPosition> mReplayPositions = new ConcurrentHashMap<>();
+    /** Receivers of channels delivered via multicast, mapped by channel ID */
+    private final ConcurrentHashMap<String, MulticastReceiver> mMulticastReceivers = new ConcurrentHashMap<>();
 
     public ClientNode(String serverAddr) throws UnknownHostException {
         this(serverAddr, ServerNode.DEFAULT_PORT);
@@ -36,14 +60,43 @@ public class ClientNode extends Node implements ConnectionListener {
         this(serverAddr, serverPort, false);
     }
 
+    /**
+     * Creates a client node connecting to the given server. Besides host names and IP addresses, serverAddr can use
+     * one of the following schemes, serverPort is ignored in that case:
+     * <ul>
+     *     <li>"unix:" + path, e.g. "unix:/tmp/pubsub.sock", connects to a server on the same host via a unix domain
+     *     socket, see {@link de.fabmax.pubsub.ServerNode#ServerNode(int, String, boolean)}</li>
+     *     <li>"shm:" + directory connects to a server on the same host via shared memory, see
+     *     {@link de.fabmax.pubsub.ServerNode#enableSharedMemoryTransport(String)}</li>
+     *     <li>"inproc:" + name connects to a server in the same JVM, see
+     *     {@link de.fabmax.pubsub.ServerNode#enableInProcessTransport(String)}</li>
+     * </ul>
+     *
+     * @throws UnsupportedOperationException if a unix domain socket address is given and the JVM doesn't support
+     *                                       unix domain sockets
+     */
     public ClientNode(String serverAddr, int serverPort, boolean isDaemon) throws UnknownHostException {
-        this(InetAddress.getByName(serverAddr), serverPort, isDaemon);
+        this(isLocalAddress(serverAddr) ? null : InetAddress.getByName(serverAddr), serverPort,
+                isLocalAddress(serverAddr) ? serverAddr : null, isDaemon);
     }
 
     public ClientNode(InetAddress serverAddr, int serverPort, boolean isDaemon) {
+        this(serverAddr, serverPort, null, isDaemon);
+    }
+
+    private ClientNode(InetAddress serverAddr, int serverPort, String localAddress, boolean isDaemon) {
+        if (localAddress != null && UnixSockets.isUnixAddress(localAddress) && !UnixSockets.isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        }
         mIsDaemon = isDaemon;
         mServerAddr = serverAddr;
         mServerPort = serverPort;
+        mLocalAddress = localAddress;
+    }
+
+    private static boolean isLocalAddress(String serverAddr) {
+        return UnixSockets.isUnixAddress(serverAddr) || serverAddr.startsWith(SharedMemorySegment.SCHEME) ||
+                serverAddr.startsWith(InProcessConnection.SCHEME);
     }
 
     /**
@@ -54,13 +107,18 @@ public class ClientNode extends Node implements ConnectionListener {
         mIsDaemon = isDaemon;
         mServerAddr = serverAddr;
         mServerPort = serverPort;
+        mLocalAddress = null;
     }
 
     @Override
     public void open() {
-        mConnector = new ConnectThread(mServerAddr, mServerPort);
+        // control channel must be ready before the connector might call onConnect()
         mControlChannel = openChannel(ControlMessages.CONTROL_CHANNEL_ID);
         mControlChannel.addMessageListener(new MessageMapper(this));
+        if (mConnectionConfig.getOutboxCapacity() > 0) {
+            mOutbox = new Outbox(mConnectionConfig);
+        }
+        mConnector = new Connector(mServerAddr, mServerPort, mLocalAddress);
     }
 
     @Override
@@ -73,47 +131,336 @@ public class ClientNode extends Node implements ConnectionListener {
     @Override
     public void close() {
         mConnector.close();
+        if (mOutbox != null) {
+            mOutbox.close();
+        }
+        closeMulticastReceivers();
+        mDispatcher.close();
     }
 
     @Override
-    public void publish(Message message) {
-        Connection con = mConnector.mServerConnection;
-        if (con != null) {
-            con.sendMessage(message);
+    public boolean tryPublish(Message message) {
+        Connection[] stripes = mConnector.mStripes;
+        // control messages are never buffered, they are sent again on connect anyway
+        boolean buffer = mOutbox != null && !ControlMessages.CONTROL_CHANNEL_ID.equals(message.getChannelId());
+        if (buffer && (stripes == null || mOutbox.isPending())) {
+            Outbox.Result result = mOutbox.offer(message, stripes != null);
+            if (result != Outbox.Result.SEND) {
+                return result == Outbox.Result.BUFFERED;
+            }
+        }
+
+        if (stripes != null) {
+            Connection con = stripes[getStripe(message.getChannelId(), stripes.length)];
+            if (con.sendMessage(message)) {
+                return true;
+            } else if (buffer && con.isClosed()) {
+                // connection was lost in the meantime
+                return mOutbox.offer(message, false) == Outbox.Result.BUFFERED;
+            }
+            return false;
         } else {
             Logger.debug("Discarding message: not connected");
+            return false;
         }
     }
 
+    /**
+     * Sends the messages buffered while the client was not connected. Is called by the connector after the channels
+     * were registered. Waits for free space if a send queue is full, a message is only removed from the outbox after
+     * it was queued. Stops if the connection is lost again, the remaining messages stay buffered.
+     */
+    private void flushOutbox(Connection[] stripes) {
+        int sent = 0;
+        Message message;
+        while ((message = mOutbox.peek()) != null) {
+            Connection con = stripes[getStripe(message.getChannelId(), stripes.length)];
+            if (!con.sendMessageWaiting(message)) {
+                Logger.debug("Connection lost while sending buffered messages");
+                return;
+            }
+            mOutbox.remove();
+            sent++;
+        }
+        if (sent > 0) {
+            Logger.info("Sent " + sent + " buffered messages");
+        }
+    }
+
+    /**
+     * Returns the statistics of the outbox, which buffers messages published while the client is not connected, or
+     * null if the outbox is disabled. Messages discarded because they expired are counted as evicted.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setOutboxCapacity(int)
+     */
+    public QueueStats getOutboxStats() {
+        return mOutbox != null ? mOutbox.getStats() : null;
+    }
+
+    /**
+     * Returns the index of the connection carrying the given channel. Control messages are always sent via the first
+     * (primary) connection.
+     */
+    private static int getStripe(String channelId, int stripeCount) {
+        if (stripeCount == 1 || ControlMessages.CONTROL_CHANNEL_ID.equals(channelId)) {
+            return 0;
+        }
+        int hash = channelId.hashCode();
+        // spread hash bits, channel IDs often differ only in their last characters
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % stripeCount;
+    }
+
+    /**
+     * Sends a control message via the connection carrying the given channel. Channel registrations are sent this way,
+     * so that the server sends the channel's messages via the same connection.
+     */
+    private void sendChannelControlMessage(String channelId, Message ctrlMessage) {
+        Connection[] stripes = mConnector.mStripes;
+        if (stripes != null) {
+            ctrlMessage.setChannelId(ControlMessages.CONTROL_CHANNEL_ID);
+            stripes[getStripe(channelId, stripes.length)].sendMessage(ctrlMessage);
+        }
+    }
+
+    /**
+     * Returns the statistics of the queue holding the messages, which are to be sent to the server, or null if the
+     * client is not connected. With multiple connections, the statistics of the primary connection are returned.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setConnectionStripes(int)
+     */
+    public QueueStats getSendQueueStats() {
+        Connection con = mConnector.mServerConnection;
+        return con != null ? con.getSendQueueStats() : null;
+    }
+
+    /**
+     * Returns the compression statistics of the connection to the server or null if the client is not connected. With
+     * multiple connections, the statistics of the primary connection are returned.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setCompression(Compression)
+     */
+    public CompressionStats getCompressionStats() {
+        Connection con = mConnector.mServerConnection;
+        return con != null ? con.getCompressionStats() : null;
+    }
+
     @Override
     protected void registerChannel(Channel channel) {
         super.registerChannel(channel);
         if (mControlChannel != null) {
-            mControlChannel.publish(ControlMessages.registerChannel(channel.getChannelId()));
+            sendChannelControlMessage(channel.getChannelId(), ControlMessages.registerChannel(channel.getChannelId()));
+        }
+    }
+
+    /**
+     * Registers this node with the server on the given connections and notifies the listeners.
+     *
+     * @return false if the connection was closed already, e.g. because the server rejected it
+     */
+    private boolean onConnect(Connection[] stripes) {
+        synchronized (mConnectionStateLock) {
+            if (stripes[0].isClosed()) {
+                return false;
+            }
+            mConnected = true;
+            registerNode(stripes);
+            fireOnConnect();
+            return true;
         }
     }
 
-    private void onConnect() {
+    private void registerNode(Connection[] stripes) {
         Logger.info("Connected to server");
 
         // register this node's ID
         mControlChannel.publish(ControlMessages.registerNode(getNodeId()));
-        // send registered channels to server
+        for (int i = 1; i < stripes.length; i++) {
+            Message registerStripe = ControlMessages.registerStripe(getNodeId());
+            registerStripe.setChannelId(ControlMessages.CONTROL_CHANNEL_ID);
+            stripes[i].sendMessage(registerStripe);
+        }
+        // compression is negotiated per connection
+        if (mConnectionConfig.getCompression() != Compression.NONE) {
+            for (Connection con : stripes) {
+                Message request = ControlMessages.requestCompression(mConnectionConfig.getCompression());
+                request.setChannelId(ControlMessages.CONTROL_CHANNEL_ID);
+                con.sendMessage(request);
+            }
+        }
+        // send registered channels to server, channels with a replay position get the messages missed in between
         for (String channelId : mChannels.keySet()) {
-            mControlChannel.publish(ControlMessages.registerChannel(channelId));
+            ReplayPosition position = mReplayPositions.get(channelId);
+            if (position != null) {
+                sendChannelControlMessage(channelId,
+                        ControlMessages.resumeChannel(channelId, position.mEpoch, position.mSequence));
+            } else {
+                sendChannelControlMessage(channelId, ControlMessages.registerChannel(channelId));
+            }
+        }
+    }
+
+    @Override
+    public void onMessageReceived(Message message) {
+        String channelId = message.getChannelId();
+        if (ControlMessages.CONTROL_CHANNEL_ID.equals(channelId)) {
+            if (ControlMessages.TOPIC_REPLAY_START.equals(message.getTopic())) {
+                // handled right here, the position must be set before the following messages of the channel arrive
+                replayStarted(message.getData());
+                return;
+            } else if (ControlMessages.TOPIC_RETRY_HINT.equals(message.getTopic())) {
+                // handled right here, the server closes the connection right after the hint
+                Long delay = message.getData() != null ? message.getData().getLong("delay") : null;
+                if (delay != null && delay > 0) {
+                    Logger.info("Server asked to reconnect in " + delay + " ms");
+                    mConnector.mRetryHintMillis = delay;
+                }
+                return;
+            }
+        } else {
+            ReplayPosition position = mReplayPositions.get(channelId);
+            if (position != null) {
+                position.update(message);
+            }
+        }
+        super.onMessageReceived(message);
+    }
+
+    private void replayStarted(Bundle data) {
+        String channelId = data.getString("channelId");
+        long sequence = data.getLong("sequence");
+        long missed = data.getLong("missed");
+        if (missed > 0) {
+            Logger.warn("Missed " + missed + " messages of channel " + channelId + ", the server was unable to " +
+                    "replay them");
+        } else if (missed < 0) {
+            Logger.warn("Server lost replay state of channel " + channelId + ", messages published while " +
+                    "disconnected might be missed");
+        }
+        long epoch = data.getLong("epoch");
+        ReplayPosition position = mReplayPositions.get(channelId);
+        // replay start messages, which were queued aside of a full send queue, might arrive in any order, a position
+        // of the same epoch never goes backwards
+        if (position == null || position.mEpoch != epoch || position.mSequence < sequence) {
+            mReplayPositions.put(channelId, new ReplayPosition(epoch, sequence));
         }
-        fireOnConnect();
     }
 
     @Override
     public void onConnectionClosed() {
+        synchronized (mConnectionStateLock) {
+            if (!mConnected) {
+                // closed before the connection was established, listeners were never notified about it
+                return;
+            }
+            mConnected = false;
+        }
         Logger.info("Disconnected from server");
         synchronized (mKnownNodeIds) {
             mKnownNodeIds.clear();
         }
+        // the server forgot about group memberships, groups are announced again after reconnect
+        closeMulticastReceivers();
         fireOnDisconnect();
     }
 
+    private void closeMulticastReceivers() {
+        for (String channelId : mMulticastReceivers.keySet()) {
+            MulticastReceiver receiver = mMulticastReceivers.remove(channelId);
+            if (receiver != null) {
+                receiver.close();
+            }
+        }
+    }
+
+    /**
+     * Is called by a {@link de.fabmax.pubsub.MulticastReceiver} which missed a datagram or failed receiving. The
+     * server retransmits messages starting at the given sequence number via TCP. If the receiver was not yet started,
+     * nextSequence is -1 and the server is told to leave when the start message arrives.
+     */
+    void multicastFailed(String channelId, MulticastReceiver receiver, long nextSequence) {
+        if (mMulticastReceivers.remove(channelId, receiver) && nextSequence >= 0) {
+            mControlChannel.publish(ControlMessages.multicastLeft(channelId, nextSequence));
+        }
+    }
+
+    @ChannelEndpoint
+    public void selectCompression(@EndpointParameter(name = "compression") String compression) {
+        Connection con = mConnector.mServerConnection;
+        if (con != null) {
+            selectCompression(con, compression);
+        }
+    }
+
+    private void selectCompression(Connection con, String compression) {
+        Compression selected;
+        try {
+            selected = Compression.valueOf(compression);
+        } catch (IllegalArgumentException e) {
+            Logger.warn("Server selected unsupported compression: " + compression);
+            return;
+        }
+        Logger.debug("Compression selected by server: " + selected);
+        con.setCompression(selected, mConnectionConfig.getCompressionThreshold());
+    }
+
+    @ChannelEndpoint
+    public void multicastGroup(@EndpointParameter(name = "channelId") String channelId,
+                               @EndpointParameter(name = "address") String address,
+                               @EndpointParameter(name = "port") int port,
+                               @EndpointParameter(name = "serverNodeId") long serverNodeId) {
+        if (mMulticastReceivers.containsKey(channelId)) {
+            return;
+        }
+        try {
+            MulticastReceiver receiver = new MulticastReceiver(this, channelId, InetAddress.getByName(address), port,
+                    serverNodeId, mIsDaemon);
+            mMulticastReceivers.put(channelId, receiver);
+            receiver.start();
+            Logger.debug("Joined multicast group " + address + ":" + port + " of channel: " + channelId);
+            mControlChannel.publish(ControlMessages.multicastJoined(channelId));
+        } catch (IOException e) {
+            // channel is still received via TCP
+            Logger.warn("Unable to join multicast group " + address + ":" + port + " of channel " + channelId +
+                    ": " + e.getMessage());
+        }
+    }
+
+    @ChannelEndpoint
+    public void multicastStart(@EndpointParameter(name = "channelId") String channelId,
+                               @EndpointParameter(name = "sequence") long sequence) {
+        MulticastReceiver receiver = mMulticastReceivers.get(channelId);
+        if (receiver != null) {
+            receiver.startAt(sequence);
+        } else {
+            // receiver failed before it was started, make sure the server keeps sending via TCP
+            mControlChannel.publish(ControlMessages.multicastLeft(channelId, sequence));
+        }
+    }
+
+    @ChannelEndpoint
+    public void multicastFrame(@EndpointParameter(name = "channelId") String channelId,
+                               @EndpointParameter(name = "sequence") long sequence,
+                               @EndpointParameter(name = "frame") byte[] frame) {
+        MulticastReceiver receiver = mMulticastReceivers.get(channelId);
+        if (receiver != null) {
+            receiver.onTcpFrame(sequence, frame);
+        }
+        // else: receiver fell back to TCP, the server retransmits the message
+    }
+
+    @ChannelEndpoint
+    public void multicastStop(@EndpointParameter(name = "channelId") String channelId,
+                              @EndpointParameter(name = "sequence") long endSequence) {
+        MulticastReceiver receiver = mMulticastReceivers.remove(channelId);
+        if (receiver != null) {
+            // blocks the connection's receiver thread, subsequent messages of the channel are received via TCP and
+            // must not overtake the remaining datagrams
+            receiver.stopAt(endSequence);
+            Logger.debug("Left multicast group of channel: " + channelId);
+        }
+    }
+
     @ChannelEndpoint
     public void registerNode(@EndpointParameter(name = "nodeId") long nodeId) {
         Logger.debug("Registered node: " + nodeId);
@@ -143,23 +490,93 @@ public class ClientNode extends Node implements ConnectionListener {
         fireOnRemoteNoteDisconnected(nodeId);
     }
 
-    private class ConnectThread extends Thread {
+    /**
+     * Listener of an additional connection, see {@link de.fabmax.pubsub.ConnectionConfig#setConnectionStripes(int)}.
+     * Channel messages are handled like messages received via the primary connection. Control messages are sent to
+     * all connections of the client, they are only handled once by the primary connection's listener. Except for the
+     * compression negotiation, which is done per connection, replay positions, which are sent via the connection
+     * carrying the channel, and retry hints, which the server sends to every connection. Channels carried by
+     * additional connections don't join multicast groups and are always received via TCP.
+     */
+    private class StripeListener implements ConnectionListener {
+        private final Connection mConnection;
+        private final Connection mPrimary;
+
+        StripeListener(Connection connection, Connection primary) {
+            mConnection = connection;
+            mPrimary = primary;
+        }
+
+        @Override
+        public void onMessageReceived(Message message) {
+            if (!ControlMessages.CONTROL_CHANNEL_ID.equals(message.getChannelId()) ||
+                    ControlMessages.TOPIC_REPLAY_START.equals(message.getTopic()) ||
+                    ControlMessages.TOPIC_RETRY_HINT.equals(message.getTopic())) {
+                ClientNode.this.onMessageReceived(message);
+            } else if (ControlMessages.TOPIC_SELECT_COMPRESSION.equals(message.getTopic())) {
+                selectCompression(mConnection, message.getData().getString("compression"));
+            }
+        }
+
+        @Override
+        public void onConnectionClosed() {
+            mPrimary.close();
+        }
+    }
+
+    /**
+     * Replay epoch and last received sequence number of a channel, see
+     * {@link de.fabmax.pubsub.ServerNode#enableReplay(String, int)}. Is only updated by the thread receiving the
+     * channel's messages.
+     */
+    private static class ReplayPosition {
+        private final long mEpoch;
+        private volatile long mSequence;
+
+        ReplayPosition(long epoch, long sequence) {
+            mEpoch = epoch;
+            mSequence = sequence;
+        }
+
+        void update(Message message) {
+            Bundle data = message.getData();
+            Long sequence = data != null ? data.getLong(ServerNode.KEY_SEQUENCE) : null;
+            // messages replaced by conflation on the server might arrive out of order, keep the highest number
+            if (sequence != null && sequence > mSequence) {
+                mSequence = sequence;
+            }
+        }
+    }
+
+    private class Connector implements Runnable {
         private InetAddress mServerAddr;
         private int mServerPort;
+        private String mLocalAddress;
 
-        private Connection mServerConnection;
+        /** Primary connection, carries control messages */
+        private volatile Connection mServerConnection;
+        /** All connections to the server, the first one is the primary connection */
+        private volatile Connection[] mStripes;
+        private NioReactor mReactor = null;
 
-        private boolean mClosed = false;
+        private volatile boolean mClosed = false;
+        /** Delay before the next connection attempt requested by the server, 0 if none */
+        private volatile long mRetryHintMillis = 0;
+        private final Random mRandom = new Random();
 
-        public ConnectThread(InetAddress serverAddr, int serverPort) {
+        public Connector(InetAddress serverAddr, int serverPort, String localAddress) {
             mServerAddr = serverAddr;
             mServerPort = serverPort;
-            setDaemon(mIsDaemon);
-            start();
+            mLocalAddress = localAddress;
+            ThreadFactories.newThread(mConnectionConfig.getThreadFactory(), this, "ClientConnector", mIsDaemon)
+                    .start();
         }
 
         public void close() {
-            mClosed = true;
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
 
             Connection con = mServerConnection;
             if (con != null) {
@@ -167,30 +584,131 @@ public class ClientNode extends Node implements ConnectionListener {
             }
         }
 
+        private void closeAll(Connection[] stripes) {
+            for (Connection con : stripes) {
+                if (con != null) {
+                    con.close();
+                }
+            }
+        }
+
+        private Connection connect() throws IOException {
+            if (mLocalAddress != null && mLocalAddress.startsWith(InProcessConnection.SCHEME)) {
+                String name = mLocalAddress.substring(InProcessConnection.SCHEME.length());
+                return InProcessConnection.connect(name, mConnectionConfig, mIsDaemon);
+            } else if (mLocalAddress != null && mLocalAddress.startsWith(SharedMemorySegment.SCHEME)) {
+                File directory = new File(mLocalAddress.substring(SharedMemorySegment.SCHEME.length()));
+                SharedMemorySegment segment = SharedMemorySegment.connect(directory,
+                        mConnectionConfig.getSharedMemoryRingSize(), mConnectionConfig.getParkingStrategy(),
+                        SHM_ACCEPT_TIMEOUT_MILLIS);
+                return new StreamConnection(segment, mLocalAddress, Codec.defaultCodecFactory, mConnectionConfig,
+                        mIsDaemon);
+            }
+            if (mConnectionConfig.getTransportMode() == TransportMode.NIO && mReactor == null) {
+                // one event loop thread per connection, but not more than configured
+                int threads = Math.min(mConnectionConfig.getConnectionStripes(), mConnectionConfig.getNioThreads());
+                mReactor = new NioReactor(threads, mIsDaemon);
+            }
+            if (mLocalAddress != null) {
+                SocketChannel channel = UnixSockets.connect(UnixSockets.getPath(mLocalAddress));
+                if (mReactor != null) {
+                    return new NioConnection(channel, mLocalAddress, Codec.defaultCodecFactory, mConnectionConfig,
+                            mReactor);
+                }
+                return new StreamConnection(channel, mLocalAddress, Codec.defaultCodecFactory, mConnectionConfig,
+                        mIsDaemon);
+            } else if (mReactor != null) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(mServerAddr, mServerPort));
+                return new NioConnection(channel, Codec.defaultCodecFactory, mConnectionConfig, mReactor);
+            } else {
+                Socket sock = new Socket(mServerAddr, mServerPort);
+                return new StreamConnection(sock, Codec.defaultCodecFactory, mConnectionConfig, mIsDaemon);
+            }
+        }
+
         @Override
         public void run() {
-            Logger.info("Client started, connecting to " + mServerAddr + ", port: " + mServerPort +
-                    ", nodeId: " + getNodeId());
+            String serverAddress = mLocalAddress != null ? mLocalAddress : mServerAddr + ", port: " + mServerPort;
+            Logger.info("Client started, connecting to " + serverAddress + ", nodeId: " + getNodeId());
+            int attempt = 0;
             while (!mClosed) {
+                Connection[] stripes = new Connection[mConnectionConfig.getConnectionStripes()];
+                long connectedAt = 0;
                 try {
-                    Socket sock = new Socket(mServerAddr, mServerPort);
-                    mServerConnection = new Connection(sock, Codec.defaultCodecFactory, mIsDaemon);
-                    mServerConnection.open();
-                    onConnect();
-                    mServerConnection.setConnectionListener(ClientNode.this);
-                    mServerConnection.waitForClose();
-                    mServerConnection = null;
+                    for (int i = 0; i < stripes.length; i++) {
+                        stripes[i] = connect();
+                    }
+                    // listeners are set before the connections are opened, so that a retry hint sent by the server
+                    // right before it closes the connection isn't missed
+                    stripes[0].setConnectionListener(ClientNode.this);
+                    for (int i = 1; i < stripes.length; i++) {
+                        stripes[i].setConnectionListener(new StripeListener(stripes[i], stripes[0]));
+                    }
+                    for (Connection con : stripes) {
+                        con.open();
+                    }
+                    mServerConnection = stripes[0];
+                    mStripes = stripes;
+                    connectedAt = System.currentTimeMillis();
+                    if (onConnect(stripes) && mOutbox != null) {
+                        flushOutbox(stripes);
+                    }
+                    // closing any connection closes the primary connection, the client reconnects all of them
+                    stripes[0].waitForClose();
                 } catch (IOException | InterruptedException e) {
                     // Server is not available, this is silently ignored
                     // wait a little and try to reconnect
                 }
-                if (!mClosed) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ie) {
-                        // whatever, keep on truckin'...
-                    }
+                mServerConnection = null;
+                mStripes = null;
+                closeAll(stripes);
+
+                if (connectedAt != 0 && System.currentTimeMillis() - connectedAt >= STABLE_CONNECTION_MILLIS) {
+                    // lost a working connection, start over with an immediate retry
+                    attempt = 0;
+                }
+                waitBeforeReconnect(getReconnectDelay(attempt++));
+            }
+            if (mReactor != null) {
+                mReactor.close();
+            }
+        }
+
+        /**
+         * Returns the delay in milliseconds before the given connection attempt (counting from 0 after a connection
+         * was lost). The first retry is immediate, following retries back off exponentially. Delays are randomized
+         * between half and the full value to spread the reconnects of many clients. A retry hint sent by the server
+         * replaces the computed delay.
+         */
+        private long getReconnectDelay(int attempt) {
+            long delay = mRetryHintMillis;
+            mRetryHintMillis = 0;
+            if (delay <= 0) {
+                if (attempt == 0) {
+                    return 0;
+                }
+                long initial = mConnectionConfig.getReconnectInitialDelay(TimeUnit.MILLISECONDS);
+                long max = mConnectionConfig.getReconnectMaxDelay(TimeUnit.MILLISECONDS);
+                delay = initial;
+                for (int i = 1; i < attempt && delay < max; i++) {
+                    delay *= 2;
+                }
+                delay = Math.min(delay, max);
+            }
+            long half = delay / 2;
+            return half + (long) (mRandom.nextDouble() * (delay - half));
+        }
+
+        private synchronized void waitBeforeReconnect(long delayMillis) {
+            long deadline = System.currentTimeMillis() + delayMillis;
+            long remaining = delayMillis;
+            try {
+                while (!mClosed && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
                 }
+            } catch (InterruptedException e) {
+                // whatever, keep on truckin'...
             }
         }
     }
@@ -0,0 +1,19 @@
+package de.fabmax.pubsub;
+
+/**
+ * Compression algorithm used for sent frames. Compression is negotiated per connection: The client requests the
+ * algorithm set in its {@link de.fabmax.pubsub.ConnectionConfig#setCompression(Compression)} and the server accepts it
+ * if compression is enabled in its own configuration. Every frame is compressed on its own, frames smaller than the
+ * configured threshold and frames, which don't get smaller, are sent uncompressed.
+ */
+public enum Compression {
+
+    /** Frames are sent uncompressed. This is the default. */
+    NONE,
+
+    /** Deflate, best compression ratio, useful for slow links, e.g. between sites. */
+    DEFLATE,
+
+    /** LZF, a fast LZ77 variant, much faster than deflate but compresses less. */
+    LZF
+}
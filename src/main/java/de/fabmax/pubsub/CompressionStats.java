@@ -0,0 +1,116 @@
+package de.fabmax.pubsub;
+
+/**
+ * Snapshot of the compression statistics of a connection. Sent bytes are counted for all frames sent while
+ * compression was enabled, including frames which were sent uncompressed because they were too small or didn't get
+ * smaller.
+ *
+ * @see de.fabmax.pubsub.ConnectionConfig#setCompression(Compression)
+ */
+public class CompressionStats {
+
+    private final Compression mCompression;
+    private final long mCompressedFrames;
+    private final long mUncompressedFrames;
+    private final long mBytesBeforeCompression;
+    private final long mBytesAfterCompression;
+    private final long mReceivedCompressedFrames;
+    private final long mReceivedCompressedBytes;
+    private final long mReceivedDecompressedBytes;
+
+    CompressionStats(Compression compression, long compressedFrames, long uncompressedFrames,
+                     long bytesBeforeCompression, long bytesAfterCompression, long receivedCompressedFrames,
+                     long receivedCompressedBytes, long receivedDecompressedBytes) {
+        mCompression = compression;
+        mCompressedFrames = compressedFrames;
+        mUncompressedFrames = uncompressedFrames;
+        mBytesBeforeCompression = bytesBeforeCompression;
+        mBytesAfterCompression = bytesAfterCompression;
+        mReceivedCompressedFrames = receivedCompressedFrames;
+        mReceivedCompressedBytes = receivedCompressedBytes;
+        mReceivedDecompressedBytes = receivedDecompressedBytes;
+    }
+
+    /**
+     * Returns the compression negotiated for sent frames, {@link de.fabmax.pubsub.Compression#NONE} if compression
+     * is not (yet) enabled.
+     */
+    public Compression getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Returns the number of frames sent compressed.
+     */
+    public long getCompressedFrameCount() {
+        return mCompressedFrames;
+    }
+
+    /**
+     * Returns the number of frames sent uncompressed while compression was enabled.
+     */
+    public long getUncompressedFrameCount() {
+        return mUncompressedFrames;
+    }
+
+    /**
+     * Returns the total size of all frames sent while compression was enabled, before compression.
+     */
+    public long getBytesBeforeCompression() {
+        return mBytesBeforeCompression;
+    }
+
+    /**
+     * Returns the total size of all frames sent while compression was enabled, after compression.
+     */
+    public long getBytesAfterCompression() {
+        return mBytesAfterCompression;
+    }
+
+    /**
+     * Returns the achieved compression ratio of sent frames (uncompressed size / compressed size), 1 if nothing was
+     * sent with compression enabled.
+     */
+    public double getRatio() {
+        return mBytesAfterCompression > 0 ? (double) mBytesBeforeCompression / mBytesAfterCompression : 1.0;
+    }
+
+    /**
+     * Returns the number of received compressed frames.
+     */
+    public long getReceivedCompressedFrameCount() {
+        return mReceivedCompressedFrames;
+    }
+
+    /**
+     * Returns the total size of all received compressed frames.
+     */
+    public long getReceivedCompressedBytes() {
+        return mReceivedCompressedBytes;
+    }
+
+    /**
+     * Returns the total size of all received compressed frames after decompression.
+     */
+    public long getReceivedDecompressedBytes() {
+        return mReceivedDecompressedBytes;
+    }
+
+    /**
+     * Returns the compression ratio of received compressed frames (decompressed size / compressed size), 1 if no
+     * compressed frames were received.
+     */
+    public double getReceivedRatio() {
+        return mReceivedCompressedBytes > 0 ? (double) mReceivedDecompressedBytes / mReceivedCompressedBytes : 1.0;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStats{compression=" + mCompression + ", compressed=" + mCompressedFrames +
+                ", uncompressed=" + mUncompressedFrames + ", bytes=" + mBytesBeforeCompression + "->" +
+                mBytesAfterCompression + String.format(", ratio=%.2f", getRatio()) +
+                ", receivedCompressed=" + mReceivedCompressedFrames + ", receivedBytes=" +
+                mReceivedCompressedBytes + "->" + mReceivedDecompressedBytes +
+                String.format(", receivedRatio=%.2f", getReceivedRatio()) + "}";
+    }
+}
@@ -3,179 +3,381 @@ package de.fabmax.pubsub;
 import de.fabmax.pubsub.codec.Codec;
 import org.pmw.tinylog.Logger;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Created by Max on 24.02.2015.
+ * Base class of all connection implementations. A connection transports encoded messages between a
+ * {@link de.fabmax.pubsub.ClientNode} and the {@link de.fabmax.pubsub.ClientHandler} serving it on server side.
  */
-class Connection {
+abstract class Connection {
 
-    private Socket mSocket;
+    /** Minimum time {@link #sendMessageWaiting(Message)} waits for free space before checking the connection state */
+    private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
-    private InputStream mInStream;
-    private OutputStream mOutStream;
+    protected ConnectionListener mListener;
+    protected final SendQueue mSendQueue;
+    private final ConnectionConfig mConfig;
+    private volatile boolean mClosed = false;
+    private boolean mRelayMode = false;
 
-    private final ConnectionReceiver mReceiver;
-    private final ConnectionSender mSender;
+    // written by the thread writing to the socket only
+    private volatile long mWriteStartNanos = 0;
+    private volatile long mBytesWritten = 0;
 
-    private ConnectionListener mListener;
-    private boolean mClosed = false;
+    // compressor is set after negotiation and used by the sending thread, decompressor is used by the receiving thread
+    private volatile FrameCompressor mCompressor = null;
+    private volatile FrameDecompressor mDecompressor = null;
 
-    public Connection(Socket socket, Codec.CodecFactory<?> codecFactory, boolean isDaemon) throws IOException {
-        mSocket = socket;
+    private volatile SlowConsumerConfig.DegradedMode mDegradedMode = null;
+    private volatile int mSampleRate = 1;
+    private final AtomicLong mSampleCounter = new AtomicLong(0);
 
-        mInStream = mSocket.getInputStream();
-        mOutStream = mSocket.getOutputStream();
-
-        mReceiver = new ConnectionReceiver(codecFactory);
-        mSender = new ConnectionSender(codecFactory);
-        mReceiver.setDaemon(isDaemon);
-        mSender.setDaemon(isDaemon);
+    /**
+     * @param config          connection settings, overflow policies are looked up for every sent message
+     * @param parkingStrategy parking strategy used by the consumer of the send queue
+     */
+    protected Connection(ConnectionConfig config, ParkingStrategy parkingStrategy) {
+        mConfig = config;
+        mSendQueue = new SendQueue(config.getSendQueueCapacity(), parkingStrategy);
     }
 
     public void setConnectionListener(ConnectionListener connectionListener) {
         mListener = connectionListener;
-        mReceiver.setMessageListener(connectionListener);
     }
 
-    public void sendMessage(Message message) {
-        if (!mClosed) {
-            mSender.sendData(message);
-        } else {
-            Logger.debug("Discarding message: connection is closed");
-        }
+    /**
+     * Sets whether the receiving codec of this connection is operated in relay mode. Must be called before the
+     * connection is opened.
+     *
+     * @see de.fabmax.pubsub.codec.Codec#setRelayMode(boolean)
+     */
+    public void setRelayMode(boolean relayMode) {
+        mRelayMode = relayMode;
     }
 
-    public void open() {
-        mReceiver.start();
-        mSender.start();
+    public boolean isRelayMode() {
+        return mRelayMode;
     }
 
-    public synchronized void close() {
-        boolean wasClosed = mClosed;
-        mClosed = true;
+    public abstract String getRemoteAddress();
 
-        // sender thread might be blocked in BlockingQueue.take()
-        mSender.interrupt();
+    public boolean sendMessage(Message message) {
+        SharedFrame frame = new SharedFrame(message);
+        boolean queued = sendFrame(frame);
+        frame.release();
+        return queued;
+    }
 
-        if (mOutStream != null) {
-            try {
-                mOutStream.close();
-            } catch(IOException e) {
-                Logger.error("Failed closing output stream", e);
+    /**
+     * Queues the given message for sending, waits for free space in the send queue until the message was queued or
+     * the connection was closed. The channel's overflow policy and degraded mode are not applied. Is used for
+     * messages which must not be dropped and must not be called by an NIO event loop thread.
+     *
+     * @return true if the message was queued, false if the connection was closed
+     */
+    boolean sendMessageWaiting(Message message) {
+        SharedFrame frame = new SharedFrame(message);
+        int lane = SendQueue.getLane(message);
+        long blockNanos = Math.max(mConfig.getOverflowBlockTime(TimeUnit.NANOSECONDS), MIN_WAIT_NANOS);
+        try {
+            while (!isClosed() && !Thread.currentThread().isInterrupted()) {
+                if (mSendQueue.tryOffer(frame, lane, blockNanos)) {
+                    onFrameQueued();
+                    return true;
+                }
             }
-            mOutStream = null;
+            return false;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Queues the given control message, which marks a position in the stream of normal messages (e.g. the start of a
+     * replay). The message is queued even if the send queue is full and never blocks the caller.
+     *
+     * @return true if the message was queued, false if the connection is closed
+     */
+    boolean sendStreamMarker(Message message) {
+        if (isClosed()) {
+            Logger.debug("Discarding message: connection is closed");
+            return false;
         }
+        SharedFrame frame = new SharedFrame(message);
+        mSendQueue.offerMarker(frame, SendQueue.getLane(message));
+        frame.release();
+        onFrameQueued();
+        return true;
+    }
 
-        if (mInStream != null) {
-            try {
-                mInStream.close();
-            } catch(IOException e) {
-                Logger.error("Failed closing input stream", e);
-            }
-            mInStream = null;
+    /**
+     * Queues the given frame for sending. The frame is retained while it is queued and released after it was written
+     * or dropped. Control messages and high priority messages are sent before normal priority messages. If the send
+     * queue is full, the frame is handled according to the overflow policy of its channel.
+     *
+     * @return true if the frame was queued, false if it was dropped
+     */
+    public boolean sendFrame(SharedFrame frame) {
+        if (isClosed()) {
+            Logger.debug("Discarding message: connection is closed");
+            return false;
         }
 
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch(IOException e) {
-                Logger.error("Failed closing socket", e);
+        Message message = frame.getMessage();
+        int lane = SendQueue.getLane(message);
+        OverflowPolicy policy = mConfig.getOverflowPolicy(message.getChannelId());
+        if (ControlMessages.CONTROL_CHANNEL_ID.equals(message.getChannelId())) {
+            // control messages must neither be reordered nor replaced
+            policy = OverflowPolicy.BLOCK;
+        } else {
+            SlowConsumerConfig.DegradedMode degradedMode = mDegradedMode;
+            if (degradedMode == SlowConsumerConfig.DegradedMode.CONFLATE) {
+                mSendQueue.conflate(frame, lane);
+                onFrameQueued();
+                return true;
+            } else if (degradedMode == SlowConsumerConfig.DegradedMode.SAMPLE &&
+                    mSampleCounter.getAndIncrement() % mSampleRate != 0) {
+                return false;
             }
-            mSocket = null;
         }
+        long blockNanos = canBlock() ? mConfig.getOverflowBlockTime(TimeUnit.NANOSECONDS) : 0;
 
-        if (!wasClosed) {
-            if (mListener != null) {
-                mListener.onConnectionClosed();
-            }
-            Logger.debug("Connection closed");
+        if (mSendQueue.offer(frame, lane, policy, blockNanos)) {
+            onFrameQueued();
+            return true;
+        } else if (policy == OverflowPolicy.DISCONNECT) {
+            Logger.warn("Closing connection to " + getRemoteAddress() + ": Send queue is full");
+            close();
+        } else {
+            Logger.error("Unable to send data: Client send queue is full");
         }
+        return false;
     }
 
-    public void waitForClose() throws InterruptedException {
-        mSender.join();
+    /**
+     * Returns the codec used to encode sent frames or null if this connection doesn't encode frames. Compression is
+     * only supported by connections which encode frames.
+     */
+    protected Codec getSendCodec() {
+        return null;
     }
 
-    public boolean isClosed() {
-        return mClosed;
+    /**
+     * Enables compression of sent frames, is called after compression was negotiated with the peer. Received
+     * compressed frames are always decompressed, regardless of this setting.
+     *
+     * @param threshold minimum size of compressed frames in bytes
+     */
+    void setCompression(Compression compression, int threshold) {
+        Codec codec = getSendCodec();
+        if (codec != null && compression != Compression.NONE) {
+            mCompressor = new FrameCompressor(compression, threshold, codec);
+        } else {
+            mCompressor = null;
+        }
     }
 
-    private class ConnectionReceiver extends Thread {
-        private final Codec mCodec;
-        private MessageListener mMessageListener;
+    /**
+     * Returns a snapshot of the compression statistics of this connection.
+     */
+    public CompressionStats getCompressionStats() {
+        FrameCompressor compressor = mCompressor;
+        FrameDecompressor decompressor = mDecompressor;
+        if (compressor == null) {
+            return new CompressionStats(Compression.NONE, 0, 0, 0, 0,
+                    decompressor != null ? decompressor.getReceivedFrames() : 0,
+                    decompressor != null ? decompressor.getCompressedBytes() : 0,
+                    decompressor != null ? decompressor.getDecompressedBytes() : 0);
+        }
+        return new CompressionStats(compressor.getCompression(), compressor.getCompressedFrames(),
+                compressor.getUncompressedFrames(), compressor.getBytesBeforeCompression(),
+                compressor.getBytesAfterCompression(),
+                decompressor != null ? decompressor.getReceivedFrames() : 0,
+                decompressor != null ? decompressor.getCompressedBytes() : 0,
+                decompressor != null ? decompressor.getDecompressedBytes() : 0);
+    }
+
+    /**
+     * Returns the data to write for the given frame, which is compressed if compression is enabled. Must be called by
+     * the sending thread.
+     */
+    protected byte[] encodeFrame(SharedFrame frame, Codec codec) {
+        FrameCompressor compressor = mCompressor;
+        if (compressor == null) {
+            return frame.getEncoded(codec);
+        }
+        byte[] data = frame.getCompressed(compressor);
+        compressor.frameSent(frame.getEncoded(codec).length, data);
+        return data;
+    }
 
-        public ConnectionReceiver(Codec.CodecFactory<?> codecFactory) {
-            mCodec = codecFactory.createCodec();
+    /**
+     * Passes all messages decoded by the given codec to the connection listener, compressed frames are decompressed
+     * first. Must be called by the receiving thread. Stops when reading is paused, the remaining messages are passed
+     * by the next call.
+     */
+    protected void dispatchReceivedMessages(Codec codec) {
+        // messages of a compressed frame left over by a paused call come first
+        if (mDecompressor != null && !dispatchMessages(mDecompressor.getCodec())) {
+            return;
         }
+        while (codec.hasMessage() && mListener != null && !isReadPaused()) {
+            Message msg = codec.getNextMessage();
+            if (!FrameDecompressor.isCompressed(msg)) {
+                mListener.onMessageReceived(msg);
+                continue;
+            }
 
-        public void setMessageListener(MessageListener messageListener) {
-            mMessageListener = messageListener;
+            if (mDecompressor == null) {
+                mDecompressor = new FrameDecompressor(codec);
+            }
+            Codec decompressed = mDecompressor.decompress(msg);
+            if (decompressed != null && !dispatchMessages(decompressed)) {
+                return;
+            }
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                byte[] buffer = new byte[4096];
-                InputStream inStream = mInStream;
-                while (!isClosed()) {
-                    int len = inStream.read(buffer);
-                    if (len > 0) {
-                        mCodec.decodeData(buffer, 0, len);
-                        while (mCodec.hasMessage() && mMessageListener != null) {
-                            Message msg = mCodec.getNextMessage();
-                            mMessageListener.onMessageReceived(msg);
-                        }
-                    } else if (len < 0) {
-                        // connection closed
-                        close();
-                    }
-                }
-            } catch (IOException e) {
-                // if closed socket was closed on purpose
-                if (!isClosed()) {
-                    Logger.debug("Connection closed by server", e);
-                }
-                close();
+    /**
+     * @return false if reading was paused before all messages were passed to the listener
+     */
+    private boolean dispatchMessages(Codec codec) {
+        while (codec.hasMessage() && mListener != null) {
+            if (isReadPaused()) {
+                return false;
             }
+            mListener.onMessageReceived(codec.getNextMessage());
         }
+        return true;
+    }
+
+    /**
+     * Returns true while the connection doesn't read, because received messages can't be dispatched right now, see
+     * {@link de.fabmax.pubsub.NioConnection#pauseReading()}.
+     */
+    protected boolean isReadPaused() {
+        return false;
     }
 
-    private class ConnectionSender extends Thread {
-        private final ArrayBlockingQueue<Message> mSendQueue = new ArrayBlockingQueue<>(1000);
-        private final Codec mCodec;
+    /**
+     * Is called after a frame was queued by {@link #sendFrame(SharedFrame)}.
+     */
+    protected void onFrameQueued() {
+    }
+
+    /**
+     * Returns whether the calling thread may be blocked by {@link de.fabmax.pubsub.OverflowPolicy#BLOCK}.
+     */
+    protected boolean canBlock() {
+        return true;
+    }
+
+    /**
+     * Returns the number of normal priority frames, which can currently be queued without overflowing the send queue.
+     */
+    int getSendQueueSpace() {
+        return mSendQueue.remainingCapacity(SendQueue.LANE_NORMAL);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this connection's send queue.
+     */
+    public QueueStats getSendQueueStats() {
+        return mSendQueue.getStats();
+    }
+
+    /**
+     * Sets how messages are handled while the peer is a slow consumer, null restores normal operation.
+     * {@link de.fabmax.pubsub.SlowConsumerConfig.DegradedMode#EVICT} is handled by the caller by closing the
+     * connection.
+     */
+    void setDegradedMode(SlowConsumerConfig.DegradedMode degradedMode, int sampleRate) {
+        mSampleRate = sampleRate;
+        mDegradedMode = degradedMode;
+    }
+
+    SlowConsumerConfig.DegradedMode getDegradedMode() {
+        return mDegradedMode;
+    }
+
+    /**
+     * Returns the number of frames currently queued for sending.
+     */
+    int getSendQueueDepth() {
+        return mSendQueue.size();
+    }
+
+    /**
+     * Returns the total number of bytes written to the socket.
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns for how long the current write to the socket is stalled or 0 if no write is pending.
+     */
+    long getWriteStallNanos() {
+        long start = mWriteStartNanos;
+        return start != 0 ? System.nanoTime() - start : 0;
+    }
+
+    /**
+     * Must be called by implementations before data is written to the socket. Marks the start of a possibly
+     * stalling write, if no write is pending already.
+     */
+    protected void writeStarted() {
+        if (mWriteStartNanos == 0) {
+            // nanoTime() might return 0, which is treated as no pending write, the error is negligible
+            mWriteStartNanos = System.nanoTime();
+        }
+    }
 
-        public ConnectionSender(Codec.CodecFactory codecFactory) {
-            mCodec = codecFactory.createCodec();
+    /**
+     * Must be called by implementations after data was written to the socket.
+     *
+     * @param bytes    number of bytes written
+     * @param complete true if no more data is pending, false if the socket didn't accept all data
+     */
+    protected void writeFinished(long bytes, boolean complete) {
+        mBytesWritten += bytes;
+        if (complete) {
+            mWriteStartNanos = 0;
         }
+    }
 
-        public void sendData(Message message) {
-            if (!mSendQueue.offer(message)) {
-                Logger.error("Unable to send data: Client send queue is full");
-            }
+    public abstract void open();
+
+    public abstract void close();
+
+    public abstract void waitForClose() throws InterruptedException;
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Marks this connection as closed and drops all queued frames.
+     *
+     * @return true if the connection was already closed before
+     */
+    protected synchronized boolean markClosed() {
+        boolean wasClosed = mClosed;
+        mClosed = true;
+        if (!wasClosed) {
+            mSendQueue.clear();
         }
+        return wasClosed;
+    }
 
-        @Override
-        public void run() {
-            try {
-                while (!isClosed()) {
-                    byte[] data = mCodec.encodeMessage(mSendQueue.take());
-                    OutputStream out = mOutStream;
-                    if (out != null) {
-                        out.write(data);
-                    }
-                }
-            } catch (IOException | InterruptedException e) {
-                // if closed socket was closed on purpose
-                if (!isClosed()) {
-                    Logger.error("Error in client sender", e);
-                }
-                close();
-            }
+    /**
+     * Notifies the connection listener that this connection was closed. Should be called exactly once by
+     * implementations.
+     */
+    protected void fireConnectionClosed() {
+        if (mListener != null) {
+            mListener.onConnectionClosed();
         }
     }
 }
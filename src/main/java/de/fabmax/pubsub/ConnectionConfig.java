@@ -0,0 +1,520 @@
+package de.fabmax.pubsub;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the settings used by a {@link de.fabmax.pubsub.Node} for creating its connections. Settings must be changed
+ * before the node is opened, changes made afterwards only affect connections created later on.
+ */
+public class ConnectionConfig {
+
+    private TransportMode mTransportMode = TransportMode.BLOCKING;
+    private int mNioThreads = Runtime.getRuntime().availableProcessors();
+    private boolean mRelayMode = false;
+    private int mMaxBatchSize = 64 * 1024;
+    private long mLingerTimeNanos = 0;
+    private int mSendQueueCapacity = 1000;
+    private ParkingStrategy mParkingStrategy = ParkingStrategy.PARK;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private final ConcurrentHashMap<String, OverflowPolicy> mChannelOverflowPolicies = new ConcurrentHashMap<>();
+    private long mOverflowBlockTimeNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private SlowConsumerConfig mSlowConsumerConfig = null;
+    private ThreadFactory mThreadFactory = null;
+    private int mDispatchThreads = Runtime.getRuntime().availableProcessors();
+    private int mDispatchQueueCapacity = 1000;
+    private int mSharedMemoryRingSize = 1024 * 1024;
+    private int mMaxMulticastPacketSize = 1472;
+    private int mMulticastTimeToLive = 1;
+    private int mMulticastRetransmitBufferSize = 4 * 1024 * 1024;
+    private Compression mCompression = Compression.NONE;
+    private int mCompressionThreshold = 512;
+    private int mConnectionStripes = 1;
+    private int mOutboxCapacity = 0;
+    private long mOutboxTimeToLiveNanos = 0;
+    private OverflowPolicy mOutboxOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private File mOutboxSpillFile = null;
+    private int mOutboxSpillFileSize = 0;
+    private long mReconnectInitialDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long mReconnectMaxDelayNanos = TimeUnit.SECONDS.toNanos(10);
+    private long mReconnectHintNanos = 0;
+    private int mMaxAcceptRate = 0;
+
+    public TransportMode getTransportMode() {
+        return mTransportMode;
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+        if (transportMode == null) {
+            throw new NullPointerException("transportMode must not be null");
+        }
+        mTransportMode = transportMode;
+    }
+
+    public int getNioThreads() {
+        return mNioThreads;
+    }
+
+    /**
+     * Sets the number of selector threads used in {@link de.fabmax.pubsub.TransportMode#NIO} mode. Default is the
+     * number of available processors.
+     */
+    public void setNioThreads(int nioThreads) {
+        if (nioThreads < 1) {
+            throw new IllegalArgumentException("nioThreads must be >= 1");
+        }
+        mNioThreads = nioThreads;
+    }
+
+    public boolean isRelayMode() {
+        return mRelayMode;
+    }
+
+    /**
+     * Enables or disables relay mode for messages received by a {@link de.fabmax.pubsub.ServerNode}. In relay mode,
+     * the server decodes only the routing information of received messages and forwards the original encoded frames
+     * to other clients. Message data is decoded only if it is accessed by a server-side listener. Disabled by default,
+     * has no effect on client nodes.
+     */
+    public void setRelayMode(boolean relayMode) {
+        mRelayMode = relayMode;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes a connection writes to its socket at once. Queued messages are coalesced into
+     * batches of up to this size, messages larger than this are written on their own. Default is 64 kB.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be >= 1");
+        }
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public long getLingerTime(TimeUnit unit) {
+        return unit.convert(mLingerTimeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time a blocking connection waits for more messages before it writes a batch, which is not yet full.
+     * Higher values result in fewer and larger writes at the cost of latency. Default is 0, i.e. everything queued is
+     * written immediately. Connections in {@link de.fabmax.pubsub.TransportMode#NIO} mode never linger, they
+     * coalesce whatever is queued when the socket becomes writable.
+     */
+    public void setLingerTime(long lingerTime, TimeUnit unit) {
+        if (lingerTime < 0) {
+            throw new IllegalArgumentException("lingerTime must be >= 0");
+        }
+        mLingerTimeNanos = unit.toNanos(lingerTime);
+    }
+
+    public int getSendQueueCapacity() {
+        return mSendQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages queued for sending per connection. Messages sent while the queue is full are
+     * handled according to the {@link de.fabmax.pubsub.OverflowPolicy}. Default is 1000.
+     *
+     * @see de.fabmax.pubsub.QueueStats
+     */
+    public void setSendQueueCapacity(int sendQueueCapacity) {
+        if (sendQueueCapacity < 1) {
+            throw new IllegalArgumentException("sendQueueCapacity must be >= 1");
+        }
+        mSendQueueCapacity = sendQueueCapacity;
+    }
+
+    public ParkingStrategy getParkingStrategy() {
+        return mParkingStrategy;
+    }
+
+    /**
+     * Sets how the sender threads of {@link de.fabmax.pubsub.TransportMode#BLOCKING} connections wait for new
+     * messages. Default is {@link de.fabmax.pubsub.ParkingStrategy#PARK}.
+     */
+    public void setParkingStrategy(ParkingStrategy parkingStrategy) {
+        if (parkingStrategy == null) {
+            throw new NullPointerException("parkingStrategy must not be null");
+        }
+        mParkingStrategy = parkingStrategy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Sets what connections do with messages sent while their send queue is full. Applies to all channels without a
+     * channel specific policy. Default is {@link de.fabmax.pubsub.OverflowPolicy#DROP_NEWEST}.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy must not be null");
+        }
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the overflow policy used for messages of the given channel.
+     */
+    public OverflowPolicy getOverflowPolicy(String channelId) {
+        OverflowPolicy policy = channelId != null ? mChannelOverflowPolicies.get(channelId) : null;
+        return policy != null ? policy : mOverflowPolicy;
+    }
+
+    /**
+     * Sets the overflow policy used for messages of the given channel, null restores the default policy. Unlike the
+     * other settings, channel policies can also be changed while the node is open.
+     */
+    public void setOverflowPolicy(String channelId, OverflowPolicy overflowPolicy) {
+        if (overflowPolicy != null) {
+            mChannelOverflowPolicies.put(channelId, overflowPolicy);
+        } else {
+            mChannelOverflowPolicies.remove(channelId);
+        }
+    }
+
+    public long getOverflowBlockTime(TimeUnit unit) {
+        return unit.convert(mOverflowBlockTimeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time a publishing thread is blocked with {@link de.fabmax.pubsub.OverflowPolicy#BLOCK} while
+     * the send queue is full. Default is 100 ms.
+     */
+    public void setOverflowBlockTime(long blockTime, TimeUnit unit) {
+        if (blockTime < 0) {
+            throw new IllegalArgumentException("blockTime must be >= 0");
+        }
+        mOverflowBlockTimeNanos = unit.toNanos(blockTime);
+    }
+
+    public SlowConsumerConfig getSlowConsumerConfig() {
+        return mSlowConsumerConfig;
+    }
+
+    /**
+     * Enables slow consumer detection on {@link de.fabmax.pubsub.ServerNode}s with the given thresholds, null
+     * disables it. Disabled by default, has no effect on client nodes.
+     */
+    public void setSlowConsumerConfig(SlowConsumerConfig slowConsumerConfig) {
+        mSlowConsumerConfig = slowConsumerConfig;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return mThreadFactory;
+    }
+
+    /**
+     * Sets the factory used to create the threads of a node: Sender and receiver threads of
+     * {@link de.fabmax.pubsub.TransportMode#BLOCKING} connections, the server's acceptor and monitor threads, the
+     * client's connect thread and the service discovery / advertising threads. The selector threads of
+     * {@link de.fabmax.pubsub.TransportMode#NIO} connections are always platform threads. Default is null, i.e.
+     * platform threads are used, which are daemon threads if the node was created as daemon.
+     *
+     * With {@link de.fabmax.pubsub.util.ThreadFactories#virtualThreads()} blocking connections are served by virtual
+     * threads, which scales to a large number of connections.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    public int getDispatchThreads() {
+        return mDispatchThreads;
+    }
+
+    /**
+     * Sets the number of worker threads, which call the listeners of channels with a dispatch mode other than
+     * {@link de.fabmax.pubsub.DispatchMode#INLINE}. Workers are started when the first message is dispatched to them.
+     * Default is the number of available processors.
+     *
+     * @see de.fabmax.pubsub.Channel#setDispatchMode(DispatchMode)
+     */
+    public void setDispatchThreads(int dispatchThreads) {
+        if (dispatchThreads < 1) {
+            throw new IllegalArgumentException("dispatchThreads must be >= 1");
+        }
+        mDispatchThreads = dispatchThreads;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return mDispatchQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of received messages queued per dispatch worker. If a worker's queue is full, the
+     * receiving thread waits until there is space again, which slows down reading from the connection. NIO
+     * connections pause reading instead, without blocking their event loop. Default is 1000.
+     */
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        if (dispatchQueueCapacity < 1) {
+            throw new IllegalArgumentException("dispatchQueueCapacity must be >= 1");
+        }
+        mDispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public int getSharedMemoryRingSize() {
+        return mSharedMemoryRingSize;
+    }
+
+    /**
+     * Sets the size in bytes of each of the two ring buffers of a shared memory connection. The size is chosen by the
+     * client, it must be a power of two. Default is 1 MB.
+     *
+     * @see de.fabmax.pubsub.ServerNode#enableSharedMemoryTransport(String)
+     */
+    public void setSharedMemoryRingSize(int sharedMemoryRingSize) {
+        if (sharedMemoryRingSize < 4096 || Integer.bitCount(sharedMemoryRingSize) != 1) {
+            throw new IllegalArgumentException("sharedMemoryRingSize must be a power of two >= 4096");
+        }
+        mSharedMemoryRingSize = sharedMemoryRingSize;
+    }
+
+    public int getMaxMulticastPacketSize() {
+        return mMaxMulticastPacketSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a multicast datagram. Messages, which don't fit into a single datagram, are
+     * sent via TCP. Default is 1472, which avoids IP fragmentation on Ethernet.
+     *
+     * @see de.fabmax.pubsub.ServerNode#enableMulticast(String, String, int)
+     */
+    public void setMaxMulticastPacketSize(int maxMulticastPacketSize) {
+        if (maxMulticastPacketSize < 512 || maxMulticastPacketSize > 65507) {
+            throw new IllegalArgumentException("maxMulticastPacketSize must be between 512 and 65507");
+        }
+        mMaxMulticastPacketSize = maxMulticastPacketSize;
+    }
+
+    public int getMulticastTimeToLive() {
+        return mMulticastTimeToLive;
+    }
+
+    /**
+     * Sets the time to live of sent multicast datagrams. Default is 1, which restricts multicast delivery to the
+     * local network.
+     */
+    public void setMulticastTimeToLive(int multicastTimeToLive) {
+        if (multicastTimeToLive < 0 || multicastTimeToLive > 255) {
+            throw new IllegalArgumentException("multicastTimeToLive must be between 0 and 255");
+        }
+        mMulticastTimeToLive = multicastTimeToLive;
+    }
+
+    public int getMulticastRetransmitBufferSize() {
+        return mMulticastRetransmitBufferSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the encoded messages retained per multicast channel for retransmission to
+     * clients, which missed datagrams and fell back to TCP. Clients, which missed older messages, lose them. Default
+     * is 4 MB, 0 disables retransmission.
+     *
+     * @see de.fabmax.pubsub.ServerNode#enableMulticast(String, String, int)
+     */
+    public void setMulticastRetransmitBufferSize(int multicastRetransmitBufferSize) {
+        if (multicastRetransmitBufferSize < 0) {
+            throw new IllegalArgumentException("multicastRetransmitBufferSize must be >= 0");
+        }
+        mMulticastRetransmitBufferSize = multicastRetransmitBufferSize;
+    }
+
+    public Compression getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Sets the compression of sent frames. A client requests the given compression when it connects, a server
+     * accepts the compression requested by a client if its own compression is not
+     * {@link de.fabmax.pubsub.Compression#NONE}. Default is {@link de.fabmax.pubsub.Compression#NONE}.
+     *
+     * @see de.fabmax.pubsub.ClientNode#getCompressionStats()
+     */
+    public void setCompression(Compression compression) {
+        if (compression == null) {
+            throw new NullPointerException("compression must not be null");
+        }
+        mCompression = compression;
+    }
+
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Sets the minimum size in bytes of encoded frames to compress, smaller frames are sent uncompressed. Default is
+     * 512.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must be >= 0");
+        }
+        mCompressionThreshold = compressionThreshold;
+    }
+
+    public int getConnectionStripes() {
+        return mConnectionStripes;
+    }
+
+    /**
+     * Sets the number of connections a {@link de.fabmax.pubsub.ClientNode} opens to the server. Channels are
+     * assigned to connections by the hash of their channel ID, so that a large message only delays messages of
+     * channels carried by the same connection and sending is spread over multiple threads. Messages of a channel are
+     * always sent and received via the same connection, hence their order is kept. Control messages and
+     * point-to-point messages addressed to the client use the first connection. Must be set before the client is
+     * opened. Default is 1.
+     */
+    public void setConnectionStripes(int connectionStripes) {
+        if (connectionStripes < 1) {
+            throw new IllegalArgumentException("connectionStripes must be >= 1");
+        }
+        mConnectionStripes = connectionStripes;
+    }
+
+    public int getOutboxCapacity() {
+        return mOutboxCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages a {@link de.fabmax.pubsub.ClientNode} buffers in memory while it is not
+     * connected to the server. Buffered messages are sent in order after the client reconnected and registered its
+     * channels, messages published in the meantime are sent after them. Messages, which don't fit into the outbox,
+     * are handled according to {@link #setOutboxOverflowPolicy(OverflowPolicy)}. Default is 0, i.e. messages
+     * published while the client is not connected are discarded.
+     *
+     * @see de.fabmax.pubsub.ClientNode#getOutboxStats()
+     */
+    public void setOutboxCapacity(int outboxCapacity) {
+        if (outboxCapacity < 0) {
+            throw new IllegalArgumentException("outboxCapacity must be >= 0");
+        }
+        mOutboxCapacity = outboxCapacity;
+    }
+
+    public long getOutboxTimeToLive(TimeUnit unit) {
+        return unit.convert(mOutboxTimeToLiveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time a message stays in the outbox, older messages are discarded instead of being sent after
+     * the client reconnected. Default is 0, i.e. buffered messages don't expire.
+     */
+    public void setOutboxTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("timeToLive must be >= 0");
+        }
+        mOutboxTimeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    public OverflowPolicy getOutboxOverflowPolicy() {
+        return mOutboxOverflowPolicy;
+    }
+
+    /**
+     * Sets what happens to messages published while the outbox is full:
+     * {@link de.fabmax.pubsub.OverflowPolicy#DROP_NEWEST} discards the message,
+     * {@link de.fabmax.pubsub.OverflowPolicy#DROP_OLDEST} discards the oldest buffered message,
+     * {@link de.fabmax.pubsub.OverflowPolicy#CONFLATE} replaces a buffered message with the same channel and topic
+     * (messages in the spill file are not replaced) and {@link de.fabmax.pubsub.OverflowPolicy#BLOCK} blocks the
+     * publishing thread for up to the overflow block time. Default is DROP_NEWEST.
+     *
+     * @throws IllegalArgumentException if {@link de.fabmax.pubsub.OverflowPolicy#DISCONNECT} is given
+     */
+    public void setOutboxOverflowPolicy(OverflowPolicy outboxOverflowPolicy) {
+        if (outboxOverflowPolicy == null) {
+            throw new NullPointerException("outboxOverflowPolicy must not be null");
+        }
+        if (outboxOverflowPolicy == OverflowPolicy.DISCONNECT) {
+            throw new IllegalArgumentException("DISCONNECT is not supported by the outbox");
+        }
+        mOutboxOverflowPolicy = outboxOverflowPolicy;
+    }
+
+    public File getOutboxSpillFile() {
+        return mOutboxSpillFile;
+    }
+
+    public int getOutboxSpillFileSize() {
+        return mOutboxSpillFileSize;
+    }
+
+    /**
+     * Sets a file, which is memory-mapped with the given size and holds the messages, which don't fit into the
+     * in-memory outbox. Spilled messages are encoded with the default codec. The file is only used while the client is
+     * open and deleted when it is closed, it doesn't preserve messages across restarts. Null disables spilling, which
+     * is the default. Has no effect if the outbox capacity is 0.
+     */
+    public void setOutboxSpillFile(File file, int size) {
+        if (file != null && size < 1024) {
+            throw new IllegalArgumentException("size must be >= 1024");
+        }
+        mOutboxSpillFile = file;
+        mOutboxSpillFileSize = file != null ? size : 0;
+    }
+
+    public long getReconnectInitialDelay(TimeUnit unit) {
+        return unit.convert(mReconnectInitialDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getReconnectMaxDelay(TimeUnit unit) {
+        return unit.convert(mReconnectMaxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long a {@link de.fabmax.pubsub.ClientNode} waits between connection attempts. After a connection was
+     * lost, the client retries immediately once, then it waits for the initial delay, which is doubled on every
+     * further attempt up to the max delay. Every delay is randomized between half and the full value, so that clients
+     * losing their connection at the same time don't reconnect at the same time. A retry hint sent by the server
+     * replaces the next delay. Default is 100 ms initial and 10 s max delay.
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("initialDelay must be >= 1 and maxDelay >= initialDelay");
+        }
+        mReconnectInitialDelayNanos = unit.toNanos(initialDelay);
+        mReconnectMaxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    public long getReconnectHint(TimeUnit unit) {
+        return unit.convert(mReconnectHintNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the retry hint a {@link de.fabmax.pubsub.ServerNode} sends to its clients when it is closed. The clients
+     * wait a random time between half and the full hint before reconnecting, which spreads their reconnects after a
+     * server restart. Should be about the time a restart takes. Default is 0, i.e. no hint is sent and clients
+     * retry immediately.
+     */
+    public void setReconnectHint(long hint, TimeUnit unit) {
+        if (hint < 0) {
+            throw new IllegalArgumentException("hint must be >= 0");
+        }
+        mReconnectHintNanos = unit.toNanos(hint);
+    }
+
+    public int getMaxAcceptRate() {
+        return mMaxAcceptRate;
+    }
+
+    /**
+     * Sets the maximum number of TCP and unix domain socket connections a {@link de.fabmax.pubsub.ServerNode} accepts
+     * per second, every connection of a client using {@link #setConnectionStripes(int)} counts. Clients connecting in
+     * excess are rejected right away with a retry hint, which grows with the number of rejected clients, instead of
+     * setting up a client handler for them. Limits the load of reconnect storms, e.g. after a server restart. Default
+     * is 0, i.e. unlimited.
+     */
+    public void setMaxAcceptRate(int maxAcceptRate) {
+        if (maxAcceptRate < 0) {
+            throw new IllegalArgumentException("maxAcceptRate must be >= 0");
+        }
+        mMaxAcceptRate = maxAcceptRate;
+    }
+}
@@ -0,0 +1,77 @@
+package de.fabmax.pubsub;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the health metrics of a client connected to a {@link de.fabmax.pubsub.ServerNode}. Snapshots are taken
+ * by the server's slow consumer detection, see {@link de.fabmax.pubsub.SlowConsumerConfig}.
+ */
+public class ConsumerStats {
+
+    private final String mClientAddress;
+    private final long mNodeId;
+    private final int mQueueDepth;
+    private final long mWriteStallNanos;
+    private final long mThroughput;
+    private final SlowConsumerConfig.DegradedMode mDegradedMode;
+
+    ConsumerStats(String clientAddress, long nodeId, int queueDepth, long writeStallNanos, long throughput,
+                  SlowConsumerConfig.DegradedMode degradedMode) {
+        mClientAddress = clientAddress;
+        mNodeId = nodeId;
+        mQueueDepth = queueDepth;
+        mWriteStallNanos = writeStallNanos;
+        mThroughput = throughput;
+        mDegradedMode = degradedMode;
+    }
+
+    public String getClientAddress() {
+        return mClientAddress;
+    }
+
+    /**
+     * Returns the client's node ID or 0 if the client didn't register its node ID yet.
+     */
+    public long getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns the number of messages queued for the client.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns for how long the current write to the client's socket is stalled, 0 if no write is pending.
+     */
+    public long getWriteStall(TimeUnit unit) {
+        return unit.convert(mWriteStallNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of bytes per second written to the client during the last check interval.
+     */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    public boolean isDegraded() {
+        return mDegradedMode != null;
+    }
+
+    /**
+     * Returns the mode the client is handled in or null if the client is not degraded.
+     */
+    public SlowConsumerConfig.DegradedMode getDegradedMode() {
+        return mDegradedMode;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsumerStats{client=" + mClientAddress + ", nodeId=" + mNodeId + ", queueDepth=" + mQueueDepth +
+                ", writeStall=" + getWriteStall(TimeUnit.MILLISECONDS) + " ms, throughput=" + mThroughput +
+                " B/s, degradedMode=" + mDegradedMode + "}";
+    }
+}
@@ -13,6 +13,18 @@ class ControlMessages {
     static final String TOPIC_REGISTER_NODES = "registerNodes";
     static final String TOPIC_UNREGISTER_NODE = "unregisterNode";
     static final String TOPIC_REGISTER_CHANNEL = "registerChannel";
+    static final String TOPIC_MULTICAST_GROUP = "multicastGroup";
+    static final String TOPIC_MULTICAST_JOINED = "multicastJoined";
+    static final String TOPIC_MULTICAST_LEFT = "multicastLeft";
+    static final String TOPIC_MULTICAST_START = "multicastStart";
+    static final String TOPIC_MULTICAST_STOP = "multicastStop";
+    static final String TOPIC_MULTICAST_FRAME = "multicastFrame";
+    static final String TOPIC_REQUEST_COMPRESSION = "requestCompression";
+    static final String TOPIC_SELECT_COMPRESSION = "selectCompression";
+    static final String TOPIC_REGISTER_STRIPE = "registerStripe";
+    static final String TOPIC_RESUME_CHANNEL = "resumeChannel";
+    static final String TOPIC_REPLAY_START = "replayStart";
+    static final String TOPIC_RETRY_HINT = "retryHint";
 
     static Message registerNode(long nodeId) {
         Bundle data = new Bundle();
@@ -46,4 +58,139 @@ class ControlMessages {
         data.putString("channelId", channelId);
         return new Message(TOPIC_REGISTER_CHANNEL, data);
     }
+
+    /**
+     * Server to client: the given channel is delivered via the given multicast group.
+     */
+    static Message multicastGroup(String channelId, String address, int port, long serverNodeId) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putString("address", address);
+        data.putInt("port", port);
+        data.putLong("serverNodeId", serverNodeId);
+        return new Message(TOPIC_MULTICAST_GROUP, data);
+    }
+
+    /**
+     * Client to server: the client joined the multicast group of the given channel.
+     */
+    static Message multicastJoined(String channelId) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        return new Message(TOPIC_MULTICAST_JOINED, data);
+    }
+
+    /**
+     * Client to server: the client left the multicast group of the given channel and needs its messages via TCP,
+     * starting with the given sequence number.
+     */
+    static Message multicastLeft(String channelId, long nextSequence) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("sequence", nextSequence);
+        return new Message(TOPIC_MULTICAST_LEFT, data);
+    }
+
+    /**
+     * Server to client: messages of the given channel are taken from the multicast group starting with the given
+     * sequence number.
+     */
+    static Message multicastStart(String channelId, long sequence) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("sequence", sequence);
+        return new Message(TOPIC_MULTICAST_START, data);
+    }
+
+    /**
+     * Server to client: a message of the given multicast channel, which is too large for a datagram. Is received by
+     * all group members and takes the given sequence number of the group.
+     */
+    static Message multicastFrame(String channelId, long sequence, byte[] frame) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("sequence", sequence);
+        data.putByteArray("frame", frame);
+        Message message = new Message(TOPIC_MULTICAST_FRAME, data);
+        message.setChannelId(CONTROL_CHANNEL_ID);
+        return message;
+    }
+
+    /**
+     * Server to client: the given channel is not delivered via multicast anymore, the given sequence number is the
+     * one following the last datagram.
+     */
+    static Message multicastStop(String channelId, long endSequence) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("sequence", endSequence);
+        return new Message(TOPIC_MULTICAST_STOP, data);
+    }
+
+    /**
+     * Client to server: the client wants to exchange compressed frames with the given compression.
+     */
+    static Message requestCompression(Compression compression) {
+        Bundle data = new Bundle();
+        data.putString("compression", compression.name());
+        return new Message(TOPIC_REQUEST_COMPRESSION, data);
+    }
+
+    /**
+     * Server to client: both sides compress sent frames with the given compression, NONE if the request was declined.
+     */
+    static Message selectCompression(Compression compression) {
+        Bundle data = new Bundle();
+        data.putString("compression", compression.name());
+        return new Message(TOPIC_SELECT_COMPRESSION, data);
+    }
+
+    /**
+     * Client to server: the connection is an additional connection of the given node, see
+     * {@link de.fabmax.pubsub.ConnectionConfig#setConnectionStripes(int)}. Unlike registerNode, the node is not
+     * announced to other clients.
+     */
+    static Message registerStripe(long nodeId) {
+        Bundle data = new Bundle();
+        data.putLong("nodeId", nodeId);
+        return new Message(TOPIC_REGISTER_STRIPE, data);
+    }
+
+    /**
+     * Client to server: registers the given channel like registerChannel and requests the messages of the channel,
+     * which were published after the given sequence number of the given replay epoch.
+     */
+    static Message resumeChannel(String channelId, long epoch, long sequence) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("epoch", epoch);
+        data.putLong("sequence", sequence);
+        return new Message(TOPIC_RESUME_CHANNEL, data);
+    }
+
+    /**
+     * Server to client: the messages of the given channel following this one continue after the given sequence
+     * number. Missed is the number of requested messages, which are not replayed because they were not retained
+     * anymore or didn't fit into the send queue, -1 if the requested epoch is unknown.
+     */
+    static Message replayStart(String channelId, long epoch, long sequence, long missed) {
+        Bundle data = new Bundle();
+        data.putString("channelId", channelId);
+        data.putLong("epoch", epoch);
+        data.putLong("sequence", sequence);
+        data.putLong("missed", missed);
+        return new Message(TOPIC_REPLAY_START, data);
+    }
+
+    /**
+     * Server to client: the server is closing the connection, the client should wait a random time between half and
+     * the full given delay before reconnecting.
+     */
+    static Message retryHint(long delayMillis) {
+        Bundle data = new Bundle();
+        data.putLong("delay", delayMillis);
+        Message message = new Message(TOPIC_RETRY_HINT, data);
+        message.setChannelId(CONTROL_CHANNEL_ID);
+        return message;
+    }
 }
@@ -0,0 +1,27 @@
+package de.fabmax.pubsub;
+
+/**
+ * Determines on which thread the {@link de.fabmax.pubsub.MessageListener}s of a {@link de.fabmax.pubsub.Channel} are
+ * called, see {@link de.fabmax.pubsub.Channel#setDispatchMode(DispatchMode)}.
+ */
+public enum DispatchMode {
+
+    /**
+     * Listeners are called directly by the thread, which received the message. A slow listener delays reading
+     * further messages from the connection. This is the default.
+     */
+    INLINE,
+
+    /**
+     * Listeners are called by the node's dispatch worker pool, the receiving thread only enqueues the message.
+     * Messages of the channel are delivered one after another in the order they were received.
+     */
+    ORDERED_PER_CHANNEL,
+
+    /**
+     * Listeners are called by the node's dispatch worker pool, the receiving thread only enqueues the message.
+     * Messages with the same topic are delivered one after another in the order they were received, messages with
+     * different topics might be delivered concurrently.
+     */
+    ORDERED_PER_TOPIC
+}
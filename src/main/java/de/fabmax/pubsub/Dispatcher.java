@@ -0,0 +1,207 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.util.ThreadFactories;
+import org.pmw.tinylog.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker pool, which calls channel listeners for channels with a {@link de.fabmax.pubsub.DispatchMode} other than
+ * {@link de.fabmax.pubsub.DispatchMode#INLINE}. Every worker has its own bounded queue, messages are assigned to a
+ * worker by the hash of their ordering key. Hence, messages with the same key are always delivered by the same worker
+ * in the order they were dispatched.
+ *
+ * If the queue of a worker is full, the dispatching thread is blocked until there is space again. This throttles
+ * reading from the connection, which pushes back on the sender instead of dropping messages. NIO event loops are
+ * never blocked, since that would stall all connections served by the loop. Instead, the message is set aside by the
+ * worker and reading from the dispatching connection is paused until the worker took the message.
+ *
+ * Workers are started on the first dispatched message, using the thread factory and settings of the node's
+ * {@link de.fabmax.pubsub.ConnectionConfig}. After the dispatcher was closed, messages are delivered inline.
+ */
+class Dispatcher {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Node mNode;
+    private volatile Worker[] mWorkers = null;
+    private volatile boolean mClosed = false;
+
+    public Dispatcher(Node node) {
+        mNode = node;
+    }
+
+    /**
+     * Enqueues the given message for delivery to the listeners of the given channel. Blocks if the responsible
+     * worker's queue is full, unless called by a NIO event loop.
+     */
+    public void dispatch(Channel channel, Message message, DispatchMode mode) {
+        Worker[] workers = mWorkers;
+        if (workers == null) {
+            workers = start();
+            if (workers == null) {
+                // dispatcher was closed, don't start workers nobody would stop
+                channel.deliver(message);
+                return;
+            }
+        }
+
+        int hash = channel.getChannelId().hashCode();
+        if (mode == DispatchMode.ORDERED_PER_TOPIC && message.getTopic() != null) {
+            hash = hash * 31 + message.getTopic().hashCode();
+        }
+        // spread hash bits, channel IDs often differ only in their last characters
+        hash ^= hash >>> 16;
+        Worker worker = workers[(hash & 0x7fffffff) % workers.length];
+
+        Delivery delivery = new Delivery(channel, message);
+        if (!worker.mQueue.offer(delivery)) {
+            Thread thread = Thread.currentThread();
+            if (thread instanceof NioReactor.EventLoop) {
+                worker.stall(delivery, ((NioReactor.EventLoop) thread).getReadingConnection());
+                return;
+            }
+            long backoff = MIN_BACKOFF_NANOS;
+            boolean queued = false;
+            while (!worker.mClosed && !(queued = worker.mQueue.offer(delivery))) {
+                LockSupport.parkNanos(this, backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+            }
+            if (!queued) {
+                // dispatcher was closed while waiting
+                channel.deliver(message);
+            }
+        }
+    }
+
+    private synchronized Worker[] start() {
+        if (mWorkers == null && !mClosed) {
+            ConnectionConfig config = mNode.getConnectionConfig();
+            Worker[] workers = new Worker[config.getDispatchThreads()];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(config.getDispatchQueueCapacity());
+                ThreadFactories.newThread(config.getThreadFactory(), workers[i], "DispatchWorker-" + i, true)
+                        .start();
+            }
+            mWorkers = workers;
+        }
+        return mWorkers;
+    }
+
+    /**
+     * Stops all workers. Messages, which are still queued, are delivered before the workers terminate. Messages
+     * dispatched afterwards are delivered inline.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        Worker[] workers = mWorkers;
+        mWorkers = null;
+        if (workers != null) {
+            for (Worker worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+    private static class Delivery {
+        final Channel mChannel;
+        final Message mMessage;
+
+        Delivery(Channel channel, Message message) {
+            mChannel = channel;
+            mMessage = message;
+        }
+    }
+
+    /**
+     * Delivery, which didn't fit into the worker queue, and the connection paused until it was queued.
+     */
+    private static class Stalled {
+        final Delivery mDelivery;
+        final NioConnection mConnection;
+
+        Stalled(Delivery delivery, NioConnection connection) {
+            mDelivery = delivery;
+            mConnection = connection;
+        }
+    }
+
+    private static class Worker implements Runnable {
+        final MpscQueue<Delivery> mQueue;
+        volatile boolean mClosed = false;
+
+        /** Deliveries waiting for space in the queue, guarded by itself */
+        private final ArrayDeque<Stalled> mStalled = new ArrayDeque<>();
+        private volatile boolean mHasStalled = false;
+
+        Worker(int capacity) {
+            mQueue = new MpscQueue<>(capacity, ParkingStrategy.PARK);
+        }
+
+        void close() {
+            mClosed = true;
+            mQueue.signal();
+        }
+
+        /**
+         * Sets aside a delivery, which didn't fit into the queue, and pauses reading from the given connection until
+         * the delivery was queued. Is called by NIO event loops, which must not wait for the worker.
+         */
+        void stall(Delivery delivery, NioConnection connection) {
+            synchronized (mStalled) {
+                mStalled.addLast(new Stalled(delivery, connection));
+                mHasStalled = true;
+            }
+            if (connection != null) {
+                connection.pauseReading();
+            }
+            // the queue might have been drained in the meantime
+            mQueue.signal();
+        }
+
+        private void queueStalled() {
+            synchronized (mStalled) {
+                while (!mStalled.isEmpty() && mQueue.offer(mStalled.peekFirst().mDelivery)) {
+                    Stalled stalled = mStalled.pollFirst();
+                    if (stalled.mConnection != null) {
+                        stalled.mConnection.resumeReading();
+                    }
+                }
+                mHasStalled = !mStalled.isEmpty();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    if (mHasStalled) {
+                        queueStalled();
+                    }
+                    Delivery delivery = mQueue.poll();
+                    if (delivery != null) {
+                        deliver(delivery);
+                    } else if (mClosed && !mHasStalled) {
+                        break;
+                    } else if (!mHasStalled) {
+                        mQueue.await(0, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Logger.debug("Dispatch worker interrupted");
+            }
+        }
+
+        private void deliver(Delivery delivery) {
+            try {
+                delivery.mChannel.deliver(delivery.mMessage);
+            } catch (RuntimeException e) {
+                // a failing listener must not stop the delivery of other messages
+                Logger.error("Error in message listener of channel " + delivery.mChannel.getChannelId(), e);
+            }
+        }
+    }
+}
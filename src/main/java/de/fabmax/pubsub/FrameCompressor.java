@@ -0,0 +1,144 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the encoded frames sent by a connection. A compressed frame is sent as a regular message on
+ * {@link #COMPRESSED_CHANNEL_ID}, which carries the compressed original frame as a byte array. Hence compressed
+ * frames work with the framing of every codec and receivers can tell compressed frames apart without any further
+ * state, see {@link de.fabmax.pubsub.FrameDecompressor}.
+ *
+ * Instances are used by the connection's sending thread only, statistics are read by other threads.
+ */
+class FrameCompressor {
+
+    /** Channel ID of compressed frames, the topic is the name of the {@link de.fabmax.pubsub.Compression} */
+    static final String COMPRESSED_CHANNEL_ID = "de.fabmax.pubsub.Z";
+    static final String KEY_SIZE = "size";
+    static final String KEY_DATA = "data";
+
+    private final Compression mCompression;
+    private final int mThreshold;
+    private final Codec mCodec;
+    private final String mKey;
+
+    private final Deflater mDeflater;
+    private final LzfCompressor mLzf;
+    private byte[] mBuffer = new byte[4096];
+
+    // written by the sending thread only
+    private volatile long mCompressedFrames = 0;
+    private volatile long mUncompressedFrames = 0;
+    private volatile long mBytesBefore = 0;
+    private volatile long mBytesAfter = 0;
+
+    /**
+     * @param compression    compression algorithm, must not be {@link de.fabmax.pubsub.Compression#NONE}
+     * @param threshold      minimum size of compressed frames in bytes
+     * @param codec          codec used to encode sent frames
+     */
+    FrameCompressor(Compression compression, int threshold, Codec codec) {
+        mCompression = compression;
+        mThreshold = threshold;
+        mCodec = codec;
+        mKey = codec.getClass().getName() + ":" + compression + ":" + threshold;
+        mDeflater = compression == Compression.DEFLATE ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        mLzf = compression == Compression.LZF ? new LzfCompressor() : null;
+    }
+
+    Compression getCompression() {
+        return mCompression;
+    }
+
+    Codec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Returns a key identifying the output of this compressor. Compressors with equal keys produce the same frames,
+     * which can be shared between connections, see {@link de.fabmax.pubsub.SharedFrame#getCompressed(FrameCompressor)}.
+     */
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns the compressed frame for the given encoded frame or the encoded frame itself if it is smaller than the
+     * threshold or doesn't get smaller.
+     */
+    byte[] compress(byte[] encoded) {
+        if (encoded.length < mThreshold) {
+            return encoded;
+        }
+        int len = mCompression == Compression.DEFLATE ? deflate(encoded) : lzf(encoded);
+        if (len < 0 || len >= encoded.length) {
+            return encoded;
+        }
+
+        Bundle data = new Bundle();
+        data.putInt(KEY_SIZE, encoded.length);
+        data.putByteArray(KEY_DATA, Arrays.copyOf(mBuffer, len));
+        Message message = new Message(mCompression.name(), data);
+        message.setChannelId(COMPRESSED_CHANNEL_ID);
+        byte[] compressed = mCodec.encodeMessage(message);
+        return compressed.length < encoded.length ? compressed : encoded;
+    }
+
+    /**
+     * Updates the statistics after the given frame was sent, is called for every frame while compression is enabled.
+     */
+    void frameSent(int encodedLength, byte[] sent) {
+        if (sent.length < encodedLength) {
+            mCompressedFrames++;
+        } else {
+            mUncompressedFrames++;
+        }
+        mBytesBefore += encodedLength;
+        mBytesAfter += sent.length;
+    }
+
+    /**
+     * @return compressed length or -1 if the compressed data would be larger than the input
+     */
+    private int deflate(byte[] encoded) {
+        ensureBufferSize(encoded.length);
+        mDeflater.reset();
+        mDeflater.setInput(encoded);
+        mDeflater.finish();
+        int len = 0;
+        while (!mDeflater.finished() && len < encoded.length) {
+            len += mDeflater.deflate(mBuffer, len, encoded.length - len);
+        }
+        return mDeflater.finished() ? len : -1;
+    }
+
+    private int lzf(byte[] encoded) {
+        ensureBufferSize(LzfCompressor.maxCompressedLength(encoded.length));
+        return mLzf.compress(encoded, 0, encoded.length, mBuffer);
+    }
+
+    private void ensureBufferSize(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+        }
+    }
+
+    long getCompressedFrames() {
+        return mCompressedFrames;
+    }
+
+    long getUncompressedFrames() {
+        return mUncompressedFrames;
+    }
+
+    long getBytesBeforeCompression() {
+        return mBytesBefore;
+    }
+
+    long getBytesAfterCompression() {
+        return mBytesAfter;
+    }
+}
@@ -0,0 +1,120 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import org.pmw.tinylog.Logger;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses frames compressed by a {@link de.fabmax.pubsub.FrameCompressor}. The decompressed frames are decoded
+ * by a separate codec instance of the same type as the connection's receiving codec, which might still hold an
+ * incomplete frame following the compressed one.
+ *
+ * Instances are used by the connection's receiving thread only, statistics are read by other threads.
+ */
+class FrameDecompressor {
+
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final Codec mCodec;
+    private Inflater mInflater = null;
+
+    // written by the receiving thread only
+    private volatile long mReceivedFrames = 0;
+    private volatile long mCompressedBytes = 0;
+    private volatile long mDecompressedBytes = 0;
+
+    /**
+     * @param receiveCodec    receiving codec of the connection, its type and relay mode are used to decode the
+     *                        decompressed frames
+     */
+    FrameDecompressor(Codec receiveCodec) {
+        try {
+            mCodec = receiveCodec.getClass().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed instantiating codec", e);
+        }
+        mCodec.setRelayMode(receiveCodec.isRelayMode());
+    }
+
+    /**
+     * Returns the codec holding the messages of the last decompressed frame.
+     */
+    Codec getCodec() {
+        return mCodec;
+    }
+
+    static boolean isCompressed(Message message) {
+        return FrameCompressor.COMPRESSED_CHANNEL_ID.equals(message.getChannelId());
+    }
+
+    /**
+     * Decompresses and decodes the given compressed frame. The decoded messages are taken from the returned codec.
+     *
+     * @return the codec holding the decoded messages or null if the frame is corrupt
+     */
+    Codec decompress(Message compressed) {
+        Bundle data = compressed.getData();
+        Integer size = data != null ? data.getInt(FrameCompressor.KEY_SIZE) : null;
+        byte[] payload = data != null ? data.getByteArray(FrameCompressor.KEY_DATA) : null;
+        if (size == null || payload == null || size < 0 || size > MAX_FRAME_SIZE) {
+            Logger.error("Dropping invalid compressed frame");
+            return null;
+        }
+
+        byte[] decompressed = new byte[size];
+        try {
+            String compression = compressed.getTopic();
+            if (Compression.DEFLATE.name().equals(compression)) {
+                inflate(payload, decompressed);
+            } else if (Compression.LZF.name().equals(compression)) {
+                LzfCompressor.decompress(payload, 0, payload.length, decompressed);
+            } else {
+                Logger.error("Dropping frame with unsupported compression: " + compression);
+                return null;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            Logger.error("Dropping corrupt compressed frame: " + e.getMessage());
+            return null;
+        }
+
+        mReceivedFrames++;
+        mCompressedBytes += payload.length;
+        mDecompressedBytes += size;
+        mCodec.decodeData(decompressed, 0, decompressed.length);
+        return mCodec;
+    }
+
+    private void inflate(byte[] payload, byte[] decompressed) throws DataFormatException {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        mInflater.reset();
+        mInflater.setInput(payload);
+        int len = 0;
+        while (len < decompressed.length) {
+            int n = mInflater.inflate(decompressed, len, decompressed.length - len);
+            if (n == 0) {
+                // inflater finished early or needs more input, data is truncated or corrupt
+                break;
+            }
+            len += n;
+        }
+        if (len != decompressed.length) {
+            throw new DataFormatException("Expected " + decompressed.length + " bytes, got " + len);
+        }
+    }
+
+    long getReceivedFrames() {
+        return mReceivedFrames;
+    }
+
+    long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    long getDecompressedBytes() {
+        return mDecompressedBytes;
+    }
+}
@@ -0,0 +1,148 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.util.ThreadFactories;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Connection between a {@link de.fabmax.pubsub.ClientNode} and a {@link de.fabmax.pubsub.ServerNode} running in the
+ * same JVM. In-process connections are created in pairs, every side takes the frames queued in its peer's send queue
+ * and passes the contained {@link de.fabmax.pubsub.Message} objects to its listener. Messages are neither encoded nor
+ * copied, received messages are shared with the sender and all other in-process receivers and must not be modified.
+ *
+ * Servers are looked up by the name they registered with, clients connect with the address "inproc:" + name.
+ */
+class InProcessConnection extends Connection {
+
+    /** Address scheme selecting an in-process server, e.g. "inproc:test" */
+    static final String SCHEME = "inproc:";
+
+    private static final ConcurrentHashMap<String, ServerNode> sServers = new ConcurrentHashMap<>();
+
+    private final String mRemoteAddress;
+    private final Thread mReceiverThread;
+    private InProcessConnection mPeer;
+    private boolean mOpened = false;
+    private boolean mStarted = false;
+
+    private final CountDownLatch mCloseLatch = new CountDownLatch(1);
+
+    private InProcessConnection(String remoteAddress, ConnectionConfig config, boolean isDaemon) {
+        super(config, config.getParkingStrategy());
+        mRemoteAddress = remoteAddress;
+        mReceiverThread = ThreadFactories.newThread(config.getThreadFactory(), new ConnectionReceiver(),
+                "InProcessReceiver " + remoteAddress, isDaemon);
+    }
+
+    /**
+     * Makes the given server available for in-process clients under the given name.
+     *
+     * @throws IOException if another server is already registered with that name
+     */
+    static void registerServer(String name, ServerNode server) throws IOException {
+        if (sServers.putIfAbsent(name, server) != null) {
+            throw new IOException("In-process server name already in use: " + name);
+        }
+    }
+
+    static void unregisterServer(String name, ServerNode server) {
+        sServers.remove(name, server);
+    }
+
+    /**
+     * Connects a client to the in-process server registered with the given name. The server side of the connection
+     * is handed to the server like an accepted socket connection.
+     *
+     * @return the client side of the connection
+     * @throws IOException if no server is registered with the given name
+     */
+    static Connection connect(String name, ConnectionConfig clientConfig, boolean isDaemon) throws IOException {
+        ServerNode server = sServers.get(name);
+        if (server == null) {
+            throw new IOException("No in-process server registered with name " + name);
+        }
+        String serverAddress = SCHEME + name;
+        InProcessConnection clientSide = new InProcessConnection(serverAddress, clientConfig, isDaemon);
+        InProcessConnection serverSide = new InProcessConnection(serverAddress + "#" + server.nextInProcessClientId(),
+                server.getConnectionConfig(), server.isDaemon());
+        clientSide.mPeer = serverSide;
+        serverSide.mPeer = clientSide;
+        server.localClientConnected(serverSide);
+        return clientSide;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        super.setConnectionListener(connectionListener);
+        startReceiver();
+    }
+
+    @Override
+    public void open() {
+        synchronized (this) {
+            mOpened = true;
+        }
+        startReceiver();
+    }
+
+    /**
+     * Starts receiving as soon as the connection is open and has a listener. Until then, received messages stay in
+     * the peer's send queue, like unread data in a socket buffer.
+     */
+    private synchronized void startReceiver() {
+        if (mOpened && mListener != null && !mStarted) {
+            mStarted = true;
+            mReceiverThread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!markClosed()) {
+            mReceiverThread.interrupt();
+            // closing one side closes the other one as well, like closing a socket
+            mPeer.close();
+            mCloseLatch.countDown();
+            fireConnectionClosed();
+            Logger.debug("Connection closed");
+        }
+    }
+
+    @Override
+    public void waitForClose() throws InterruptedException {
+        mCloseLatch.await();
+    }
+
+    private class ConnectionReceiver implements Runnable {
+        @Override
+        public void run() {
+            SendQueue queue = mPeer.mSendQueue;
+            try {
+                while (!isClosed()) {
+                    SharedFrame frame = queue.take();
+                    try {
+                        ConnectionListener listener = mListener;
+                        if (listener != null && !isClosed()) {
+                            listener.onMessageReceived(frame.getMessage());
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // connection was closed
+            } catch (RuntimeException e) {
+                Logger.error("Error in in-process receiver", e);
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.fabmax.pubsub;
+
+/**
+ * Pure Java implementation of the LZF compression format (as used by liblzf). The compressed data is a sequence of
+ * chunks, every chunk starts with a control byte: Values below 32 are followed by (value + 1) literal bytes, larger
+ * values encode a back reference with a length of 3 to 264 bytes and an offset of up to 8 KB.
+ *
+ * Instances are not thread-safe, the hash table is reused between calls without clearing it. Stale entries are
+ * harmless, because every candidate match is verified against the actual input.
+ */
+class LzfCompressor {
+
+    private static final int HASH_LOG = 13;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REF = (1 << 8) + (1 << 3);
+
+    private final int[] mHashTable = new int[1 << HASH_LOG];
+
+    /**
+     * Returns the maximum number of bytes {@link #compress(byte[], int, int, byte[])} writes for the given input
+     * length.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / MAX_LITERAL + 1;
+    }
+
+    /**
+     * Compresses len bytes of in, starting at off, into out, which must be at least
+     * {@link #maxCompressedLength(int)} bytes long.
+     *
+     * @return number of bytes written to out
+     */
+    int compress(byte[] in, int off, int len, byte[] out) {
+        int ip = off;
+        int inEnd = off + len;
+        int op = 1;
+        int lit = 0;
+
+        while (ip < inEnd - 2) {
+            int hval = ((in[ip] & 0xff) << 16) | ((in[ip + 1] & 0xff) << 8) | (in[ip + 2] & 0xff);
+            int slot = (hval * 0x9e3779b1) >>> (32 - HASH_LOG);
+            // table entries are stored + 1, so that 0 means empty
+            int ref = mHashTable[slot] - 1;
+            mHashTable[slot] = ip + 1;
+            int refOff = ip - ref - 1;
+
+            if (ref >= off && ref < ip && refOff < MAX_OFFSET &&
+                    in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                int maxLen = Math.min(inEnd - ip - 2, MAX_REF);
+                int matchLen = 3;
+                while (matchLen < maxLen && in[ref + matchLen] == in[ip + matchLen]) {
+                    matchLen++;
+                }
+
+                // terminate current literal run, remove its control byte if it is empty
+                out[op - lit - 1] = (byte) (lit - 1);
+                if (lit == 0) {
+                    op--;
+                }
+
+                int encLen = matchLen - 2;
+                if (encLen < 7) {
+                    out[op++] = (byte) ((refOff >> 8) + (encLen << 5));
+                } else {
+                    out[op++] = (byte) ((refOff >> 8) + (7 << 5));
+                    out[op++] = (byte) (encLen - 7);
+                }
+                out[op++] = (byte) refOff;
+
+                // start next literal run
+                lit = 0;
+                op++;
+                ip += matchLen;
+            } else {
+                lit++;
+                out[op++] = in[ip++];
+                if (lit == MAX_LITERAL) {
+                    out[op - lit - 1] = (byte) (lit - 1);
+                    lit = 0;
+                    op++;
+                }
+            }
+        }
+
+        while (ip < inEnd) {
+            lit++;
+            out[op++] = in[ip++];
+            if (lit == MAX_LITERAL) {
+                out[op - lit - 1] = (byte) (lit - 1);
+                lit = 0;
+                op++;
+            }
+        }
+
+        out[op - lit - 1] = (byte) (lit - 1);
+        if (lit == 0) {
+            op--;
+        }
+        return op;
+    }
+
+    /**
+     * Decompresses len bytes of in, starting at off, into out, which must be exactly as long as the uncompressed
+     * data.
+     *
+     * @throws IllegalArgumentException if the compressed data is corrupt or doesn't match the output length
+     */
+    static void decompress(byte[] in, int off, int len, byte[] out) {
+        int ip = off;
+        int inEnd = off + len;
+        int op = 0;
+
+        while (ip < inEnd) {
+            int ctrl = in[ip++] & 0xff;
+            if (ctrl < MAX_LITERAL) {
+                int litLen = ctrl + 1;
+                if (ip + litLen > inEnd || op + litLen > out.length) {
+                    throw new IllegalArgumentException("Corrupt LZF data: literal run exceeds buffer");
+                }
+                System.arraycopy(in, ip, out, op, litLen);
+                ip += litLen;
+                op += litLen;
+            } else {
+                int refLen = ctrl >> 5;
+                int ref = op - ((ctrl & 0x1f) << 8) - 1;
+                if (refLen == 7) {
+                    if (ip >= inEnd) {
+                        throw new IllegalArgumentException("Corrupt LZF data: truncated back reference");
+                    }
+                    refLen += in[ip++] & 0xff;
+                }
+                if (ip >= inEnd) {
+                    throw new IllegalArgumentException("Corrupt LZF data: truncated back reference");
+                }
+                ref -= in[ip++] & 0xff;
+                refLen += 2;
+                if (ref < 0 || op + refLen > out.length) {
+                    throw new IllegalArgumentException("Corrupt LZF data: back reference exceeds buffer");
+                }
+                // source and destination might overlap, copy byte-wise
+                for (int i = 0; i < refLen; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+        if (op != out.length) {
+            throw new IllegalArgumentException("Corrupt LZF data: expected " + out.length + " bytes, got " + op);
+        }
+    }
+}
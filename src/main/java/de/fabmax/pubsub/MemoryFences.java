@@ -0,0 +1,86 @@
+package de.fabmax.pubsub;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data shared with other processes via memory-mapped files. Accesses to mapped memory are not
+ * covered by the Java memory model, only explicit fences keep the JIT and the CPU from reordering them.
+ *
+ * The fences of {@code java.lang.invoke.VarHandle} are used on Java 9 and newer, the ones of {@code sun.misc.Unsafe} on
+ * Java 8. Both are looked up via reflection, so that the library itself still runs on older JVMs, which don't support
+ * shared memory transport.
+ */
+class MemoryFences {
+
+    private static final MethodHandle RELEASE_FENCE;
+    private static final MethodHandle ACQUIRE_FENCE;
+
+    static {
+        MethodHandle release = null;
+        MethodHandle acquire = null;
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            // VarHandle.releaseFence() / VarHandle.acquireFence()
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            release = MethodHandles.publicLookup().findStatic(varHandle, "releaseFence", type);
+            acquire = MethodHandles.publicLookup().findStatic(varHandle, "acquireFence", type);
+        } catch (ReflectiveOperationException e) {
+            try {
+                // Unsafe.storeFence() / Unsafe.loadFence()
+                Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeType.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                release = MethodHandles.lookup().findVirtual(unsafeType, "storeFence", type).bindTo(unsafe);
+                acquire = MethodHandles.lookup().findVirtual(unsafeType, "loadFence", type).bindTo(unsafe);
+            } catch (ReflectiveOperationException | RuntimeException e2) {
+                release = null;
+                acquire = null;
+            }
+        }
+        RELEASE_FENCE = release;
+        ACQUIRE_FENCE = acquire;
+    }
+
+    private MemoryFences() {
+        // static utility class
+    }
+
+    /**
+     * Returns true if the running JVM provides memory fences.
+     */
+    static boolean isSupported() {
+        return RELEASE_FENCE != null;
+    }
+
+    /**
+     * Loads and stores before the fence are not reordered with stores after it. Is called after writing data and
+     * before publishing it by writing a position.
+     */
+    static void releaseFence() {
+        try {
+            RELEASE_FENCE.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Loads before the fence are not reordered with loads and stores after it. Is called after reading a position and
+     * before accessing the data it publishes.
+     */
+    static void acquireFence() {
+        try {
+            ACQUIRE_FENCE.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
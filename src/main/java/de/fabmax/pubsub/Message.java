@@ -8,6 +8,7 @@ public class Message {
     protected String mChannelId;
     protected String mTopic;
     protected Bundle mData;
+    protected MessagePriority mPriority = MessagePriority.NORMAL;
 
     public Message() {
         this(null);
@@ -46,16 +47,31 @@ public class Message {
         return mData;
     }
 
+    public MessagePriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the send priority of this message. Default is {@link de.fabmax.pubsub.MessagePriority#NORMAL}.
+     */
+    public void setPriority(MessagePriority priority) {
+        if (priority == null) {
+            throw new NullPointerException("priority must not be null");
+        }
+        mPriority = priority;
+    }
+
     @Override
     public String toString() {
         return String.format("Message:{channel:%s;topic:%s}", mChannelId, mTopic);
     }
 
     public String prettyPrint() {
-        if (mData == null) {
+        Bundle data = getData();
+        if (data == null) {
             return String.format("[%s#%s]", mChannelId, mTopic);
         } else {
-            return String.format("[%s#%s] %s", mChannelId, mTopic, mData.prettyPrint());
+            return String.format("[%s#%s] %s", mChannelId, mTopic, data.prettyPrint());
         }
     }
 }
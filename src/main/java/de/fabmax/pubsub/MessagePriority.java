@@ -0,0 +1,18 @@
+package de.fabmax.pubsub;
+
+/**
+ * Send priority of a {@link de.fabmax.pubsub.Message}. Every connection sends queued high priority messages before
+ * queued normal priority messages, messages of the same priority keep their order. Internal control messages, e.g.
+ * channel and node registrations, are always sent before any other message.
+ *
+ * The priority is only applied by the sending node and is not transmitted, i.e. a
+ * {@link de.fabmax.pubsub.ServerNode} forwards messages received from clients with normal priority.
+ */
+public enum MessagePriority {
+
+    /** Default priority. */
+    NORMAL,
+
+    /** Sent before all queued normal priority messages. */
+    HIGH
+}
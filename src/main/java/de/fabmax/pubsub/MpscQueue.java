@@ -0,0 +1,254 @@
+package de.fabmax.pubsub;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free multi-producer single-consumer queue backed by a ring buffer. Producers claim a slot by
+ * incrementing the tail index with a CAS and then publish their element into the claimed slot. Every slot carries a
+ * sequence number, which tells whether the slot is free for the producer of a given position or holds the element
+ * for the consumer of that position. Waiting for elements is done according to the queue's
+ * {@link de.fabmax.pubsub.ParkingStrategy}.
+ *
+ * Only a single thread may wait for elements ({@link #await(long, TimeUnit)}). {@link #poll()} can additionally be
+ * called by producers, in order to evict the oldest element from a full queue.
+ */
+class MpscQueue<E> {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+
+    private final AtomicReferenceArray<E> mBuffer;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final int mCapacity;
+    private final ParkingStrategy mParkingStrategy;
+
+    private final AtomicLong mTail = new AtomicLong(0);
+    private final AtomicLong mHead = new AtomicLong(0);
+    private volatile Thread mParkedConsumer = null;
+    private volatile boolean mSignaled = false;
+
+    private final AtomicLong mContendedCount = new AtomicLong(0);
+    private final AtomicInteger mHighWaterMark = new AtomicInteger(0);
+
+    public MpscQueue(int capacity, ParkingStrategy parkingStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        int ringSize = Integer.highestOneBit(capacity);
+        if (ringSize < capacity) {
+            ringSize <<= 1;
+        }
+        mBuffer = new AtomicReferenceArray<>(ringSize);
+        mSequences = new AtomicLongArray(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = ringSize - 1;
+        mCapacity = capacity;
+        mParkingStrategy = parkingStrategy;
+    }
+
+    /**
+     * Inserts the given element if the queue is not full. Can be called by any thread.
+     *
+     * @return true if the element was inserted, false if the queue is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element must not be null");
+        }
+        while (true) {
+            long tail = mTail.get();
+            long head = mHead.get();
+            if (tail - head >= mCapacity) {
+                return false;
+            }
+
+            int idx = (int) tail & mMask;
+            long seq = mSequences.get(idx);
+            if (seq == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mBuffer.set(idx, element);
+                    // publish element to consumer
+                    mSequences.set(idx, tail + 1);
+                    updateHighWaterMark((int) (tail + 1 - head));
+
+                    Thread consumer = mParkedConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                mContendedCount.incrementAndGet();
+            } else if (seq < tail) {
+                // element of the previous round is just being taken, slot is released in a moment
+                Thread.yield();
+            }
+            // else: another producer claimed the slot in the meantime, retry with the new tail
+        }
+    }
+
+    /**
+     * Removes and returns the head of the queue or null if the queue is empty. Is called by the consumer thread and
+     * by producers evicting the oldest element.
+     */
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            int idx = (int) head & mMask;
+            long seq = mSequences.get(idx);
+            if (seq == head + 1) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    E element = mBuffer.get(idx);
+                    mBuffer.set(idx, null);
+                    // release slot for the producer of the next round
+                    mSequences.set(idx, head + mMask + 1);
+                    return element;
+                }
+            } else if (seq < head + 1) {
+                if (head == mTail.get()) {
+                    return null;
+                }
+                // slot was claimed by a producer, which didn't publish its element yet
+                Thread.yield();
+            }
+            // else: element was taken concurrently by an evicting producer, retry with the new head
+        }
+    }
+
+    /**
+     * Wakes up the consumer thread if it is waiting for elements. The waiting call returns in this case, although the
+     * queue might still be empty. Is used by owners of the queue, which hold further elements outside of the queue.
+     */
+    public void signal() {
+        mSignaled = true;
+        Thread consumer = mParkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits until the queue is not empty, {@link #signal()} was called or the given time elapsed. Must only be called
+     * by the consumer thread.
+     *
+     * @param timeout max time to wait, 0 to wait without time limit
+     */
+    public void await(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        int tries = 0;
+        while (isEmpty() && !consumeSignal()) {
+            long remaining = 0;
+            if (nanos > 0) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+            }
+            idle(tries++, remaining);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    public int size() {
+        // read head first, so that the result is never negative
+        long head = mHead.get();
+        return (int) Math.max(0, Math.min(mTail.get() - head, mCapacity));
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * Returns the total number of elements inserted into this queue.
+     */
+    public long getOfferedCount() {
+        return mTail.get();
+    }
+
+    /**
+     * Returns the total number of elements removed from this queue.
+     */
+    public long getPolledCount() {
+        return mHead.get();
+    }
+
+    public long getContendedCount() {
+        return mContendedCount.get();
+    }
+
+    private boolean consumeSignal() {
+        if (mSignaled) {
+            mSignaled = false;
+            return true;
+        }
+        return false;
+    }
+
+    private void updateHighWaterMark(int size) {
+        int hwm = mHighWaterMark.get();
+        while (size > hwm && !mHighWaterMark.compareAndSet(hwm, size)) {
+            hwm = mHighWaterMark.get();
+        }
+    }
+
+    /**
+     * Waits for new elements according to the parking strategy.
+     *
+     * @param tries      number of previous unsuccessful polls
+     * @param nanos      max wait time in nanoseconds, 0 for no limit
+     */
+    private void idle(int tries, long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        switch (mParkingStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case SPIN_YIELD_PARK:
+                if (tries < SPIN_TRIES) {
+                    break;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    break;
+                }
+                park(nanos);
+                break;
+            default:
+                park(nanos);
+                break;
+        }
+    }
+
+    private void park(long nanos) {
+        mParkedConsumer = Thread.currentThread();
+        // check again after announcing that we are about to park, a producer inserting an element after this check
+        // sees the parked consumer and unparks it
+        if (isEmpty() && !mSignaled) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        mParkedConsumer = null;
+    }
+}
@@ -0,0 +1,207 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Server side state of a channel, which is delivered via UDP multicast. Every broadcast message of the channel is
+ * sent once to the multicast group, instead of once per subscriber. Subscribers, which joined the group, don't receive
+ * the channel's messages via TCP anymore. Subscribers, which didn't join (yet) or fell back to TCP, still do.
+ *
+ * Publishing and membership changes are serialized, so that a subscriber switches between TCP and multicast at a
+ * well-defined sequence number: A joining client is told the sequence number of the first datagram it has to take
+ * from the group, all messages before were queued for it via TCP. The most recently multicast messages are retained,
+ * bounded by count and by their encoded size, a client leaving the group after it missed datagrams gets the missed
+ * messages via TCP.
+ *
+ * Messages too large for a datagram are sent to the members via TCP, but still take a sequence number of the group,
+ * so that members deliver them in order with the datagrams.
+ */
+class MulticastChannel {
+
+    /** Maximum number of multicast messages retained for retransmission via TCP */
+    static final int RETRANSMIT_BUFFER_SIZE = 4096;
+
+    private static final byte[] PLACEHOLDER_FRAME = new byte[0];
+
+    private final String mChannelId;
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final long mServerNodeId;
+    private final DatagramSocket mSocket;
+    private final int mMaxPacketSize;
+    private final int mRetransmitBufferBytes;
+
+    private final byte[] mEncodedChannelId;
+    private final Codec mCodec = Codec.defaultCodecFactory.createCodec();
+    private final ByteBuffer mPacketBuffer;
+
+    private long mNextSequence = 0;
+    private ClientHandler[] mMembers = new ClientHandler[0];
+    private final Message[] mSentMessages = new Message[RETRANSMIT_BUFFER_SIZE];
+    private final long[] mSentExcludedIds = new long[RETRANSMIT_BUFFER_SIZE];
+    private final int[] mSentSizes = new int[RETRANSMIT_BUFFER_SIZE];
+    /** Sequence number of the oldest retained message, messages up to mNextSequence are retained */
+    private long mOldestRetained = 0;
+    private long mRetainedBytes = 0;
+
+    /**
+     * @param retransmitBufferBytes   maximum encoded size of the messages retained for retransmission
+     */
+    MulticastChannel(String channelId, InetAddress group, int port, long serverNodeId, DatagramSocket socket,
+                     int maxPacketSize, int retransmitBufferBytes) {
+        mChannelId = channelId;
+        mGroup = group;
+        mPort = port;
+        mServerNodeId = serverNodeId;
+        mSocket = socket;
+        mMaxPacketSize = maxPacketSize;
+        mRetransmitBufferBytes = retransmitBufferBytes;
+        mEncodedChannelId = MulticastPacket.encodeChannelId(channelId);
+        mPacketBuffer = ByteBuffer.allocate(maxPacketSize);
+    }
+
+    String getChannelId() {
+        return mChannelId;
+    }
+
+    /**
+     * Returns the control message announcing this channel's multicast group to subscribers.
+     */
+    Message getGroupMessage() {
+        return ControlMessages.multicastGroup(mChannelId, mGroup.getHostAddress(), mPort, mServerNodeId);
+    }
+
+    /**
+     * Sends the given frame to the multicast group and via TCP to all subscribers, which are not members of the
+     * group. Frames, which don't fit into a single datagram, are sent to the members via TCP as well, wrapped into a
+     * control message carrying the frame's sequence number.
+     *
+     * @return true if the frame was queued for all TCP subscribers
+     */
+    synchronized boolean publish(SharedFrame frame, ClientHandler[] subscribers, ClientHandler excluded) {
+        boolean accepted = true;
+        if (mMembers.length > 0) {
+            byte[] encoded = frame.getEncoded(mCodec);
+            long excludedNodeId = excluded != null ? excluded.getClientNodeId() : 0;
+            if (MulticastPacket.getHeaderSize(mEncodedChannelId) + encoded.length <= mMaxPacketSize) {
+                sendPacket(frame.getMessage(), encoded, encoded.length, excludedNodeId);
+            } else {
+                long sequence = sendPacket(frame.getMessage(), PLACEHOLDER_FRAME, encoded.length, excludedNodeId);
+                SharedFrame tcpFrame = new SharedFrame(ControlMessages.multicastFrame(mChannelId, sequence, encoded));
+                for (ClientHandler member : mMembers) {
+                    if (member != excluded) {
+                        accepted &= member.publish(tcpFrame);
+                    }
+                }
+                tcpFrame.release();
+            }
+        }
+
+        for (ClientHandler handler : subscribers) {
+            if (handler != excluded && !ServerNode.contains(mMembers, handler)) {
+                accepted &= handler.publish(frame);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * @param frameSize   encoded size of the message, which is retained for retransmission
+     * @return sequence number of the sent packet
+     */
+    private long sendPacket(Message message, byte[] encoded, int frameSize, long excludedNodeId) {
+        // the sequence number is used even if sending fails, members detect the gap and fall back to TCP
+        long sequence = mNextSequence++;
+        retain(sequence, message, frameSize, excludedNodeId);
+        mPacketBuffer.clear();
+        MulticastPacket.encode(mPacketBuffer, mServerNodeId, sequence, excludedNodeId, mEncodedChannelId, encoded);
+        try {
+            mSocket.send(new DatagramPacket(mPacketBuffer.array(), mPacketBuffer.position(), mGroup, mPort));
+        } catch (IOException e) {
+            Logger.error("Failed sending multicast packet of channel " + mChannelId, e);
+        }
+        return sequence;
+    }
+
+    /**
+     * Retains the given message for retransmission. The oldest messages are dropped until the message fits into the
+     * retransmit buffer, a message larger than the whole buffer is not retained and neither are messages before it.
+     */
+    private void retain(long sequence, Message message, int frameSize, long excludedNodeId) {
+        while (mOldestRetained < sequence && (sequence - mOldestRetained >= RETRANSMIT_BUFFER_SIZE ||
+                mRetainedBytes + frameSize > mRetransmitBufferBytes)) {
+            int idx = (int) (mOldestRetained % RETRANSMIT_BUFFER_SIZE);
+            mRetainedBytes -= mSentSizes[idx];
+            mSentMessages[idx] = null;
+            mOldestRetained++;
+        }
+        if (frameSize > mRetransmitBufferBytes) {
+            mOldestRetained = sequence + 1;
+            return;
+        }
+        int idx = (int) (sequence % RETRANSMIT_BUFFER_SIZE);
+        mSentMessages[idx] = message;
+        mSentExcludedIds[idx] = excludedNodeId;
+        mSentSizes[idx] = frameSize;
+        mRetainedBytes += frameSize;
+    }
+
+    /**
+     * Adds the given client, which joined the multicast group. The client is told the sequence number of the first
+     * datagram it must take from the group.
+     */
+    synchronized void join(ClientHandler client) {
+        if (!ServerNode.contains(mMembers, client)) {
+            mMembers = ServerNode.append(mMembers, client);
+            client.sendControlMessage(ControlMessages.multicastStart(mChannelId, mNextSequence));
+        }
+    }
+
+    /**
+     * Removes the given client, subsequent messages are sent to it via TCP again. Retained messages starting at the
+     * given sequence number are retransmitted to the client via TCP.
+     *
+     * @param nextSequence    sequence number of the first datagram the client didn't receive or -1 to not
+     *                        retransmit anything
+     */
+    synchronized void leave(ClientHandler client, long nextSequence) {
+        if (!ServerNode.contains(mMembers, client)) {
+            return;
+        }
+        mMembers = ServerNode.remove(mMembers, client);
+
+        if (nextSequence >= 0 && nextSequence < mNextSequence) {
+            long first = Math.max(nextSequence, mOldestRetained);
+            if (first > nextSequence) {
+                Logger.warn(client.getClientAddress() + " lost " + (first - nextSequence) +
+                        " messages of multicast channel " + mChannelId);
+            }
+            for (long seq = first; seq < mNextSequence; seq++) {
+                int idx = (int) (seq % RETRANSMIT_BUFFER_SIZE);
+                if (mSentExcludedIds[idx] != client.getClientNodeId()) {
+                    SharedFrame frame = new SharedFrame(mSentMessages[idx]);
+                    client.publish(frame);
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all clients, they are told to leave the multicast group after they received the last datagram and
+     * receive all subsequent messages via TCP.
+     */
+    synchronized void close() {
+        for (ClientHandler client : mMembers) {
+            client.sendControlMessage(ControlMessages.multicastStop(mChannelId, mNextSequence));
+        }
+        mMembers = new ClientHandler[0];
+    }
+}
@@ -0,0 +1,103 @@
+package de.fabmax.pubsub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Datagram format of multicast channels. Every datagram carries a single encoded frame, prefixed by a header:
+ * magic (int), server node ID (long), sequence number (long), excluded node ID (long), channel ID length (unsigned
+ * short) and the UTF-8 encoded channel ID.
+ *
+ * Sequence numbers are assigned per channel by the server and increase by one for every datagram. The excluded node
+ * is the client, which published the message itself and must not receive it again. Messages too large for a datagram
+ * are sent to the group members via TCP, the group gets a placeholder datagram without frame, which takes the
+ * message's sequence number.
+ */
+class MulticastPacket {
+
+    static final int MAGIC = 0x50534d43;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FIXED_HEADER_SIZE = 30;
+
+    final long mServerNodeId;
+    final long mSequence;
+    final long mExcludedNodeId;
+    final String mChannelId;
+    final byte[] mData;
+    final int mFrameOffset;
+    final int mFrameLength;
+
+    private MulticastPacket(long serverNodeId, long sequence, long excludedNodeId, String channelId, byte[] data,
+                            int frameOffset, int frameLength) {
+        mServerNodeId = serverNodeId;
+        mSequence = sequence;
+        mExcludedNodeId = excludedNodeId;
+        mChannelId = channelId;
+        mData = data;
+        mFrameOffset = frameOffset;
+        mFrameLength = frameLength;
+    }
+
+    /**
+     * Returns a packet for a message, which was too large for a datagram and was received via TCP.
+     */
+    static MulticastPacket forTcpFrame(long sequence, byte[] frame) {
+        return new MulticastPacket(0, sequence, 0, null, frame, 0, frame.length);
+    }
+
+    /**
+     * Returns true if this is the placeholder of a message sent via TCP.
+     */
+    boolean isPlaceholder() {
+        return mFrameLength == 0;
+    }
+
+    static int getHeaderSize(byte[] encodedChannelId) {
+        return FIXED_HEADER_SIZE + encodedChannelId.length;
+    }
+
+    static byte[] encodeChannelId(String channelId) {
+        return channelId.getBytes(UTF8);
+    }
+
+    /**
+     * Writes the header and the given encoded frame into buf.
+     */
+    static void encode(ByteBuffer buf, long serverNodeId, long sequence, long excludedNodeId,
+                       byte[] encodedChannelId, byte[] frame) {
+        buf.putInt(MAGIC);
+        buf.putLong(serverNodeId);
+        buf.putLong(sequence);
+        buf.putLong(excludedNodeId);
+        buf.putShort((short) encodedChannelId.length);
+        buf.put(encodedChannelId);
+        buf.put(frame);
+    }
+
+    /**
+     * Parses the header of a received datagram. The data array is referenced, not copied.
+     *
+     * @return the parsed packet or null if the datagram is no multicast packet
+     */
+    static MulticastPacket decode(byte[] data, int length) {
+        if (length < FIXED_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        if (buf.getInt() != MAGIC) {
+            return null;
+        }
+        long serverNodeId = buf.getLong();
+        long sequence = buf.getLong();
+        long excludedNodeId = buf.getLong();
+        int channelIdLength = buf.getShort() & 0xffff;
+        if (buf.remaining() < channelIdLength) {
+            return null;
+        }
+        String channelId = new String(data, buf.position(), channelIdLength, UTF8);
+        int frameOffset = buf.position() + channelIdLength;
+        return new MulticastPacket(serverNodeId, sequence, excludedNodeId, channelId, data, frameOffset,
+                length - frameOffset);
+    }
+}
@@ -0,0 +1,216 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import de.fabmax.pubsub.util.ThreadFactories;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Receives the datagrams of a multicast channel on client side, see {@link de.fabmax.pubsub.MulticastChannel}.
+ *
+ * Datagrams received before the server told the client the sequence number to start at are kept back. Afterwards,
+ * datagrams must arrive without gaps. Late or duplicate datagrams are dropped. On a gap, the receiver leaves the group
+ * and the client falls back to receiving the channel via TCP, the server retransmits the missed messages.
+ *
+ * Messages too large for a datagram are received via TCP, their sequence number is announced by a placeholder
+ * datagram. Datagrams following such a message are held back until it arrived. Messages are delivered while holding
+ * the receiver's lock, by the receiver thread or the connection's receiving thread, hence the channel's messages are
+ * delivered one at a time and in order.
+ */
+class MulticastReceiver implements Runnable, Closeable {
+
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static final int MAX_PENDING_PACKETS = 1000;
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final long STOP_TIMEOUT_MILLIS = 500;
+
+    private final ClientNode mClient;
+    private final String mChannelId;
+    private final long mServerNodeId;
+    private final MulticastSocket mSocket;
+    private final Thread mThread;
+    private final Codec mCodec = Codec.defaultCodecFactory.createCodec();
+
+    // guarded by this
+    private boolean mStarted = false;
+    private long mNextSequence = 0;
+    /** Datagrams received before the start sequence number is known */
+    private final TreeMap<Long, MulticastPacket> mPending = new TreeMap<>();
+    /** Received messages following a message, which was not received yet */
+    private final TreeMap<Long, MulticastPacket> mHeld = new TreeMap<>();
+    /** Sequence numbers of messages, which are received via TCP */
+    private final TreeSet<Long> mSentViaTcp = new TreeSet<>();
+
+    private volatile boolean mClosed = false;
+
+    MulticastReceiver(ClientNode client, String channelId, InetAddress group, int port, long serverNodeId,
+                      boolean isDaemon) throws IOException {
+        mClient = client;
+        mChannelId = channelId;
+        mServerNodeId = serverNodeId;
+        mSocket = new MulticastSocket(port);
+        try {
+            // a larger socket buffer reduces datagram loss during bursts, the OS might limit the actual size
+            mSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            mSocket.joinGroup(group);
+        } catch (IOException e) {
+            mSocket.close();
+            throw e;
+        }
+        mThread = ThreadFactories.newThread(client.getConnectionConfig().getThreadFactory(), this,
+                "MulticastReceiver " + channelId, isDaemon);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        // closing the socket leaves the group and terminates the receiver thread
+        mSocket.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        while (!mClosed) {
+            try {
+                datagram.setLength(buffer.length);
+                mSocket.receive(datagram);
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Logger.error("Error receiving multicast packets of channel " + mChannelId, e);
+                    fallBack();
+                }
+                break;
+            }
+            MulticastPacket packet = MulticastPacket.decode(Arrays.copyOf(buffer, datagram.getLength()),
+                    datagram.getLength());
+            // several channels and servers might share a group and port
+            if (packet != null && packet.mServerNodeId == mServerNodeId && packet.mChannelId.equals(mChannelId)) {
+                onPacket(packet);
+            }
+        }
+    }
+
+    /**
+     * Is called when the server added this client to the group's members. Datagrams with the given sequence number
+     * and later ones are taken from the group, earlier messages were sent via TCP.
+     */
+    synchronized void startAt(long sequence) {
+        mStarted = true;
+        mNextSequence = sequence;
+        for (MulticastPacket packet : mPending.values()) {
+            add(packet);
+        }
+        mPending.clear();
+        deliverHeld();
+    }
+
+    /**
+     * Is called with a message of this channel, which was too large for a datagram and was received via TCP.
+     */
+    synchronized void onTcpFrame(long sequence, byte[] frame) {
+        if (!mClosed && mStarted) {
+            add(MulticastPacket.forTcpFrame(sequence, frame));
+            deliverHeld();
+        }
+    }
+
+    /**
+     * Waits until all datagrams before the given sequence number were received and closes the receiver. Waits at
+     * most {@link #STOP_TIMEOUT_MILLIS}, datagrams not received until then are lost.
+     */
+    synchronized void stopAt(long endSequence) {
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        long remaining;
+        try {
+            while (mStarted && !mClosed && mNextSequence < endSequence &&
+                    (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mStarted && !mClosed && mNextSequence < endSequence) {
+            Logger.warn("Lost " + (endSequence - mNextSequence) + " multicast packets of channel " + mChannelId);
+        }
+        close();
+    }
+
+    private synchronized void onPacket(MulticastPacket packet) {
+        if (mClosed) {
+            return;
+        }
+        if (!mStarted) {
+            mPending.put(packet.mSequence, packet);
+            if (mPending.size() > MAX_PENDING_PACKETS) {
+                // results in a gap, once the start sequence number is known
+                mPending.pollFirstEntry();
+            }
+        } else {
+            add(packet);
+            deliverHeld();
+        }
+    }
+
+    private void add(MulticastPacket packet) {
+        if (packet.mSequence < mNextSequence) {
+            // duplicate or late datagram
+            return;
+        }
+        if (packet.isPlaceholder() && packet.mExcludedNodeId != mClient.getNodeId()) {
+            // message itself is received via TCP
+            mSentViaTcp.add(packet.mSequence);
+        } else {
+            mHeld.put(packet.mSequence, packet);
+        }
+    }
+
+    /**
+     * Delivers the held messages following the last delivered one. Falls back to TCP if a datagram is missing or if
+     * too many datagrams are held while waiting for a message sent via TCP.
+     */
+    private void deliverHeld() {
+        while (!mClosed && !mHeld.isEmpty()) {
+            long sequence = mHeld.firstKey();
+            if (sequence != mNextSequence) {
+                if (mSentViaTcp.contains(mNextSequence) && mHeld.size() <= MAX_PENDING_PACKETS) {
+                    // wait for the message sent via TCP
+                    return;
+                }
+                Logger.warn("Missed " + (sequence - mNextSequence) + " multicast packets of channel " +
+                        mChannelId + ", falling back to TCP");
+                fallBack();
+                return;
+            }
+
+            MulticastPacket packet = mHeld.pollFirstEntry().getValue();
+            mSentViaTcp.remove(mNextSequence);
+            mNextSequence++;
+            notifyAll();
+            if (packet.mExcludedNodeId != mClient.getNodeId() && !packet.isPlaceholder()) {
+                mCodec.decodeData(packet.mData, packet.mFrameOffset, packet.mFrameLength);
+                while (mCodec.hasMessage()) {
+                    mClient.onMessageReceived(mCodec.getNextMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized void fallBack() {
+        close();
+        mClient.multicastFailed(mChannelId, this, mStarted ? mNextSequence : -1);
+    }
+}
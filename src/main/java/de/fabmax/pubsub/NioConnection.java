@@ -0,0 +1,288 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection, which is served by one of the event loops of a {@link de.fabmax.pubsub.NioReactor}.
+ * Reading, decoding, encoding and writing is done on the event loop thread, hence a NioConnection doesn't need any
+ * threads of its own.
+ */
+class NioConnection extends Connection {
+
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private final SocketChannel mChannel;
+    private final String mRemoteAddress;
+    private final NioReactor.EventLoop mLoop;
+    private volatile SelectionKey mKey;
+
+    private final Codec mReceiveCodec;
+    private final Codec mSendCodec;
+
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean(false);
+    private final int mMaxBatchSize;
+    private final ByteBuffer[] mPendingWrites = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    private int mPendingOffset = 0;
+    private int mPendingCount = 0;
+
+    private final CountDownLatch mCloseLatch = new CountDownLatch(1);
+    /** True while reading is paused because a dispatch worker is full, only accessed by the event loop */
+    private boolean mReadPaused = false;
+
+    private final Runnable mRegisterTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mKey = mChannel.register(mLoop.getSelector(), SelectionKey.OP_READ, NioConnection.this);
+                handleWrite();
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+    };
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            handleWrite();
+        }
+    };
+
+    private final Runnable mResumeTask = new Runnable() {
+        @Override
+        public void run() {
+            mReadPaused = false;
+            // messages decoded before reading was paused come first
+            dispatch();
+            SelectionKey key = mKey;
+            if (!mReadPaused && key != null) {
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                } catch (CancelledKeyException e) {
+                    // connection was closed concurrently, nothing to do here
+                }
+            }
+        }
+    };
+
+    public NioConnection(SocketChannel channel, Codec.CodecFactory<?> codecFactory, ConnectionConfig config,
+                         NioReactor reactor) throws IOException {
+        this(channel, channel.getRemoteAddress().toString(), codecFactory, config, reactor);
+    }
+
+    /**
+     * Creates a connection with an explicitly given remote address. Is used for unix domain socket channels, whose
+     * client side addresses are usually unnamed.
+     */
+    public NioConnection(SocketChannel channel, String remoteAddress, Codec.CodecFactory<?> codecFactory,
+                         ConnectionConfig config, NioReactor reactor) throws IOException {
+        // the event loop never waits on the send queue, hence the parking strategy doesn't matter
+        super(config, ParkingStrategy.PARK);
+        mChannel = channel;
+        mMaxBatchSize = config.getMaxBatchSize();
+        mChannel.configureBlocking(false);
+        mRemoteAddress = remoteAddress;
+        mLoop = reactor.nextLoop();
+
+        mReceiveCodec = codecFactory.createCodec();
+        mSendCodec = codecFactory.createCodec();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        if (mKey != null && mWriteScheduled.compareAndSet(false, true)) {
+            mLoop.execute(mWriteTask);
+        }
+    }
+
+    @Override
+    protected boolean canBlock() {
+        // blocking the event loop would stall all connections served by it, including the one we wait for
+        return Thread.currentThread() != mLoop;
+    }
+
+    @Override
+    protected boolean isReadPaused() {
+        return mReadPaused;
+    }
+
+    /**
+     * Stops reading from the socket until {@link #resumeReading()} is called. Messages, which were already decoded,
+     * are kept in the receive codec. Must be called by the event loop, while it dispatches messages of this
+     * connection.
+     */
+    void pauseReading() {
+        mReadPaused = true;
+        SelectionKey key = mKey;
+        if (key != null) {
+            try {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                // connection was closed concurrently, nothing to do here
+            }
+        }
+    }
+
+    /**
+     * Resumes reading after {@link #pauseReading()}, can be called by any thread.
+     */
+    void resumeReading() {
+        mLoop.execute(mResumeTask);
+    }
+
+    @Override
+    protected Codec getSendCodec() {
+        return mSendCodec;
+    }
+
+    @Override
+    public void open() {
+        mReceiveCodec.setRelayMode(isRelayMode());
+        mLoop.execute(mRegisterTask);
+    }
+
+    @Override
+    public void close() {
+        if (!markClosed()) {
+            SelectionKey key = mKey;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Logger.error("Failed closing socket channel", e);
+            }
+            mCloseLatch.countDown();
+            fireConnectionClosed();
+            Logger.debug("Connection closed");
+        }
+    }
+
+    @Override
+    public void waitForClose() throws InterruptedException {
+        mCloseLatch.await();
+    }
+
+    /**
+     * Is called by the event loop when the channel is readable.
+     */
+    void handleRead() {
+        ByteBuffer buf = mLoop.getReadBuffer();
+        buf.clear();
+        try {
+            int len = mChannel.read(buf);
+            if (len > 0) {
+                mReceiveCodec.decodeData(buf.array(), 0, len);
+                dispatch();
+            } else if (len < 0) {
+                // connection closed
+                close();
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Logger.debug("Connection closed by remote", e);
+            }
+            close();
+        }
+    }
+
+    private void dispatch() {
+        mLoop.setReadingConnection(this);
+        try {
+            dispatchReceivedMessages(mReceiveCodec);
+        } finally {
+            mLoop.setReadingConnection(null);
+        }
+    }
+
+    /**
+     * Is called by the event loop when the channel is writable or new messages were queued. Writes as many queued
+     * messages as the socket accepts without blocking and updates the selection key's interest set accordingly.
+     * Queued messages are written with a single gathering write of up to max batch size bytes.
+     */
+    void handleWrite() {
+        SelectionKey key = mKey;
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        mWriteScheduled.set(true);
+        try {
+            while (true) {
+                if (mPendingCount == 0 && !gatherPendingWrites()) {
+                    // queue is drained, check whether new messages were queued in the meantime
+                    mWriteScheduled.set(false);
+                    if (mSendQueue.isEmpty() || !mWriteScheduled.compareAndSet(false, true)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                writeStarted();
+                long written = mChannel.write(mPendingWrites, mPendingOffset, mPendingCount);
+                while (mPendingCount > 0 && !mPendingWrites[mPendingOffset].hasRemaining()) {
+                    mPendingWrites[mPendingOffset++] = null;
+                    mPendingCount--;
+                }
+                writeFinished(written, mPendingCount == 0);
+                if (mPendingCount > 0) {
+                    // socket send buffer is full, wait until channel becomes writable again
+                    key.interestOps(getReadInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(getReadInterest());
+        } catch (CancelledKeyException e) {
+            // connection was closed concurrently, nothing to do here
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Logger.error("Error in client sender", e);
+            }
+            close();
+        }
+    }
+
+    private int getReadInterest() {
+        return mReadPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Takes queued messages until either the queue is empty, the max batch size is reached or all gather buffer slots
+     * are in use.
+     *
+     * @return true if there is something to write
+     */
+    private boolean gatherPendingWrites() {
+        mPendingOffset = 0;
+        int batchSize = 0;
+        while (mPendingCount < MAX_GATHERED_BUFFERS && batchSize < mMaxBatchSize) {
+            SharedFrame frame = mSendQueue.poll();
+            if (frame == null) {
+                break;
+            }
+            try {
+                byte[] data = encodeFrame(frame, mSendCodec);
+                mPendingWrites[mPendingCount++] = ByteBuffer.wrap(data);
+                batchSize += data.length;
+            } finally {
+                frame.release();
+            }
+        }
+        return mPendingCount > 0;
+    }
+}
@@ -0,0 +1,145 @@
+package de.fabmax.pubsub;
+
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size pool of selector threads serving an arbitrary number of {@link de.fabmax.pubsub.NioConnection}s.
+ * Connections are assigned to the event loops in round-robin order and stay on their loop until they are closed.
+ */
+class NioReactor implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final EventLoop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger(0);
+    private volatile boolean mClosed = false;
+
+    public NioReactor(int nThreads, boolean isDaemon) throws IOException {
+        mLoops = new EventLoop[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            mLoops[i] = new EventLoop(i);
+            mLoops[i].setDaemon(isDaemon);
+        }
+        for (EventLoop loop : mLoops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Returns the next event loop a new connection should be assigned to.
+     */
+    EventLoop nextLoop() {
+        int i = (mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length;
+        return mLoops[i];
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        for (EventLoop loop : mLoops) {
+            loop.mSelector.wakeup();
+        }
+    }
+
+    class EventLoop extends Thread {
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** Connection, whose received messages are currently dispatched by this loop */
+        private NioConnection mReadingConnection = null;
+
+        private EventLoop(int idx) throws IOException {
+            super("NioReactor-" + idx);
+            mSelector = Selector.open();
+        }
+
+        Selector getSelector() {
+            return mSelector;
+        }
+
+        /**
+         * Read buffer shared by all connections of this loop. Must only be used from within the loop thread.
+         */
+        ByteBuffer getReadBuffer() {
+            return mReadBuffer;
+        }
+
+        /**
+         * Returns the connection, whose received messages are currently dispatched by this loop, null if none. Must
+         * only be called from within the loop thread.
+         */
+        NioConnection getReadingConnection() {
+            return mReadingConnection;
+        }
+
+        void setReadingConnection(NioConnection connection) {
+            mReadingConnection = connection;
+        }
+
+        /**
+         * Executes the given task on this event loop's thread.
+         */
+        void execute(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!mClosed) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    Logger.error("Selector failed", e);
+                    break;
+                }
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Logger.error("Uncaught exception in event loop task", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection con = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            con.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            con.handleWrite();
+                        }
+                    } catch (RuntimeException e) {
+                        Logger.error("Uncaught exception in event loop", e);
+                    }
+                }
+            }
+
+            // close all remaining connections
+            for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                Logger.error("Failed closing selector", e);
+            }
+        }
+    }
+}
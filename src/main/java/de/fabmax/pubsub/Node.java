@@ -1,5 +1,6 @@
 package de.fabmax.pubsub;
 
+import de.fabmax.pubsub.codec.RelayMessage;
 import org.pmw.tinylog.Logger;
 
 import java.io.Closeable;
@@ -9,12 +10,14 @@ import java.util.*;
 /**
  * Created by Max on 24.02.2015.
  */
-public abstract class Node implements Closeable, ChannelProvider, MessageListener {
+public abstract class Node implements Closeable, AcknowledgingChannelProvider, MessageListener {
 
     private final long mNodeId;
 
     private final List<NodeListener> mNodeListeners = new ArrayList<>();
     protected final HashMap<String, Channel> mChannels = new HashMap<>();
+    protected ConnectionConfig mConnectionConfig = new ConnectionConfig();
+    protected final Dispatcher mDispatcher = new Dispatcher(this);
 
     protected Node() {
         // naive approach for generating a unique id, but should be good enough
@@ -29,6 +32,20 @@ public abstract class Node implements Closeable, ChannelProvider, MessageListene
         return mNodeId;
     }
 
+    /**
+     * Returns the settings used for this node's connections. Settings have to be changed before the node is opened.
+     */
+    public ConnectionConfig getConnectionConfig() {
+        return mConnectionConfig;
+    }
+
+    /**
+     * Package visible setter for AutoNode to share its connection settings with the server / client node it uses.
+     */
+    void setConnectionConfig(ConnectionConfig connectionConfig) {
+        mConnectionConfig = connectionConfig;
+    }
+
     public void addNodeListener(NodeListener listener) {
         synchronized (mNodeListeners) {
             mNodeListeners.add(listener);
@@ -81,12 +98,24 @@ public abstract class Node implements Closeable, ChannelProvider, MessageListene
     public abstract void close();
 
     @Override
-    public abstract void publish(Message message);
+    public void publish(Message message) {
+        tryPublish(message);
+    }
+
+    /**
+     * Publishes the given message like {@link #publish(Message)} and reports whether it was accepted.
+     *
+     * @return true if the message was queued for all receivers, false if it was dropped for at least one receiver
+     *         because of a full send queue or a missing connection
+     */
+    @Override
+    public abstract boolean tryPublish(Message message);
 
     @Override
     public void onMessageReceived(Message message) {
         Channel channel = mChannels.get(message.getChannelId());
-        if (channel != null) {
+        // checking relayed messages decodes their data, skip it if nobody is listening
+        if (channel != null && channel.hasMessageListeners() && !RelayMessage.isCorrupt(message)) {
             channel.onMessageReceived(message);
         }
     }
@@ -94,7 +123,7 @@ public abstract class Node implements Closeable, ChannelProvider, MessageListene
     public Channel openChannel(String channelId) {
         Channel channel = mChannels.get(channelId);
         if (channel == null) {
-            channel = new Channel(this, channelId);
+            channel = new Channel(this, channelId, mDispatcher);
             registerChannel(channel);
         }
         return channel;
@@ -0,0 +1,299 @@
+package de.fabmax.pubsub;
+
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers messages published by a {@link de.fabmax.pubsub.ClientNode} while it is not connected to the server, so
+ * that they can be sent in order after the client reconnected, see
+ * {@link de.fabmax.pubsub.ConnectionConfig#setOutboxCapacity(int)}.
+ *
+ * Messages are kept in memory up to the configured capacity, further messages are appended to the spill file if one
+ * is configured. Once a message was spilled, all following messages are spilled as well until the spill file is
+ * drained, so that the order is kept. Messages, which don't fit into the outbox, are handled according to the
+ * outbox's overflow policy.
+ */
+class Outbox implements Closeable {
+
+    private final int mCapacity;
+    private final long mTimeToLiveMillis;
+    private final OverflowPolicy mOverflowPolicy;
+    private final long mBlockTimeNanos;
+
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    /** Latest buffered in-memory entry per channel and topic, only used with OverflowPolicy.CONFLATE */
+    private final HashMap<String, Entry> mConflationIndex;
+    private final OutboxSpillFile mSpillFile;
+
+    /** True while the outbox holds messages, new messages must be buffered as well to keep the order */
+    private volatile boolean mPending = false;
+
+    // statistics, guarded by this
+    private int mHighWaterMark = 0;
+    private long mOfferedCount = 0;
+    private long mRejectedCount = 0;
+    private long mEvictedCount = 0;
+    private long mConflatedCount = 0;
+
+    Outbox(ConnectionConfig config) {
+        mCapacity = config.getOutboxCapacity();
+        mTimeToLiveMillis = config.getOutboxTimeToLive(TimeUnit.MILLISECONDS);
+        mOverflowPolicy = config.getOutboxOverflowPolicy();
+        mBlockTimeNanos = config.getOverflowBlockTime(TimeUnit.NANOSECONDS);
+        mConflationIndex = mOverflowPolicy == OverflowPolicy.CONFLATE ? new HashMap<String, Entry>() : null;
+
+        OutboxSpillFile spillFile = null;
+        File file = config.getOutboxSpillFile();
+        if (file != null) {
+            try {
+                spillFile = new OutboxSpillFile(file, config.getOutboxSpillFileSize());
+            } catch (IOException e) {
+                Logger.error("Unable to create outbox spill file " + file + ", messages are buffered in memory only: " +
+                        e.getMessage());
+            }
+        }
+        mSpillFile = spillFile;
+    }
+
+    /**
+     * Returns true while the outbox holds messages, which weren't sent yet.
+     */
+    boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * Buffers the given message if the client is not connected or older messages are still buffered.
+     *
+     * @param message      message to buffer
+     * @param connected    true if the client is currently connected to the server
+     * @return what happened to the message
+     */
+    synchronized Result offer(Message message, boolean connected) {
+        if (connected && !mPending) {
+            return Result.SEND;
+        }
+        long now = System.currentTimeMillis();
+        removeExpired(now);
+
+        Entry entry = new Entry(now, message);
+        if (!add(entry) && !handleOverflow(entry)) {
+            if (!mPending) {
+                // outbox was drained while this publisher was blocked, the client is connected again
+                return Result.SEND;
+            }
+            mRejectedCount++;
+            Logger.debug("Discarding message: outbox is full");
+            return Result.DROPPED;
+        }
+        mOfferedCount++;
+        mPending = true;
+        mHighWaterMark = Math.max(mHighWaterMark, size());
+        return Result.BUFFERED;
+    }
+
+    /**
+     * Returns the oldest buffered message without removing it or null if the outbox is empty. New messages are sent
+     * directly once this returned null. Must only be called by the thread sending the buffered messages.
+     */
+    synchronized Message peek() {
+        removeExpired(System.currentTimeMillis());
+        if (mEntries.isEmpty()) {
+            moveSpilledEntry();
+        }
+        Entry head = mEntries.peekFirst();
+        if (head == null) {
+            mPending = false;
+            return null;
+        }
+        return head.mMessage;
+    }
+
+    /**
+     * Removes the message returned by the last call of {@link #peek()}, after it was sent.
+     */
+    synchronized void remove() {
+        Entry head = mEntries.pollFirst();
+        if (head != null) {
+            unindex(head);
+            // a publisher might wait for free space
+            notifyAll();
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size() + (mSpillFile != null ? mSpillFile.size() : 0);
+    }
+
+    synchronized QueueStats getStats() {
+        return new QueueStats(mCapacity, size(), mHighWaterMark, mOfferedCount, mRejectedCount, 0, mEvictedCount,
+                mConflatedCount);
+    }
+
+    /**
+     * Discards all buffered messages and deletes the spill file.
+     */
+    @Override
+    public synchronized void close() {
+        int discarded = size();
+        if (discarded > 0) {
+            Logger.warn("Discarding " + discarded + " unsent messages in outbox");
+        }
+        mEntries.clear();
+        if (mConflationIndex != null) {
+            mConflationIndex.clear();
+        }
+        if (mSpillFile != null) {
+            mSpillFile.close();
+        }
+        mPending = false;
+        notifyAll();
+    }
+
+    private boolean isSpilling() {
+        return mSpillFile != null && !mSpillFile.isEmpty();
+    }
+
+    private boolean add(Entry entry) {
+        if (!isSpilling() && mEntries.size() < mCapacity) {
+            mEntries.addLast(entry);
+            index(entry);
+            return true;
+        }
+        return mSpillFile != null && mSpillFile.append(entry);
+    }
+
+    private boolean handleOverflow(Entry entry) {
+        switch (mOverflowPolicy) {
+            case BLOCK:
+                return blockUntilAdded(entry);
+            case DROP_OLDEST:
+                return evictUntilAdded(entry);
+            case CONFLATE:
+                return conflate(entry);
+            default:
+                return false;
+        }
+    }
+
+    private boolean blockUntilAdded(Entry entry) {
+        // space is freed when the client reconnected and sends the buffered messages
+        long deadline = System.nanoTime() + mBlockTimeNanos;
+        long remaining = mBlockTimeNanos;
+        try {
+            while (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                if (!mPending) {
+                    return false;
+                }
+                if (add(entry)) {
+                    return true;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private boolean evictUntilAdded(Entry entry) {
+        // terminates at the latest when the outbox is empty, an empty outbox takes every message into memory
+        while (true) {
+            if (!mEntries.isEmpty()) {
+                unindex(mEntries.pollFirst());
+                mEvictedCount++;
+            }
+            // move the oldest spilled message into memory to make room in the spill file
+            moveSpilledEntry();
+            if (add(entry)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean conflate(Entry entry) {
+        Entry pending = mConflationIndex.get(getConflationKey(entry.mMessage));
+        if (pending != null) {
+            // replace the pending message, keeping its position
+            pending.mMessage = entry.mMessage;
+            pending.mTime = entry.mTime;
+            mConflatedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private void removeExpired(long now) {
+        if (mTimeToLiveMillis <= 0) {
+            return;
+        }
+        long minTime = now - mTimeToLiveMillis;
+        while (true) {
+            if (mEntries.isEmpty()) {
+                moveSpilledEntry();
+            }
+            Entry head = mEntries.peekFirst();
+            if (head == null || head.mTime >= minTime) {
+                return;
+            }
+            unindex(mEntries.pollFirst());
+            mEvictedCount++;
+        }
+    }
+
+    private void moveSpilledEntry() {
+        Entry spilled = isSpilling() ? mSpillFile.poll() : null;
+        if (spilled != null) {
+            mEntries.addLast(spilled);
+            index(spilled);
+        }
+    }
+
+    private void index(Entry entry) {
+        if (mConflationIndex != null) {
+            mConflationIndex.put(getConflationKey(entry.mMessage), entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (mConflationIndex != null) {
+            String key = getConflationKey(entry.mMessage);
+            if (mConflationIndex.get(key) == entry) {
+                mConflationIndex.remove(key);
+            }
+        }
+    }
+
+    private static String getConflationKey(Message message) {
+        return message.getChannelId() + "\u0000" + message.getTopic();
+    }
+
+    enum Result {
+        /** The message was not buffered and has to be sent directly */
+        SEND,
+        /** The message was buffered */
+        BUFFERED,
+        /** The message was dropped because the outbox is full */
+        DROPPED
+    }
+
+    /**
+     * Buffered message with the time it was published.
+     */
+    static class Entry {
+        long mTime;
+        Message mMessage;
+
+        Entry(long time, Message message) {
+            mTime = time;
+            mMessage = message;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file holding the messages, which don't fit into the in-memory part of an
+ * {@link de.fabmax.pubsub.Outbox}. Messages are encoded and appended as records: enqueue time (long), priority
+ * ordinal (int), length (int) and the encoded message. Records are read in the same order, the space of read records
+ * is reclaimed by moving the remaining records to the start of the file when the end is reached.
+ *
+ * The file is only used as spill space of a running client, it is recreated on open and deleted on close. Instances
+ * are not thread-safe, they are guarded by the owning outbox.
+ */
+class OutboxSpillFile implements Closeable {
+
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final Codec mCodec = Codec.defaultCodecFactory.createCodec();
+
+    private int mReadPos = 0;
+    private int mWritePos = 0;
+    private int mCount = 0;
+
+    OutboxSpillFile(File file, int size) throws IOException {
+        mFile = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            // the mapping stays valid after the file is closed
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Appends the given entry.
+     *
+     * @return true if the entry was appended, false if the file is full
+     */
+    boolean append(Outbox.Entry entry) {
+        byte[] data = mCodec.encodeMessage(entry.mMessage);
+        int len = RECORD_HEADER_SIZE + data.length;
+        if (mWritePos + len > mBuffer.capacity()) {
+            if (mWritePos - mReadPos + len > mBuffer.capacity()) {
+                return false;
+            }
+            compact();
+        }
+        mBuffer.putLong(mWritePos, entry.mTime);
+        mBuffer.putInt(mWritePos + 8, entry.mMessage.getPriority().ordinal());
+        mBuffer.putInt(mWritePos + 12, data.length);
+        mBuffer.position(mWritePos + RECORD_HEADER_SIZE);
+        mBuffer.put(data);
+        mWritePos += len;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest entry, null if the file is empty.
+     */
+    Outbox.Entry poll() {
+        if (mCount == 0) {
+            return null;
+        }
+        long time = mBuffer.getLong(mReadPos);
+        int priority = mBuffer.getInt(mReadPos + 8);
+        byte[] data = new byte[mBuffer.getInt(mReadPos + 12)];
+        mBuffer.position(mReadPos + RECORD_HEADER_SIZE);
+        mBuffer.get(data);
+        mReadPos += RECORD_HEADER_SIZE + data.length;
+        if (--mCount == 0) {
+            mReadPos = 0;
+            mWritePos = 0;
+        }
+
+        mCodec.decodeData(data, 0, data.length);
+        Message message = mCodec.hasMessage() ? mCodec.getNextMessage() : null;
+        if (message == null) {
+            // can't happen as long as the codec decodes its own output
+            Logger.error("Dropping undecodable message from outbox spill file");
+            return poll();
+        }
+        message.setPriority(MessagePriority.values()[priority]);
+        return new Outbox.Entry(time, message);
+    }
+
+    private void compact() {
+        mBuffer.limit(mWritePos);
+        mBuffer.position(mReadPos);
+        mBuffer.compact();
+        mBuffer.clear();
+        mWritePos -= mReadPos;
+        mReadPos = 0;
+    }
+
+    @Override
+    public void close() {
+        if (mFile.exists() && !mFile.delete()) {
+            Logger.debug("Unable to delete outbox spill file " + mFile);
+        }
+    }
+}
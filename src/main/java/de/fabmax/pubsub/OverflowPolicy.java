@@ -0,0 +1,31 @@
+package de.fabmax.pubsub;
+
+/**
+ * Determines what a connection does with a message, which is sent while the connection's send queue is full. Can be
+ * set globally and per channel, see {@link de.fabmax.pubsub.ConnectionConfig#setOverflowPolicy(OverflowPolicy)} and
+ * {@link de.fabmax.pubsub.ConnectionConfig#setOverflowPolicy(String, OverflowPolicy)}.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Blocks the publishing thread until the message can be queued or the block time elapsed. The message is dropped
+     * if it still can't be queued after the block time. Non-blocking connections never block their own event loop,
+     * messages sent from there are dropped immediately.
+     */
+    BLOCK,
+
+    /** Drops the message, which is sent. This is the default. */
+    DROP_NEWEST,
+
+    /** Drops the oldest queued messages to make room for the message, which is sent. */
+    DROP_OLDEST,
+
+    /**
+     * Keeps only the latest message per channel and topic while the queue is full. A message replaces a pending
+     * message with the same channel and topic, which didn't fit into the queue.
+     */
+    CONFLATE,
+
+    /** Drops the message and closes the connection to the slow peer. */
+    DISCONNECT
+}
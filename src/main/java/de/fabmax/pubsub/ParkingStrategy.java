@@ -0,0 +1,21 @@
+package de.fabmax.pubsub;
+
+/**
+ * Determines how the sender thread of a {@link de.fabmax.pubsub.TransportMode#BLOCKING} connection waits for new
+ * messages while its send queue is empty. Spinning reduces latency at the cost of burning CPU time, hence it should
+ * only be used with few connections and enough spare cores.
+ */
+public enum ParkingStrategy {
+
+    /** Busy spins until a message arrives, lowest latency, keeps one core busy per connection. */
+    BUSY_SPIN,
+
+    /** Yields the CPU between checks of the queue. */
+    YIELD,
+
+    /** Parks the thread until a producer wakes it up, lowest CPU usage. This is the default. */
+    PARK,
+
+    /** Spins for a short while, then yields for a short while and finally parks the thread. */
+    SPIN_YIELD_PARK
+}
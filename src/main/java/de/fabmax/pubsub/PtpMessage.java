@@ -1,14 +1,20 @@
 package de.fabmax.pubsub;
 
+import de.fabmax.pubsub.codec.RelayMessage;
+
 /**
  * A Point-to-point {@link de.fabmax.pubsub.Message}.
  */
 public class PtpMessage extends Message {
 
-    private static final String KEY_FROM_NODE = "de.fabmax.pubsub.FROM";
-    private static final String KEY_TO_NODE = "de.fabmax.pubsub.TO";
+    public static final String KEY_FROM_NODE = "de.fabmax.pubsub.FROM";
+    public static final String KEY_TO_NODE = "de.fabmax.pubsub.TO";
 
     public static boolean isPtpMessage(Message msg) {
+        if (msg instanceof RelayMessage) {
+            // relay messages know whether they are point-to-point messages without decoding their data
+            return ((RelayMessage) msg).isPtpMessage();
+        }
         return msg.getData() != null &&
                 msg.getData().containsKey(KEY_FROM_NODE) &&
                 msg.getData().containsKey(KEY_TO_NODE);
@@ -18,6 +24,9 @@ public class PtpMessage extends Message {
         if (!isPtpMessage(ptpMsg)) {
             throw new IllegalArgumentException("Supplied message is not a PtpMessage");
         }
+        if (ptpMsg instanceof RelayMessage) {
+            return ((RelayMessage) ptpMsg).getFromNodeId();
+        }
         return ptpMsg.getData().getLong(KEY_FROM_NODE);
     }
 
@@ -25,6 +34,9 @@ public class PtpMessage extends Message {
         if (!isPtpMessage(ptpMsg)) {
             throw new IllegalArgumentException("Supplied message is not a PtpMessage");
         }
+        if (ptpMsg instanceof RelayMessage) {
+            return ((RelayMessage) ptpMsg).getToNodeId();
+        }
         return ptpMsg.getData().getLong(KEY_TO_NODE);
     }
 
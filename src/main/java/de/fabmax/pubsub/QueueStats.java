@@ -0,0 +1,95 @@
+package de.fabmax.pubsub;
+
+/**
+ * Snapshot of the statistics of a connection's send queue. Can be used to size the send queue capacity
+ * ({@link de.fabmax.pubsub.ConnectionConfig#setSendQueueCapacity(int)}) for a given load.
+ */
+public class QueueStats {
+
+    private final int mCapacity;
+    private final int mSize;
+    private final int mHighWaterMark;
+    private final long mOfferedCount;
+    private final long mRejectedCount;
+    private final long mContendedCount;
+    private final long mEvictedCount;
+    private final long mConflatedCount;
+
+    QueueStats(int capacity, int size, int highWaterMark, long offeredCount, long rejectedCount,
+               long contendedCount, long evictedCount, long conflatedCount) {
+        mCapacity = capacity;
+        mSize = size;
+        mHighWaterMark = highWaterMark;
+        mOfferedCount = offeredCount;
+        mRejectedCount = rejectedCount;
+        mContendedCount = contendedCount;
+        mEvictedCount = evictedCount;
+        mConflatedCount = conflatedCount;
+    }
+
+    /**
+     * Returns the maximum number of messages the queue can hold.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of messages queued at the time this snapshot was taken.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of messages, which were queued at the same time.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Returns the total number of messages accepted by the queue.
+     */
+    public long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    /**
+     * Returns the total number of messages dropped because the queue was full.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Returns the number of times a producer had to retry inserting a message because another producer inserted a
+     * message concurrently.
+     */
+    public long getContendedCount() {
+        return mContendedCount;
+    }
+
+    /**
+     * Returns the total number of queued messages, which were dropped to make room for newer messages
+     * ({@link de.fabmax.pubsub.OverflowPolicy#DROP_OLDEST}).
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Returns the total number of pending messages, which were replaced by a newer message with the same channel and
+     * topic ({@link de.fabmax.pubsub.OverflowPolicy#CONFLATE}).
+     */
+    public long getConflatedCount() {
+        return mConflatedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueStats{size=" + mSize + "/" + mCapacity + ", highWaterMark=" + mHighWaterMark +
+                ", offered=" + mOfferedCount + ", rejected=" + mRejectedCount + ", contended=" + mContendedCount +
+                ", evicted=" + mEvictedCount + ", conflated=" + mConflatedCount + "}";
+    }
+}
@@ -0,0 +1,165 @@
+package de.fabmax.pubsub;
+
+import org.pmw.tinylog.Logger;
+
+import java.util.Random;
+
+/**
+ * Server side replay state of a channel, see {@link de.fabmax.pubsub.ServerNode#enableReplay(String, int)}. Every
+ * broadcast message of the channel is stamped with a sequence number and the most recent messages are retained. A
+ * client reconnecting after a short disconnect presents the last sequence number it received and gets the messages it
+ * missed before any newer message.
+ *
+ * Sequence numbers are only valid within an epoch, a random ID chosen when replay is enabled. A client presenting an
+ * unknown epoch (e.g. because the server was restarted in the meantime) gets no replay.
+ *
+ * Instances are not thread-safe, {@link de.fabmax.pubsub.ServerNode} synchronizes on the buffer while publishing and
+ * while subscribing clients, so that a subscribing client neither misses nor duplicates a message.
+ */
+class ReplayBuffer {
+
+    private final String mChannelId;
+    private final long mEpoch;
+
+    private final SharedFrame[] mFrames;
+    private final long[] mPublisherIds;
+    /** Sequence number of the next published message, the first message gets 1 */
+    private long mNextSequence = 1;
+
+    ReplayBuffer(String channelId, int capacity) {
+        mChannelId = channelId;
+        long epoch;
+        do {
+            epoch = new Random().nextLong();
+        } while (epoch == 0);
+        mEpoch = epoch;
+        mFrames = new SharedFrame[capacity];
+        mPublisherIds = new long[capacity];
+    }
+
+    /**
+     * Returns the control message telling a subscriber the current position of this channel.
+     */
+    Message getPositionMessage() {
+        return ControlMessages.replayStart(mChannelId, mEpoch, mNextSequence - 1, 0);
+    }
+
+    /**
+     * Returns a copy of the given message, whose data contains the sequence number of the message. The message must
+     * not be a corrupt {@link de.fabmax.pubsub.codec.RelayMessage}.
+     */
+    Message stamp(Message message) {
+        Bundle data = new Bundle();
+        if (message.getData() != null) {
+            data.putAll(message.getData());
+        }
+        data.putLong(ServerNode.KEY_SEQUENCE, mNextSequence);
+        Message stamped = new Message(message.getTopic(), data);
+        stamped.setChannelId(message.getChannelId());
+        stamped.setPriority(message.getPriority());
+        return stamped;
+    }
+
+    /**
+     * Retains the frame of the message, which was stamped last.
+     *
+     * @param frame              encoded stamped message
+     * @param publisherNodeId    node ID of the client, which published the message, the message is not replayed to
+     *                           that client
+     */
+    void add(SharedFrame frame, long publisherNodeId) {
+        int i = (int) (mNextSequence % mFrames.length);
+        if (mFrames[i] != null) {
+            mFrames[i].release();
+        }
+        mFrames[i] = frame.retain();
+        mPublisherIds[i] = publisherNodeId;
+        mNextSequence++;
+    }
+
+    /**
+     * Tells the given client the position of this channel and queues the messages following the given sequence
+     * number for it. If epoch is 0, the client has no position yet and only gets the position.
+     *
+     * Replayed messages are not allowed to block the publishers of the channel, hence only as many messages as fit
+     * into the client's send queue are replayed. Older messages are skipped and reported to the client as missed, like
+     * messages which are not retained anymore. If a replayed message is dropped nevertheless, because other channels
+     * filled the send queue in the meantime, replaying stops and the client is told by a second replay start message.
+     * Replay start messages are queued as stream markers, which are neither dropped nor block while the send queue is
+     * full.
+     */
+    void replay(ClientHandler client, long epoch, long lastSequence) {
+        long first = mNextSequence;
+        long missed = 0;
+        if (epoch == mEpoch && lastSequence >= 0 && lastSequence < mNextSequence) {
+            long oldest = Math.max(1, mNextSequence - mFrames.length);
+            first = Math.max(lastSequence + 1, oldest);
+            missed = first - (lastSequence + 1);
+        } else if (epoch != 0) {
+            missed = -1;
+        }
+
+        long nodeId = client.getClientNodeId();
+        int replayable = 0;
+        for (long seq = first; seq < mNextSequence; seq++) {
+            if (isReplayedTo(seq, nodeId)) {
+                replayable++;
+            }
+        }
+        // one slot is left for the replay start message, which is queued in the same lane
+        int space = client.getSendQueueSpace() - 1;
+        while (replayable > Math.max(space, 0)) {
+            if (isReplayedTo(first, nodeId)) {
+                replayable--;
+                missed++;
+            }
+            first++;
+        }
+        if (missed != 0) {
+            Logger.warn(client.getClientAddress() + " resumed channel " + mChannelId + ", unable to replay " +
+                    (missed > 0 ? missed + " messages" : "messages of unknown epoch"));
+        }
+
+        client.sendStreamMarker(ControlMessages.replayStart(mChannelId, mEpoch, first - 1, missed));
+        int replayed = 0;
+        int dropped = 0;
+        for (long seq = first; seq < mNextSequence; seq++) {
+            if (isReplayedTo(seq, nodeId)) {
+                // once the send queue overflowed, further messages are not tried, which might block publishers
+                if (dropped == 0 && client.publish(mFrames[(int) (seq % mFrames.length)])) {
+                    replayed++;
+                } else {
+                    dropped++;
+                }
+            }
+        }
+        if (replayed > 0) {
+            Logger.debug("Replayed " + replayed + " messages of channel " + mChannelId + " to " +
+                    client.getClientAddress());
+        }
+        if (dropped > 0) {
+            Logger.warn(client.getClientAddress() + " resumed channel " + mChannelId + ", send queue overflowed, " +
+                    "dropped " + dropped + " replayed messages");
+            client.sendStreamMarker(ControlMessages.replayStart(mChannelId, mEpoch, mNextSequence - 1, dropped));
+        }
+    }
+
+    /**
+     * Returns whether the retained message with the given sequence number is replayed to the given client node.
+     */
+    private boolean isReplayedTo(long sequence, long nodeId) {
+        return nodeId == 0 || mPublisherIds[(int) (sequence % mFrames.length)] != nodeId;
+    }
+
+    /**
+     * Releases all retained frames.
+     */
+    void close() {
+        for (int i = 0; i < mFrames.length; i++) {
+            if (mFrames[i] != null) {
+                mFrames[i].release();
+                mFrames[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package de.fabmax.pubsub;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Send queue of a {@link de.fabmax.pubsub.Connection}. Frames are queued in one of three lanes: Control messages,
+ * {@link de.fabmax.pubsub.MessagePriority#HIGH} and {@link de.fabmax.pubsub.MessagePriority#NORMAL} priority messages.
+ * The consumer always drains the lane with the highest priority first, frames within a lane keep their order. Every
+ * lane wraps a {@link de.fabmax.pubsub.MpscQueue} and applies the {@link de.fabmax.pubsub.OverflowPolicy} of a frame
+ * if it is full.
+ *
+ * Conflated frames, which don't fit into a lane's queue, are kept in a separate map with one slot per channel and
+ * topic. Every slot remembers the queue's tail position at the time it was filled. The consumer takes a conflated
+ * frame as soon as it consumed all frames queued before that position and before any frame queued after it, so that
+ * a frame never overtakes an older frame with the same channel and topic. Stream markers (see
+ * {@link #offerMarker(SharedFrame, int)}), which don't fit into a lane's queue, are kept in the same map under keys of
+ * their own.
+ */
+class SendQueue {
+
+    static final int LANE_CONTROL = 0;
+    static final int LANE_HIGH = 1;
+    static final int LANE_NORMAL = 2;
+
+    private static final int MAX_CONTROL_CAPACITY = 256;
+    private static final long MIN_BLOCK_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_BLOCK_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Lane[] mLanes = new Lane[3];
+    /** The consumer waits on the queue of the normal lane, the other lanes signal it on new frames */
+    private final MpscQueue<SharedFrame> mWaitQueue;
+
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private final AtomicLong mEvictedCount = new AtomicLong(0);
+    private final AtomicLong mConflatedCount = new AtomicLong(0);
+    private final AtomicLong mMarkerCount = new AtomicLong(0);
+
+    public SendQueue(int capacity, ParkingStrategy parkingStrategy) {
+        mLanes[LANE_CONTROL] = new Lane(Math.min(capacity, MAX_CONTROL_CAPACITY), parkingStrategy);
+        mLanes[LANE_HIGH] = new Lane(capacity, parkingStrategy);
+        mLanes[LANE_NORMAL] = new Lane(capacity, parkingStrategy);
+        mWaitQueue = mLanes[LANE_NORMAL].mQueue;
+    }
+
+    /**
+     * Returns the lane used for the given message.
+     */
+    static int getLane(Message message) {
+        if (ControlMessages.CONTROL_CHANNEL_ID.equals(message.getChannelId())) {
+            // multicast start / stop and replay start mark a position in the stream of normal messages (at which the
+            // receiver switches between TCP and multicast or after which replayed messages follow), they must not
+            // overtake the normal messages queued before, neither must multicast frames sent via TCP
+            String topic = message.getTopic();
+            return ControlMessages.TOPIC_MULTICAST_START.equals(topic) ||
+                    ControlMessages.TOPIC_MULTICAST_STOP.equals(topic) ||
+                    ControlMessages.TOPIC_MULTICAST_FRAME.equals(topic) ||
+                    ControlMessages.TOPIC_REPLAY_START.equals(topic) ? LANE_NORMAL : LANE_CONTROL;
+        }
+        return message.getPriority() == MessagePriority.HIGH ? LANE_HIGH : LANE_NORMAL;
+    }
+
+    /**
+     * Queues the given frame. The frame is retained while it is queued. Can be called by any thread.
+     *
+     * @param frame         frame to queue
+     * @param lane          lane to queue the frame in
+     * @param policy        policy applied if the lane is full
+     * @param maxBlockNanos max time to wait for free space with {@link de.fabmax.pubsub.OverflowPolicy#BLOCK}
+     * @return true if the frame was queued, false if it was dropped
+     */
+    public boolean offer(SharedFrame frame, int lane, OverflowPolicy policy, long maxBlockNanos) {
+        frame.retain();
+        if (mLanes[lane].offer(frame, policy, maxBlockNanos)) {
+            if (lane != LANE_NORMAL) {
+                mWaitQueue.signal();
+            }
+            return true;
+        }
+        frame.release();
+        mDroppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Queues the given frame, waiting up to maxBlockNanos for free space in its lane. Unlike
+     * {@link #offer(SharedFrame, int, OverflowPolicy, long)}, a timeout is not counted as dropped frame, the caller
+     * is expected to retry.
+     *
+     * @return true if the frame was queued, false if the lane was still full after maxBlockNanos
+     */
+    public boolean tryOffer(SharedFrame frame, int lane, long maxBlockNanos) {
+        frame.retain();
+        if (mLanes[lane].offer(frame, OverflowPolicy.BLOCK, maxBlockNanos)) {
+            if (lane != LANE_NORMAL) {
+                mWaitQueue.signal();
+            }
+            return true;
+        }
+        frame.release();
+        return false;
+    }
+
+    /**
+     * Queues the given frame, replacing a pending frame with the same channel and topic, even if the lane is not
+     * full. Is used for slow consumers, which are in {@link de.fabmax.pubsub.SlowConsumerConfig.DegradedMode#CONFLATE}
+     * mode.
+     */
+    public void conflate(SharedFrame frame, int lane) {
+        mLanes[lane].offerConflated(frame.retain(), true);
+    }
+
+    /**
+     * Queues a frame, which marks a position in the stream of frames of the given lane and must neither be dropped nor
+     * block the caller. If the lane is full, the frame is kept aside like a conflated frame under a key of its own, so
+     * that it is not replaced and keeps its position.
+     */
+    public void offerMarker(SharedFrame frame, int lane) {
+        frame.retain();
+        if (!mLanes[lane].mQueue.offer(frame)) {
+            mLanes[lane].offerAside("\0\0" + mMarkerCount.incrementAndGet(), frame);
+        }
+        if (lane != LANE_NORMAL) {
+            mWaitQueue.signal();
+        }
+    }
+
+    /**
+     * Removes and returns the next frame to send or null if there is none. Must only be called by the consumer thread.
+     */
+    public SharedFrame poll() {
+        for (Lane lane : mLanes) {
+            SharedFrame frame = lane.poll();
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the next frame to send, waits for a frame if there is none. Must only be called by the
+     * consumer thread.
+     */
+    public SharedFrame take() throws InterruptedException {
+        SharedFrame frame;
+        while ((frame = poll()) == null) {
+            mWaitQueue.await(0, TimeUnit.NANOSECONDS);
+        }
+        return frame;
+    }
+
+    /**
+     * Removes and returns the next frame to send, waits up to the given time if there is none. Must only be called by
+     * the consumer thread.
+     */
+    public SharedFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        SharedFrame frame = poll();
+        if (frame == null) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long remaining;
+            while (frame == null && (remaining = deadline - System.nanoTime()) > 0) {
+                mWaitQueue.await(remaining, TimeUnit.NANOSECONDS);
+                frame = poll();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the number of frames, which can currently be queued in the given lane before it is full. Other producers
+     * might take the space in the meantime.
+     */
+    public int remainingCapacity(int lane) {
+        MpscQueue<SharedFrame> queue = mLanes[lane].mQueue;
+        return Math.max(0, queue.getCapacity() - queue.size());
+    }
+
+    public boolean isEmpty() {
+        for (Lane lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of queued frames including pending conflated frames.
+     */
+    public int size() {
+        int size = 0;
+        for (Lane lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * Releases all queued frames. Is called after the connection was closed.
+     */
+    public void clear() {
+        SharedFrame frame;
+        while ((frame = poll()) != null) {
+            frame.release();
+        }
+    }
+
+    public QueueStats getStats() {
+        int highWaterMark = 0;
+        long offered = 0;
+        long contended = 0;
+        for (Lane lane : mLanes) {
+            highWaterMark = Math.max(highWaterMark, lane.mQueue.getHighWaterMark());
+            offered += lane.mQueue.getOfferedCount();
+            contended += lane.mQueue.getContendedCount();
+        }
+        return new QueueStats(mLanes[LANE_NORMAL].mQueue.getCapacity(), size(), highWaterMark, offered,
+                mDroppedCount.get(), contended, mEvictedCount.get(), mConflatedCount.get());
+    }
+
+    private static String getConflationKey(Message message) {
+        return message.getChannelId() + '\0' + message.getTopic();
+    }
+
+    private class Lane {
+        final MpscQueue<SharedFrame> mQueue;
+        final ConcurrentHashMap<String, ConflatedFrame> mConflated = new ConcurrentHashMap<>();
+
+        Lane(int capacity, ParkingStrategy parkingStrategy) {
+            mQueue = new MpscQueue<>(capacity, parkingStrategy);
+        }
+
+        boolean offer(SharedFrame frame, OverflowPolicy policy, long maxBlockNanos) {
+            if (policy == OverflowPolicy.CONFLATE) {
+                offerConflated(frame, false);
+                return true;
+            }
+            if (mQueue.offer(frame)) {
+                return true;
+            }
+
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                do {
+                    SharedFrame oldest = mQueue.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        mEvictedCount.incrementAndGet();
+                    }
+                } while (!mQueue.offer(frame));
+                return true;
+            }
+            return policy == OverflowPolicy.BLOCK && maxBlockNanos > 0 && offerBlocking(frame, maxBlockNanos);
+        }
+
+        void offerConflated(SharedFrame frame, boolean always) {
+            String key = getConflationKey(frame.getMessage());
+            // a pending frame with the same key must be replaced, otherwise the new frame would overtake it
+            ConflatedFrame replaced = mConflated.replace(key, new ConflatedFrame(frame, mQueue.getOfferedCount()));
+            if (replaced == null) {
+                if (!always && mQueue.offer(frame)) {
+                    return;
+                }
+                replaced = mConflated.put(key, new ConflatedFrame(frame, mQueue.getOfferedCount()));
+                // the consumer might have drained the queues in the meantime and wait for new frames
+                mWaitQueue.signal();
+            }
+            if (replaced != null) {
+                replaced.mFrame.release();
+                mConflatedCount.incrementAndGet();
+            }
+        }
+
+        void offerAside(String key, SharedFrame frame) {
+            mConflated.put(key, new ConflatedFrame(frame, mQueue.getOfferedCount()));
+            // the consumer might have drained the queues in the meantime and wait for new frames
+            mWaitQueue.signal();
+        }
+
+        private boolean offerBlocking(SharedFrame frame, long maxBlockNanos) {
+            long deadline = System.nanoTime() + maxBlockNanos;
+            long backoff = MIN_BLOCK_BACKOFF_NANOS;
+            while (!Thread.currentThread().isInterrupted()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(backoff, remaining));
+                if (mQueue.offer(frame)) {
+                    return true;
+                }
+                backoff = Math.min(backoff * 2, MAX_BLOCK_BACKOFF_NANOS);
+            }
+            return false;
+        }
+
+        SharedFrame poll() {
+            SharedFrame frame = null;
+            if (!mConflated.isEmpty()) {
+                frame = pollConflated();
+            }
+            if (frame == null) {
+                frame = mQueue.poll();
+            }
+            return frame;
+        }
+
+        private SharedFrame pollConflated() {
+            long polled = mQueue.getPolledCount();
+            Iterator<Map.Entry<String, ConflatedFrame>> it = mConflated.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ConflatedFrame> entry = it.next();
+                ConflatedFrame conflated = entry.getValue();
+                // fails if the frame was replaced in the meantime, the replacing frame is found on the next poll
+                if (conflated.mQueuePosition <= polled && mConflated.remove(entry.getKey(), conflated)) {
+                    return conflated.mFrame;
+                }
+            }
+            return null;
+        }
+
+        boolean isEmpty() {
+            return mQueue.isEmpty() && mConflated.isEmpty();
+        }
+
+        int size() {
+            return mQueue.size() + mConflated.size();
+        }
+    }
+
+    private static class ConflatedFrame {
+        final SharedFrame mFrame;
+        final long mQueuePosition;
+
+        ConflatedFrame(SharedFrame frame, long queuePosition) {
+            mFrame = frame;
+            mQueuePosition = queuePosition;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package de.fabmax.pubsub;
 
+import de.fabmax.pubsub.codec.RelayMessage;
 import de.fabmax.pubsub.util.DnsConfiguration;
 import de.fabmax.pubsub.util.DnsServiceAdvertiser;
 import de.fabmax.pubsub.util.MessageMapper;
+import de.fabmax.pubsub.util.UnixSockets;
 import org.pmw.tinylog.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Max on 24.02.2015.
@@ -18,13 +25,44 @@ public class ServerNode extends Node {
     /** Default port used for pubsub protocol */
     public static final int DEFAULT_PORT = 9874;
 
+    /**
+     * Key of the sequence number (long), which is added to the data of messages of channels with replay enabled, see
+     * {@link #enableReplay(String, int)}.
+     */
+    public static final String KEY_SEQUENCE = "de.fabmax.pubsub.SEQ";
+
+    /** Maximum time close() waits for retry hints to be sent */
+    private static final long RETRY_HINT_FLUSH_MILLIS = 1000;
+
     private final boolean mIsDaemon;
     private final int mPort;
-    private final List<ClientHandler> mClients = new ArrayList<>();
-    private final HashMap<Long, ClientHandler> mRegisteredClients = new HashMap<>();
+    private final String mUnixSocketPath;
+    private String mInProcessName = null;
+    private String mSharedMemoryDirectory = null;
+    private SharedMemoryAcceptor mSharedMemoryAcceptor = null;
+    private final AtomicInteger mInProcessClientCount = new AtomicInteger(0);
+
+    /*
+     * Client membership and subscriptions are read without locking by the publish paths. Modifications are
+     * serialized by mMembershipLock and replace the affected arrays with modified copies (copy-on-write), so readers
+     * always see a consistent snapshot.
+     */
+    private final Object mMembershipLock = new Object();
+    private volatile ClientHandler[] mClients = new ClientHandler[0];
+    private final ConcurrentHashMap<Long, ClientHandler> mRegisteredClients = new ConcurrentHashMap<>();
+    /** Subscribed clients per channel ID, messages are only routed to clients subscribed to the message's channel */
+    private final ConcurrentHashMap<String, ClientHandler[]> mSubscribers = new ConcurrentHashMap<>();
+    /** Channels delivered via UDP multicast, mapped by channel ID */
+    private final ConcurrentHashMap<String, MulticastChannel> mMulticastChannels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReplayBuffer> mReplayBuffers = new ConcurrentHashMap<>();
+    private MulticastSocket mMulticastSocket = null;
 
     private ClientAcceptor mClientAcceptor;
+    private ClientAcceptor mUnixClientAcceptor = null;
+    private NioReactor mReactor = null;
     private DnsServiceAdvertiser mServiceAdvertiser = null;
+    private SlowConsumerMonitor mSlowConsumerMonitor = null;
+    private final List<SlowConsumerListener> mSlowConsumerListeners = new ArrayList<>();
 
     public ServerNode() {
         this(DEFAULT_PORT);
@@ -35,8 +73,24 @@ public class ServerNode extends Node {
     }
 
     public ServerNode(int port, boolean isDaemon) {
+        this(port, null, isDaemon);
+    }
+
+    /**
+     * Creates a server node, which additionally accepts clients on a unix domain socket bound to the given path.
+     * Clients on the same host can connect to it with the address "unix:" + unixSocketPath, which avoids the overhead
+     * of the loopback TCP stack. Clients on other hosts still connect via TCP on the given port.
+     *
+     * @param unixSocketPath path of the socket file or null to accept TCP clients only
+     * @throws UnsupportedOperationException if a path is given and the JVM doesn't support unix domain sockets
+     */
+    public ServerNode(int port, String unixSocketPath, boolean isDaemon) {
+        if (unixSocketPath != null && !UnixSockets.isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        }
         mIsDaemon = isDaemon;
         mPort = port;
+        mUnixSocketPath = unixSocketPath;
     }
 
     /**
@@ -46,13 +100,39 @@ public class ServerNode extends Node {
         super(nodeId);
         mIsDaemon = isDaemon;
         mPort = port;
+        mUnixSocketPath = null;
     }
 
     @Override
     public void open() throws IOException {
-        mClientAcceptor = new ClientAcceptor(this, mPort);
-        mClientAcceptor.setDaemon(mIsDaemon);
-        mClientAcceptor.start();
+        if (mInProcessName != null) {
+            InProcessConnection.registerServer(mInProcessName, this);
+        }
+        if (mConnectionConfig.getTransportMode() == TransportMode.NIO) {
+            mReactor = new NioReactor(mConnectionConfig.getNioThreads(), mIsDaemon);
+        }
+        try {
+            mClientAcceptor = new ClientAcceptor(this, mPort, mReactor);
+            mClientAcceptor.start();
+            if (mUnixSocketPath != null) {
+                mUnixClientAcceptor = new ClientAcceptor(this, mUnixSocketPath, mReactor);
+                mUnixClientAcceptor.start();
+            }
+            if (mSharedMemoryDirectory != null) {
+                mSharedMemoryAcceptor = new SharedMemoryAcceptor(this, new File(mSharedMemoryDirectory));
+                mSharedMemoryAcceptor.start();
+            }
+        } catch (IOException e) {
+            if (mInProcessName != null) {
+                InProcessConnection.unregisterServer(mInProcessName, this);
+            }
+            throw e;
+        }
+        SlowConsumerConfig slowConsumerConfig = mConnectionConfig.getSlowConsumerConfig();
+        if (slowConsumerConfig != null) {
+            mSlowConsumerMonitor = new SlowConsumerMonitor(this, slowConsumerConfig);
+            mSlowConsumerMonitor.start();
+        }
         Logger.info("Server started, nodeId: " + getNodeId());
     }
 
@@ -60,13 +140,208 @@ public class ServerNode extends Node {
         return mIsDaemon;
     }
 
+    /**
+     * Makes this server available to clients running in the same JVM under the given name. Clients connect with the
+     * address "inproc:" + name and exchange message objects directly with the server, without encoding them and
+     * without going through a socket. Must be called before the server is opened.
+     */
+    public void enableInProcessTransport(String name) {
+        mInProcessName = name;
+    }
+
+    /**
+     * Returns the name this server is available under for in-process clients or null if in-process transport is not
+     * enabled.
+     */
+    public String getInProcessName() {
+        return mInProcessName;
+    }
+
+    /**
+     * Makes this server available to clients on the same host via shared memory. Every client creates a memory-mapped
+     * file in the given directory, which contains a ring buffer per direction. Clients connect with the address
+     * "shm:" + directory. The directory should be located on a memory-backed file system, e.g. /dev/shm on Linux.
+     * Must be called before the server is opened.
+     *
+     * Shared memory connections are served by blocking connections. Waiting for data is done according to the
+     * parking strategy of the {@link de.fabmax.pubsub.ConnectionConfig}, use
+     * {@link de.fabmax.pubsub.ParkingStrategy#BUSY_SPIN} for lowest latency.
+     *
+     * @throws UnsupportedOperationException if the JVM doesn't support shared memory transport (Java 7)
+     */
+    public void enableSharedMemoryTransport(String directory) {
+        if (!MemoryFences.isSupported()) {
+            throw new UnsupportedOperationException("Shared memory transport requires Java 8 or newer");
+        }
+        mSharedMemoryDirectory = directory;
+    }
+
+    /**
+     * Returns the directory this server accepts shared memory clients in or null if shared memory transport is not
+     * enabled.
+     */
+    public String getSharedMemoryDirectory() {
+        return mSharedMemoryDirectory;
+    }
+
+    /**
+     * Enables session resumption for the given channel: Every broadcast message of the channel is stamped with a
+     * sequence number (see {@link #KEY_SEQUENCE}) and the given number of most recent messages is retained. A client,
+     * which lost its connection, presents the last sequence number it received when it reconnects and gets the
+     * messages it missed in the meantime, before any newer message. Hence a short disconnect costs a small replay
+     * instead of an application-level resync. Messages published by the reconnecting client itself are not replayed.
+     *
+     * Stamping requires the server to decode the message data, even if relay mode is enabled. Replayed messages are
+     * queued like other messages without blocking publishers, hence the buffer size is capped at the send queue
+     * capacity. Messages which don't fit into the client's send queue are reported to the client as missed.
+     *
+     * @param bufferSize    number of retained messages
+     */
+    public void enableReplay(String channelId, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be >= 1");
+        }
+        int sendQueueCapacity = getConnectionConfig().getSendQueueCapacity();
+        if (bufferSize > sendQueueCapacity) {
+            Logger.warn("Replay buffer size of channel " + channelId + " exceeds the send queue capacity, using " +
+                    sendQueueCapacity);
+            bufferSize = sendQueueCapacity;
+        }
+        ReplayBuffer buffer = new ReplayBuffer(channelId, bufferSize);
+        ReplayBuffer old;
+        synchronized (buffer) {
+            old = mReplayBuffers.put(channelId, buffer);
+            // tell current subscribers the position, clients subscribing later are told by clientSubscribed()
+            ClientHandler[] subscribers = mSubscribers.get(channelId);
+            if (subscribers != null) {
+                for (ClientHandler handler : subscribers) {
+                    handler.sendStreamMarker(buffer.getPositionMessage());
+                }
+            }
+        }
+        if (old != null) {
+            synchronized (old) {
+                old.close();
+            }
+        }
+    }
+
+    /**
+     * Stops stamping and retaining the messages of the given channel.
+     */
+    public void disableReplay(String channelId) {
+        ReplayBuffer buffer = mReplayBuffers.remove(channelId);
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.close();
+            }
+        }
+    }
+
+    /**
+     * Delivers all broadcast messages of the given channel via UDP multicast to the given group. Each message is sent
+     * once to the group instead of once per subscriber, which reduces the server's load for channels with many
+     * subscribers. Subscribed clients are told the group address and receive the channel's messages from the group
+     * as soon as they joined it. Clients, which can't join the group or miss a datagram, fall back to receiving the
+     * channel via TCP, missed messages are retransmitted if they are still retained (see
+     * {@link ConnectionConfig#setMulticastRetransmitBufferSize(int)}). Messages, which exceed
+     * {@link ConnectionConfig#getMaxMulticastPacketSize()}, are sent via TCP, group members still receive them in
+     * order with the multicast messages.
+     *
+     * Only messages relayed by this server are multicast, point-to-point messages and messages sent by clients to
+     * the server are unaffected.
+     *
+     * @param groupAddress    multicast group address, e.g. "239.1.2.3"
+     * @param port            UDP port datagrams are sent to
+     * @throws IOException if the multicast socket can't be opened
+     */
+    public void enableMulticast(String channelId, String groupAddress, int port) throws IOException {
+        InetAddress group = InetAddress.getByName(groupAddress);
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException("Not a multicast address: " + groupAddress);
+        }
+        MulticastChannel channel = new MulticastChannel(channelId, group, port, getNodeId(), getMulticastSocket(),
+                mConnectionConfig.getMaxMulticastPacketSize(), mConnectionConfig.getMulticastRetransmitBufferSize());
+        MulticastChannel old = mMulticastChannels.put(channelId, channel);
+        if (old != null) {
+            old.close();
+        }
+
+        // announce group to current subscribers, clients subscribing later are told by clientSubscribed()
+        ClientHandler[] subscribers = mSubscribers.get(channelId);
+        if (subscribers != null) {
+            for (ClientHandler handler : subscribers) {
+                handler.sendControlMessage(channel.getGroupMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops delivering the given channel via multicast, subscribers receive subsequent messages via TCP again.
+     */
+    public void disableMulticast(String channelId) {
+        MulticastChannel channel = mMulticastChannels.remove(channelId);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private synchronized MulticastSocket getMulticastSocket() throws IOException {
+        if (mMulticastSocket == null) {
+            mMulticastSocket = new MulticastSocket();
+            mMulticastSocket.setTimeToLive(mConnectionConfig.getMulticastTimeToLive());
+        }
+        return mMulticastSocket;
+    }
+
+    void multicastJoined(ClientHandler client, String channelId) {
+        MulticastChannel channel = mMulticastChannels.get(channelId);
+        if (channel != null && contains(mClients, client)) {
+            channel.join(client);
+        } else {
+            // multicast was disabled in the meantime, the receiver was not started so there is nothing to wait for
+            client.sendControlMessage(ControlMessages.multicastStop(channelId, 0));
+        }
+    }
+
+    void multicastLeft(ClientHandler client, String channelId, long nextSequence) {
+        MulticastChannel channel = mMulticastChannels.get(channelId);
+        if (channel != null) {
+            channel.leave(client, nextSequence);
+        }
+    }
+
+    int nextInProcessClientId() {
+        return mInProcessClientCount.incrementAndGet();
+    }
+
+    /**
+     * Is called when a client connected via in-process or shared memory transport.
+     */
+    void localClientConnected(Connection connection) {
+        clientConnected(new ClientHandler(this, connection));
+    }
+
+    /**
+     * Returns the path of the unix domain socket this server accepts clients on or null if it accepts TCP clients
+     * only.
+     */
+    public String getUnixSocketPath() {
+        return mUnixSocketPath;
+    }
+
     protected void clientConnected(ClientHandler clientHandler) {
         boolean first;
-        synchronized (mClients) {
-            first = mClients.isEmpty();
-            mClients.add(clientHandler);
-            Logger.info("Client connected: " + clientHandler.getClientAddress());
+        synchronized (mMembershipLock) {
+            first = mClients.length == 0;
+            mClients = append(mClients, clientHandler);
+            // add subscriptions, which were received before the client was added
+            for (String channelId : clientHandler.getRegisteredChannels()) {
+                addSubscriber(channelId, clientHandler);
+            }
         }
+        clientHandler.start();
+        Logger.info("Client connected: " + clientHandler.getClientAddress());
         if (first) {
             // the first client connected, fire onConnect event
             fireOnConnect();
@@ -75,20 +350,31 @@ public class ServerNode extends Node {
 
     protected void clientDisconnected(ClientHandler client) {
         boolean last;
-        synchronized (mClients) {
-            mClients.remove(client);
-            last = mClients.isEmpty();
-            long nodeId = client.getClientNodeId();
+        boolean unregistered = false;
+        long nodeId = client.getClientNodeId();
+        ClientHandler[] clients;
+        synchronized (mMembershipLock) {
+            mClients = remove(mClients, client);
+            clients = mClients;
+            last = clients.length == 0;
+            for (String channelId : client.getRegisteredChannels()) {
+                removeSubscriber(channelId, client);
+            }
             if (nodeId != 0) {
-                mRegisteredClients.remove(nodeId);
-                Message unregisteredMsg = ControlMessages.unregisterNode(nodeId);
-                for (ClientHandler handler : mClients) {
-                    if (handler != client) {
-                        handler.sendControlMessage(unregisteredMsg);
-                    }
-                }
-                fireOnRemoteNoteDisconnected(nodeId);
+                unregistered = mRegisteredClients.remove(nodeId, client);
+            }
+        }
+        for (MulticastChannel channel : mMulticastChannels.values()) {
+            channel.leave(client, -1);
+        }
+
+        // notify other clients and listeners after the membership lock was released
+        if (unregistered) {
+            Message unregisteredMsg = ControlMessages.unregisterNode(nodeId);
+            for (ClientHandler handler : clients) {
+                handler.sendControlMessage(unregisteredMsg);
             }
+            fireOnRemoteNoteDisconnected(nodeId);
         }
         Logger.info("Client disconnected: " + client.getClientAddress());
         if (last) {
@@ -99,17 +385,145 @@ public class ServerNode extends Node {
 
     protected void clientRegistered(long clientId, ClientHandler client) {
         Message registeredMsg = ControlMessages.registerNode(clientId);
-        synchronized (mClients) {
+        ClientHandler[] clients;
+        synchronized (mMembershipLock) {
             mRegisteredClients.put(clientId, client);
-            for (ClientHandler handler : mClients) {
-                if (handler != client) {
-                    handler.sendControlMessage(registeredMsg);
-                }
+            clients = mClients;
+        }
+        for (ClientHandler handler : clients) {
+            if (handler != client) {
+                handler.sendControlMessage(registeredMsg);
             }
         }
         fireOnRemoteNoteConnected(clientId);
     }
 
+    /**
+     * Is called by {@link de.fabmax.pubsub.ClientHandler} when its client subscribed to a channel.
+     */
+    void clientSubscribed(ClientHandler client, String channelId) {
+        clientSubscribed(client, channelId, 0, -1);
+    }
+
+    /**
+     * Is called by {@link de.fabmax.pubsub.ClientHandler} when its client subscribed to a channel and requested the
+     * messages published after the given sequence number, see {@link #enableReplay(String, int)}.
+     */
+    void clientSubscribed(ClientHandler client, String channelId, long epoch, long lastSequence) {
+        ReplayBuffer replay = mReplayBuffers.get(channelId);
+        if (replay != null) {
+            // publishing is blocked while the client is subscribed and the missed messages are queued, so that the
+            // client gets every message exactly once
+            synchronized (replay) {
+                addSubscriberIfConnected(client, channelId);
+                replay.replay(client, epoch, lastSequence);
+            }
+        } else {
+            addSubscriberIfConnected(client, channelId);
+        }
+        MulticastChannel multicast = mMulticastChannels.get(channelId);
+        if (multicast != null) {
+            client.sendControlMessage(multicast.getGroupMessage());
+        }
+    }
+
+    private void addSubscriberIfConnected(ClientHandler client, String channelId) {
+        synchronized (mMembershipLock) {
+            // if the client is not yet (or not anymore) connected, the subscription is added by clientConnected()
+            if (contains(mClients, client)) {
+                addSubscriber(channelId, client);
+            }
+        }
+    }
+
+    private void addSubscriber(String channelId, ClientHandler client) {
+        ClientHandler[] subscribers = mSubscribers.get(channelId);
+        if (subscribers == null) {
+            mSubscribers.put(channelId, new ClientHandler[] { client });
+        } else if (!contains(subscribers, client)) {
+            mSubscribers.put(channelId, append(subscribers, client));
+        }
+    }
+
+    private void removeSubscriber(String channelId, ClientHandler client) {
+        ClientHandler[] subscribers = mSubscribers.get(channelId);
+        if (subscribers != null) {
+            subscribers = remove(subscribers, client);
+            if (subscribers.length == 0) {
+                mSubscribers.remove(channelId);
+            } else {
+                mSubscribers.put(channelId, subscribers);
+            }
+        }
+    }
+
+    static boolean contains(ClientHandler[] handlers, ClientHandler handler) {
+        for (ClientHandler h : handlers) {
+            if (h == handler) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static ClientHandler[] append(ClientHandler[] handlers, ClientHandler handler) {
+        ClientHandler[] copy = Arrays.copyOf(handlers, handlers.length + 1);
+        copy[handlers.length] = handler;
+        return copy;
+    }
+
+    static ClientHandler[] remove(ClientHandler[] handlers, ClientHandler handler) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == handler) {
+                ClientHandler[] copy = new ClientHandler[handlers.length - 1];
+                System.arraycopy(handlers, 0, copy, 0, i);
+                System.arraycopy(handlers, i + 1, copy, i, copy.length - i);
+                return copy;
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Returns a snapshot of all connected clients.
+     */
+    ClientHandler[] getClients() {
+        return mClients;
+    }
+
+    /**
+     * Adds a listener, which is notified when a client is detected as slow consumer and when it recovered.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setSlowConsumerConfig(SlowConsumerConfig)
+     */
+    public void addSlowConsumerListener(SlowConsumerListener listener) {
+        synchronized (mSlowConsumerListeners) {
+            mSlowConsumerListeners.add(listener);
+        }
+    }
+
+    public void removeSlowConsumerListener(SlowConsumerListener listener) {
+        synchronized (mSlowConsumerListeners) {
+            mSlowConsumerListeners.remove(listener);
+        }
+    }
+
+    void slowConsumerDetected(ConsumerStats stats) {
+        synchronized (mSlowConsumerListeners) {
+            for (SlowConsumerListener l : mSlowConsumerListeners) {
+                l.onSlowConsumerDetected(stats);
+            }
+        }
+    }
+
+    void slowConsumerRecovered(ConsumerStats stats) {
+        synchronized (mSlowConsumerListeners) {
+            for (SlowConsumerListener l : mSlowConsumerListeners) {
+                l.onSlowConsumerRecovered(stats);
+            }
+        }
+    }
+
     protected void clientMessageReceived(ClientHandler client, Message message) {
         // redistribute received message to other clients
         publish(message, client, false);
@@ -123,7 +537,8 @@ public class ServerNode extends Node {
         if (mServiceAdvertiser != null) {
             mServiceAdvertiser.close();
         }
-        mServiceAdvertiser = new DnsServiceAdvertiser(serviceName, serviceType, mPort);
+        mServiceAdvertiser = new DnsServiceAdvertiser(serviceName, serviceType, mPort,
+                mConnectionConfig.getThreadFactory());
     }
 
     public void disableServiceAdvertising() {
@@ -133,34 +548,133 @@ public class ServerNode extends Node {
         }
     }
 
+    /**
+     * Returns the send queue statistics of all connected clients, mapped by client address.
+     */
+    public Map<String, QueueStats> getSendQueueStats() {
+        Map<String, QueueStats> stats = new HashMap<>();
+        for (ClientHandler handler : mClients) {
+            stats.put(handler.getClientAddress(), handler.getSendQueueStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the compression statistics of all connected clients, mapped by client address.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setCompression(Compression)
+     */
+    public Map<String, CompressionStats> getCompressionStats() {
+        Map<String, CompressionStats> stats = new HashMap<>();
+        for (ClientHandler handler : mClients) {
+            stats.put(handler.getClientAddress(), handler.getCompressionStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the health metrics of all connected clients collected by the last slow consumer check, mapped by client
+     * address. The returned map is empty if slow consumer detection is disabled.
+     *
+     * @see de.fabmax.pubsub.ConnectionConfig#setSlowConsumerConfig(SlowConsumerConfig)
+     */
+    public Map<String, ConsumerStats> getConsumerStats() {
+        SlowConsumerMonitor monitor = mSlowConsumerMonitor;
+        if (monitor != null) {
+            return monitor.getStats();
+        }
+        return Collections.emptyMap();
+    }
+
     @Override
     public Set<Long> getKnownNodeIds() {
-        synchronized (mClients) {
-            return new HashSet<>(mRegisteredClients.keySet());
-        }
+        return new HashSet<>(mRegisteredClients.keySet());
     }
 
     @Override
     public void close() {
         mClientAcceptor.close();
+        if (mUnixClientAcceptor != null) {
+            mUnixClientAcceptor.close();
+            mUnixClientAcceptor = null;
+        }
+        if (mInProcessName != null) {
+            InProcessConnection.unregisterServer(mInProcessName, this);
+        }
+        if (mSharedMemoryAcceptor != null) {
+            mSharedMemoryAcceptor.close();
+            mSharedMemoryAcceptor = null;
+        }
         disableServiceAdvertising();
+        if (mSlowConsumerMonitor != null) {
+            mSlowConsumerMonitor.close();
+            mSlowConsumerMonitor = null;
+        }
 
-        synchronized (mClients) {
-            for (ClientHandler handler : mClients) {
-                handler.close();
-            }
-            mClients.clear();
+        ClientHandler[] clients;
+        synchronized (mMembershipLock) {
+            clients = mClients;
+            mClients = new ClientHandler[0];
             mRegisteredClients.clear();
+            mSubscribers.clear();
+        }
+        long reconnectHint = mConnectionConfig.getReconnectHint(TimeUnit.MILLISECONDS);
+        if (reconnectHint > 0) {
+            sendRetryHint(clients, reconnectHint);
+        }
+        for (ClientHandler handler : clients) {
+            handler.close();
+        }
+        if (mReactor != null) {
+            mReactor.close();
+            mReactor = null;
         }
+        synchronized (this) {
+            if (mMulticastSocket != null) {
+                mMulticastSocket.close();
+                mMulticastSocket = null;
+            }
+        }
+        for (ReplayBuffer buffer : mReplayBuffers.values()) {
+            synchronized (buffer) {
+                buffer.close();
+            }
+        }
+        mReplayBuffers.clear();
+        mDispatcher.close();
         Logger.info("Server closed");
     }
 
+    /**
+     * Sends a retry hint to the given clients and waits until it was sent, or at most RETRY_HINT_FLUSH_MILLIS,
+     * because closing a connection drops its queued frames.
+     */
+    private void sendRetryHint(ClientHandler[] clients, long delayMillis) {
+        for (ClientHandler handler : clients) {
+            handler.sendControlMessage(ControlMessages.retryHint(delayMillis));
+        }
+        long deadline = System.currentTimeMillis() + RETRY_HINT_FLUSH_MILLIS;
+        try {
+            for (ClientHandler handler : clients) {
+                while (!handler.isFlushed() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
-    public void publish(Message message) {
-        publish(message, null, true);
+    public boolean tryPublish(Message message) {
+        return publish(message, null, true);
     }
 
-    private void publish(Message message, ClientHandler excluded, boolean fromServer) {
+    /**
+     * @return true if the message was queued for all receivers
+     */
+    private boolean publish(Message message, ClientHandler excluded, boolean fromServer) {
+        boolean accepted = true;
         if (PtpMessage.isPtpMessage(message)) {
             // this is a point-to-point message, send it only to the addressed client
             long toNodeId = PtpMessage.getToNodeId(message);
@@ -169,28 +683,60 @@ public class ServerNode extends Node {
                 onMessageReceived(message);
             } else {
                 // message is for an other client
-                synchronized (mClients) {
-                    ClientHandler handler = mRegisteredClients.get(toNodeId);
-                    if (handler != null) {
-                        handler.publish(message);
-                    } else {
-                        Logger.warn("Received PtpMessage for unknown client: " + toNodeId);
-                    }
+                ClientHandler handler = mRegisteredClients.get(toNodeId);
+                if (handler != null) {
+                    accepted = handler.tryPublish(message);
+                } else {
+                    Logger.warn("Received PtpMessage for unknown client: " + toNodeId);
+                    accepted = false;
                 }
             }
 
         } else {
-            // this is a regular broadcast message, send it to all clients (relevance is checked by ClientHandler
-            synchronized (mClients) {
-                for (ClientHandler handler : mClients) {
-                    if (handler != excluded) {
-                        handler.publish(message);
-                    }
+            ReplayBuffer replay = mReplayBuffers.get(message.getChannelId());
+            if (replay != null) {
+                if (RelayMessage.isCorrupt(message)) {
+                    // stamping decodes the message data, a corrupt message would be replaced by a valid one
+                    return false;
+                }
+                // sequence numbers must match the order in which the messages are queued for the subscribers
+                synchronized (replay) {
+                    long publisherId = excluded != null ? excluded.getClientNodeId() : getNodeId();
+                    accepted = broadcast(replay.stamp(message), excluded, replay, publisherId);
                 }
+            } else {
+                accepted = broadcast(message, excluded, null, 0);
             }
             if (!fromServer) {
                 onMessageReceived(message);
             }
         }
+        return accepted;
+    }
+
+    /**
+     * Sends a regular broadcast message to all clients subscribed to the message's channel, the message is encoded
+     * only once and the encoded frame is shared by all clients.
+     */
+    private boolean broadcast(Message message, ClientHandler excluded, ReplayBuffer replay, long publisherId) {
+        boolean accepted = true;
+        SharedFrame frame = new SharedFrame(message);
+        ClientHandler[] subscribers = mSubscribers.get(message.getChannelId());
+        MulticastChannel multicast = mMulticastChannels.get(message.getChannelId());
+        if (subscribers != null && multicast != null) {
+            // message is sent once to the multicast group and via TCP to subscribers not in the group
+            accepted = multicast.publish(frame, subscribers, excluded);
+        } else if (subscribers != null) {
+            for (ClientHandler handler : subscribers) {
+                if (handler != excluded) {
+                    accepted &= handler.publish(frame);
+                }
+            }
+        }
+        if (replay != null) {
+            replay.add(frame, publisherId);
+        }
+        frame.release();
+        return accepted;
     }
 }
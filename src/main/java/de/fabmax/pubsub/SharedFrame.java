@@ -0,0 +1,97 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An outgoing message, which is shared between the send queues of multiple connections. The message is encoded only
+ * once per codec type, all connections using the same codec type write the same immutable byte array.
+ *
+ * SharedFrames are reference counted: A newly created frame has a reference count of 1, which is owned by the
+ * creator. Every connection queuing the frame retains it and releases it after the frame was written (or dropped).
+ * The encoded data is released as soon as the reference count drops to 0.
+ */
+class SharedFrame {
+
+    private final Message mMessage;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    // in practice all connections of a node use the same codec type, hence a single cache slot is enough in most cases
+    private Class<?> mCodecType = null;
+    private byte[] mEncoded = null;
+    private HashMap<Class<?>, byte[]> mMoreEncoded = null;
+
+    // compressed frame, only cached for the compression settings used first, which again are the same in most cases
+    private String mCompressionKey = null;
+    private byte[] mCompressed = null;
+
+    public SharedFrame(Message message) {
+        mMessage = message;
+    }
+
+    public Message getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Returns the encoded frame for the given codec. The message is only encoded on the first call for each codec
+     * type, the returned array is shared and must not be modified.
+     */
+    public synchronized byte[] getEncoded(Codec codec) {
+        Class<?> type = codec.getClass();
+        if (mCodecType == null) {
+            mCodecType = type;
+            mEncoded = codec.encodeMessage(mMessage);
+        }
+        if (mCodecType == type) {
+            return mEncoded;
+        }
+
+        // more than one codec type in use
+        if (mMoreEncoded == null) {
+            mMoreEncoded = new HashMap<>();
+        }
+        byte[] encoded = mMoreEncoded.get(type);
+        if (encoded == null) {
+            encoded = codec.encodeMessage(mMessage);
+            mMoreEncoded.put(type, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the frame compressed by the given compressor, or the uncompressed frame if it is not worth compressing.
+     * The frame is only compressed once for all connections with the same compression settings, the returned array
+     * is shared and must not be modified.
+     */
+    public synchronized byte[] getCompressed(FrameCompressor compressor) {
+        byte[] encoded = getEncoded(compressor.getCodec());
+        String key = compressor.getKey();
+        if (mCompressionKey == null) {
+            mCompressionKey = key;
+            mCompressed = compressor.compress(encoded);
+        } else if (!mCompressionKey.equals(key)) {
+            return compressor.compress(encoded);
+        }
+        return mCompressed;
+    }
+
+    public SharedFrame retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (mRefCount.decrementAndGet() == 0) {
+            synchronized (this) {
+                mCodecType = null;
+                mEncoded = null;
+                mMoreEncoded = null;
+                mCompressionKey = null;
+                mCompressed = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import de.fabmax.pubsub.util.ThreadFactories;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Watches a directory for {@link de.fabmax.pubsub.SharedMemorySegment} files created by connecting clients and hands
+ * accepted segments to the {@link de.fabmax.pubsub.ServerNode} as blocking {@link de.fabmax.pubsub.StreamConnection}s.
+ */
+class SharedMemoryAcceptor implements Runnable, Closeable {
+
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    private final ServerNode mServer;
+    private final File mDirectory;
+    private final Thread mThread;
+    /** Names of segment files, which were already looked at */
+    private HashSet<String> mKnownFiles = new HashSet<>();
+
+    private volatile boolean mClosed = false;
+
+    public SharedMemoryAcceptor(ServerNode server, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create shared memory directory " + directory);
+        }
+        mServer = server;
+        mDirectory = directory;
+        mThread = ThreadFactories.newThread(server.getConnectionConfig().getThreadFactory(), this,
+                "SharedMemoryAcceptor", server.isDaemon());
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        Logger.debug("Waiting for clients to connect at " + SharedMemorySegment.SCHEME + mDirectory);
+        while (!mClosed) {
+            acceptNewSegments();
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void acceptNewSegments() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        HashSet<String> knownFiles = new HashSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SharedMemorySegment.FILE_SUFFIX)) {
+                continue;
+            }
+            knownFiles.add(name);
+            if (mKnownFiles.contains(name)) {
+                continue;
+            }
+            try {
+                ConnectionConfig config = mServer.getConnectionConfig();
+                SharedMemorySegment segment = SharedMemorySegment.accept(file, config.getParkingStrategy());
+                if (segment != null) {
+                    mServer.localClientConnected(new StreamConnection(segment,
+                            SharedMemorySegment.SCHEME + file.getPath(), Codec.defaultCodecFactory, config,
+                            mServer.isDaemon()));
+                }
+            } catch (IOException e) {
+                Logger.error("Failed accepting shared memory segment " + file, e);
+            }
+        }
+        // forget about files, which were deleted in the meantime
+        mKnownFiles = knownFiles;
+    }
+}
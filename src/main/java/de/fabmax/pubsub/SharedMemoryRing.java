@@ -0,0 +1,112 @@
+package de.fabmax.pubsub;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer single-consumer byte ring buffer in a region of a memory-mapped file. Producer and consumer usually
+ * live in different processes, each of them maps the file and creates its own SharedMemoryRing instance for the same
+ * region. A ring instance must only be used by a single thread.
+ *
+ * Region layout: write position (long), read position (long), each on its own cache line, followed by the data.
+ * Positions increase monotonically, the capacity is a power of two, so that positions are mapped to data offsets by
+ * masking.
+ *
+ * Mapped memory is not covered by the Java memory model. A position is published with a release fence after the data
+ * was accessed and read with an acquire fence before the data is accessed, see {@link de.fabmax.pubsub.MemoryFences}.
+ * Positions are 8-byte aligned, their loads and stores are atomic.
+ */
+class SharedMemoryRing {
+
+    static final int HEADER_SIZE = 128;
+
+    private static final int WRITE_POS = 0;
+    private static final int READ_POS = 64;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mMask;
+
+    /**
+     * @param buffer    mapped buffer
+     * @param offset    offset of the ring's region in buffer
+     * @param capacity  data capacity in bytes, must be a power of two
+     * @throws UnsupportedOperationException if the running JVM doesn't provide memory fences
+     */
+    SharedMemoryRing(ByteBuffer buffer, int offset, int capacity) {
+        if (!MemoryFences.isSupported()) {
+            throw new UnsupportedOperationException("Shared memory transport requires Java 8 or newer");
+        }
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        ByteBuffer region = buffer.duplicate();
+        region.position(offset);
+        region.limit(offset + HEADER_SIZE + capacity);
+        mBuffer = region.slice();
+        mCapacity = capacity;
+        mMask = capacity - 1;
+    }
+
+    static int getRegionSize(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    /**
+     * Copies up to len bytes into the ring without waiting for free space. Must only be called by the producer.
+     *
+     * @return number of bytes written, 0 if the ring is full
+     */
+    int write(byte[] data, int off, int len) {
+        long writePos = mBuffer.getLong(WRITE_POS);
+        long readPos = mBuffer.getLong(READ_POS);
+        // the consumer must have finished reading the space before it is overwritten
+        MemoryFences.acquireFence();
+        int n = Math.min(len, mCapacity - (int) (writePos - readPos));
+        if (n > 0) {
+            int index = (int) (writePos & mMask);
+            int first = Math.min(n, mCapacity - index);
+            mBuffer.position(HEADER_SIZE + index);
+            mBuffer.put(data, off, first);
+            if (first < n) {
+                mBuffer.position(HEADER_SIZE);
+                mBuffer.put(data, off + first, n - first);
+            }
+            MemoryFences.releaseFence();
+            mBuffer.putLong(WRITE_POS, writePos + n);
+        }
+        return n;
+    }
+
+    /**
+     * Copies up to len available bytes out of the ring without waiting for data. Must only be called by the consumer.
+     *
+     * @return number of bytes read, 0 if the ring is empty
+     */
+    int read(byte[] data, int off, int len) {
+        long readPos = mBuffer.getLong(READ_POS);
+        long writePos = mBuffer.getLong(WRITE_POS);
+        // the data must not be read before the position publishing it
+        MemoryFences.acquireFence();
+        int n = Math.min(len, (int) (writePos - readPos));
+        if (n > 0) {
+            int index = (int) (readPos & mMask);
+            int first = Math.min(n, mCapacity - index);
+            mBuffer.position(HEADER_SIZE + index);
+            mBuffer.get(data, off, first);
+            if (first < n) {
+                mBuffer.position(HEADER_SIZE);
+                mBuffer.get(data, off + first, n - first);
+            }
+            MemoryFences.releaseFence();
+            mBuffer.putLong(READ_POS, readPos + n);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes currently in the ring.
+     */
+    int size() {
+        return (int) (mBuffer.getLong(WRITE_POS) - mBuffer.getLong(READ_POS));
+    }
+}
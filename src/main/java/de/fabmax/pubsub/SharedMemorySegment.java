@@ -0,0 +1,315 @@
+package de.fabmax.pubsub;
+
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory-mapped file shared by a {@link de.fabmax.pubsub.ClientNode} and a {@link de.fabmax.pubsub.ServerNode} on the
+ * same host. The file contains a small header and two {@link de.fabmax.pubsub.SharedMemoryRing}s, one per direction.
+ * The rings carry the same byte stream a socket would, i.e. messages are written in the codec's frame format.
+ *
+ * A client creates a new segment file in the server's directory, the server picks it up, marks it as accepted and
+ * serves it like an accepted socket. Processes can't wake each other up, hence waiting for data or free space is done
+ * by spinning, yielding or parking with a short timeout, depending on the {@link de.fabmax.pubsub.ParkingStrategy}.
+ * Both sides write a heartbeat into the header, a connection is closed if the peer's heartbeat stops.
+ */
+class SharedMemorySegment implements Closeable {
+
+    /** Address scheme selecting a shared memory server directory, e.g. "shm:/dev/shm/pubsub" */
+    static final String SCHEME = "shm:";
+    static final String FILE_SUFFIX = ".shm";
+
+    private static final int MAGIC = 0x50534d31;
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_POS = 0;
+    private static final int VERSION_POS = 4;
+    private static final int RING_SIZE_POS = 8;
+    private static final int ACCEPTED_POS = 12;
+    private static final int CLIENT_CLOSED_POS = 16;
+    private static final int SERVER_CLOSED_POS = 20;
+    private static final int CLIENT_HEARTBEAT_POS = 64;
+    private static final int SERVER_HEARTBEAT_POS = 72;
+    private static final int HEADER_SIZE = 128;
+
+    private static final long HEARTBEAT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long PEER_TIMEOUT_MILLIS = 5000;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SPIN_TRIES = 1000;
+    private static final int YIELD_TRIES = 100;
+
+    private static final Random sRandom = new Random();
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final boolean mServerSide;
+    private final SharedMemoryRing mInRing;
+    private final SharedMemoryRing mOutRing;
+    private final ParkingStrategy mParkingStrategy;
+
+    private final InputStream mInputStream = new RingInputStream();
+    private final OutputStream mOutputStream = new RingOutputStream();
+
+    private volatile long mLastHeartbeatNanos = 0;
+    private volatile boolean mClosed = false;
+
+    private SharedMemorySegment(File file, MappedByteBuffer buffer, boolean serverSide,
+                                ParkingStrategy parkingStrategy) {
+        mFile = file;
+        mBuffer = buffer;
+        mServerSide = serverSide;
+        mParkingStrategy = parkingStrategy;
+
+        int ringSize = buffer.getInt(RING_SIZE_POS);
+        SharedMemoryRing clientToServer = new SharedMemoryRing(buffer, HEADER_SIZE, ringSize);
+        SharedMemoryRing serverToClient = new SharedMemoryRing(buffer,
+                HEADER_SIZE + SharedMemoryRing.getRegionSize(ringSize), ringSize);
+        mInRing = serverSide ? clientToServer : serverToClient;
+        mOutRing = serverSide ? serverToClient : clientToServer;
+    }
+
+    /**
+     * Creates a new segment file in the given server directory and waits until the server accepted it.
+     *
+     * @param directory       directory the server watches for new segments
+     * @param ringSize        capacity of each ring in bytes, must be a power of two
+     * @param parkingStrategy strategy used while waiting for data or free space
+     * @param acceptTimeout   max time in milliseconds to wait for the server
+     * @throws IOException if the file can't be created or the server doesn't accept it in time
+     */
+    static SharedMemorySegment connect(File directory, int ringSize, ParkingStrategy parkingStrategy,
+                                       long acceptTimeout) throws IOException {
+        String name;
+        synchronized (sRandom) {
+            name = "client-" + Long.toHexString(sRandom.nextLong() & Long.MAX_VALUE);
+        }
+        File tmpFile = new File(directory, name + ".tmp");
+        File file = new File(directory, name + FILE_SUFFIX);
+        MappedByteBuffer buffer = map(tmpFile, HEADER_SIZE + 2 * SharedMemoryRing.getRegionSize(ringSize));
+        buffer.putInt(VERSION_POS, VERSION);
+        buffer.putInt(RING_SIZE_POS, ringSize);
+        buffer.putLong(CLIENT_HEARTBEAT_POS, System.currentTimeMillis());
+        buffer.putInt(MAGIC_POS, MAGIC);
+        // the server only looks at files with the final suffix, hence it never sees a partially initialized header
+        if (!tmpFile.renameTo(file)) {
+            delete(tmpFile);
+            throw new IOException("Unable to create shared memory segment in " + directory);
+        }
+
+        SharedMemorySegment segment = new SharedMemorySegment(file, buffer, false, parkingStrategy);
+        long deadline = System.currentTimeMillis() + acceptTimeout;
+        while (buffer.getInt(ACCEPTED_POS) == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                segment.close();
+                throw new IOException("Shared memory segment was not accepted by server");
+            }
+            LockSupport.parkNanos(MAX_PARK_NANOS);
+        }
+        MemoryFences.acquireFence();
+        return segment;
+    }
+
+    /**
+     * Opens the given segment file on server side and marks it as accepted. Files, which are no valid segments,
+     * are ignored. Files of closed or unresponsive clients are deleted.
+     *
+     * @return the accepted segment or null if the file can't be accepted
+     */
+    static SharedMemorySegment accept(File file, ParkingStrategy parkingStrategy) throws IOException {
+        MappedByteBuffer buffer = map(file, 0);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_POS) != MAGIC ||
+                buffer.getInt(VERSION_POS) != VERSION || buffer.getInt(ACCEPTED_POS) != 0) {
+            return null;
+        }
+        int ringSize = buffer.getInt(RING_SIZE_POS);
+        if (Integer.bitCount(ringSize) != 1 ||
+                buffer.capacity() < HEADER_SIZE + 2L * SharedMemoryRing.getRegionSize(ringSize)) {
+            Logger.warn("Ignoring invalid shared memory segment " + file);
+            return null;
+        }
+        long heartbeatAge = System.currentTimeMillis() - buffer.getLong(CLIENT_HEARTBEAT_POS);
+        if (buffer.getInt(CLIENT_CLOSED_POS) != 0 || heartbeatAge > PEER_TIMEOUT_MILLIS) {
+            Logger.debug("Deleting stale shared memory segment " + file);
+            delete(file);
+            return null;
+        }
+        buffer.putLong(SERVER_HEARTBEAT_POS, System.currentTimeMillis());
+        MemoryFences.releaseFence();
+        buffer.putInt(ACCEPTED_POS, 1);
+        return new SharedMemorySegment(file, buffer, true, parkingStrategy);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.debug("Unable to delete shared memory segment " + file);
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mBuffer.putInt(mServerSide ? SERVER_CLOSED_POS : CLIENT_CLOSED_POS, 1);
+            // on most platforms the mapping survives deleting the file, the peer notices the closed flag anyway
+            delete(mFile);
+        }
+    }
+
+    private boolean isPeerClosed() {
+        return mBuffer.getInt(mServerSide ? CLIENT_CLOSED_POS : SERVER_CLOSED_POS) != 0;
+    }
+
+    /**
+     * Updates the own heartbeat and checks the peer's one, at most once per heartbeat interval.
+     */
+    private void heartbeat() throws IOException {
+        long now = System.nanoTime();
+        if (now - mLastHeartbeatNanos > HEARTBEAT_INTERVAL_NANOS) {
+            mLastHeartbeatNanos = now;
+            long millis = System.currentTimeMillis();
+            mBuffer.putLong(mServerSide ? SERVER_HEARTBEAT_POS : CLIENT_HEARTBEAT_POS, millis);
+            long peerHeartbeat = mBuffer.getLong(mServerSide ? CLIENT_HEARTBEAT_POS : SERVER_HEARTBEAT_POS);
+            if (millis - peerHeartbeat > PEER_TIMEOUT_MILLIS) {
+                throw new IOException("Shared memory peer stopped responding");
+            }
+        }
+    }
+
+    /**
+     * Is called while waiting for the peer.
+     *
+     * @param tries number of times the caller waited without progress so far
+     */
+    private void idle(int tries) throws IOException {
+        if (mClosed) {
+            throw new IOException("Shared memory segment is closed");
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+        heartbeat();
+
+        switch (mParkingStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case SPIN_YIELD_PARK:
+                if (tries < SPIN_TRIES) {
+                    break;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    break;
+                }
+                park(tries - SPIN_TRIES - YIELD_TRIES);
+                break;
+            default:
+                park(tries);
+                break;
+        }
+    }
+
+    private void park(int tries) {
+        // processes can't unpark each other, back off exponentially up to the max park time
+        LockSupport.parkNanos(this, Math.min(1000L << Math.min(tries, 10), MAX_PARK_NANOS));
+    }
+
+    private class RingInputStream extends InputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            heartbeat();
+            int tries = 0;
+            while (true) {
+                int n = mInRing.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                } else if (isPeerClosed()) {
+                    // peer closed and all of its data was read
+                    return mInRing.size() > 0 ? mInRing.read(b, off, len) : -1;
+                }
+                idle(tries++);
+            }
+        }
+
+        @Override
+        public void close() {
+            SharedMemorySegment.this.close();
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            heartbeat();
+            int tries = 0;
+            while (len > 0) {
+                if (isPeerClosed()) {
+                    throw new IOException("Shared memory segment was closed by peer");
+                }
+                int n = mOutRing.write(b, off, len);
+                if (n > 0) {
+                    off += n;
+                    len -= n;
+                    tries = 0;
+                } else {
+                    idle(tries++);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            SharedMemorySegment.this.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.fabmax.pubsub;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thresholds used by a {@link de.fabmax.pubsub.ServerNode} to detect clients, which can't keep up with the published
+ * messages. A client is considered slow if its send queue depth, the time a single write to its socket is stalled or
+ * its throughput while messages are queued exceed the configured thresholds. Slow clients are moved to a
+ * {@link DegradedMode} and {@link de.fabmax.pubsub.SlowConsumerListener}s are notified. A degraded client is restored
+ * to normal operation once it is within all thresholds and its queue depth dropped below half the threshold.
+ *
+ * @see de.fabmax.pubsub.ConnectionConfig#setSlowConsumerConfig(SlowConsumerConfig)
+ */
+public class SlowConsumerConfig {
+
+    /**
+     * Determines how messages for a slow client are handled.
+     */
+    public enum DegradedMode {
+        /** Only the latest pending message per channel and topic is kept. */
+        CONFLATE,
+
+        /** Only every n-th message is sent, see {@link #setSampleRate(int)}. */
+        SAMPLE,
+
+        /** The client is disconnected. */
+        EVICT
+    }
+
+    private int mMaxQueueDepth = 800;
+    private long mMaxWriteStallNanos = TimeUnit.SECONDS.toNanos(1);
+    private long mMinThroughput = 0;
+    private long mCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private DegradedMode mDegradedMode = DegradedMode.CONFLATE;
+    private int mSampleRate = 10;
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Sets the number of queued messages above which a client is considered slow. Default is 800, i.e. 80 % of the
+     * default send queue capacity.
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        if (maxQueueDepth < 1) {
+            throw new IllegalArgumentException("maxQueueDepth must be >= 1");
+        }
+        mMaxQueueDepth = maxQueueDepth;
+    }
+
+    public long getMaxWriteStall(TimeUnit unit) {
+        return unit.convert(mMaxWriteStallNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time a write to a client's socket may be stalled before the client is considered slow. Default is 1 s.
+     */
+    public void setMaxWriteStall(long maxWriteStall, TimeUnit unit) {
+        if (maxWriteStall <= 0) {
+            throw new IllegalArgumentException("maxWriteStall must be > 0");
+        }
+        mMaxWriteStallNanos = unit.toNanos(maxWriteStall);
+    }
+
+    public long getMinThroughput() {
+        return mMinThroughput;
+    }
+
+    /**
+     * Sets the minimum number of bytes per second, which must be written to a client while messages are queued for
+     * it. Default is 0, i.e. throughput is not checked.
+     */
+    public void setMinThroughput(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be >= 0");
+        }
+        mMinThroughput = bytesPerSecond;
+    }
+
+    public long getCheckInterval(TimeUnit unit) {
+        return unit.convert(mCheckIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the interval in which clients are checked. Default is 500 ms.
+     */
+    public void setCheckInterval(long checkInterval, TimeUnit unit) {
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException("checkInterval must be > 0");
+        }
+        mCheckIntervalNanos = unit.toNanos(checkInterval);
+    }
+
+    public DegradedMode getDegradedMode() {
+        return mDegradedMode;
+    }
+
+    /**
+     * Sets how messages for slow clients are handled. Default is {@link DegradedMode#CONFLATE}. Control messages are
+     * never conflated or sampled.
+     */
+    public void setDegradedMode(DegradedMode degradedMode) {
+        if (degradedMode == null) {
+            throw new NullPointerException("degradedMode must not be null");
+        }
+        mDegradedMode = degradedMode;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Sets the sample rate used in {@link DegradedMode#SAMPLE}: Only every n-th message is sent to a slow client.
+     * Default is 10.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be >= 1");
+        }
+        mSampleRate = sampleRate;
+    }
+}
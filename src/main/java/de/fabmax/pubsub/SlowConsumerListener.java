@@ -0,0 +1,22 @@
+package de.fabmax.pubsub;
+
+/**
+ * Listener notified by a {@link de.fabmax.pubsub.ServerNode} about clients, which can't keep up with the published
+ * messages. Methods are called from the server's monitor thread.
+ *
+ * @see de.fabmax.pubsub.SlowConsumerConfig
+ * @see de.fabmax.pubsub.ServerNode#addSlowConsumerListener(SlowConsumerListener)
+ */
+public interface SlowConsumerListener {
+
+    /**
+     * Is called when a client was detected as slow consumer and moved to degraded mode.
+     */
+    void onSlowConsumerDetected(ConsumerStats stats);
+
+    /**
+     * Is called when a slow client caught up and was restored to normal operation.
+     */
+    void onSlowConsumerRecovered(ConsumerStats stats);
+
+}
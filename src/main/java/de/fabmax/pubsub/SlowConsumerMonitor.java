@@ -0,0 +1,130 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.util.ThreadFactories;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checks the clients of a {@link de.fabmax.pubsub.ServerNode} against the thresholds of a
+ * {@link de.fabmax.pubsub.SlowConsumerConfig}. Slow clients are moved to the configured degraded mode and restored
+ * once they caught up again.
+ */
+class SlowConsumerMonitor implements Runnable, Closeable {
+
+    private final ServerNode mServer;
+    private final SlowConsumerConfig mConfig;
+    private final Thread mThread;
+
+    private HashMap<ClientHandler, Sample> mSamples = new HashMap<>();
+    private long mLastCheckNanos = System.nanoTime();
+    private volatile Map<String, ConsumerStats> mStats = Collections.emptyMap();
+    private volatile boolean mClosed = false;
+
+    public SlowConsumerMonitor(ServerNode server, SlowConsumerConfig config) {
+        mServer = server;
+        mConfig = config;
+        mThread = ThreadFactories.newThread(server.getConnectionConfig().getThreadFactory(), this,
+                "SlowConsumerMonitor", server.isDaemon());
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Returns the client metrics collected by the last check, mapped by client address.
+     */
+    public Map<String, ConsumerStats> getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        long interval = mConfig.getCheckInterval(TimeUnit.NANOSECONDS);
+        while (!mClosed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            checkClients();
+        }
+    }
+
+    private void checkClients() {
+        long now = System.nanoTime();
+        double seconds = (now - mLastCheckNanos) / 1e9;
+        mLastCheckNanos = now;
+
+        int maxDepth = mConfig.getMaxQueueDepth();
+        long maxStall = mConfig.getMaxWriteStall(TimeUnit.NANOSECONDS);
+        long minThroughput = mConfig.getMinThroughput();
+
+        HashMap<ClientHandler, Sample> samples = new HashMap<>();
+        HashMap<String, ConsumerStats> stats = new HashMap<>();
+        for (ClientHandler client : mServer.getClients()) {
+            Sample sample = new Sample(client.getSendQueueDepth(), client.getBytesWritten());
+            long stall = client.getWriteStallNanos();
+            Sample last = mSamples.get(client);
+            long throughput = 0;
+            boolean backlog = false;
+            if (last != null) {
+                throughput = (long) ((sample.mBytesWritten - last.mBytesWritten) / seconds);
+                // throughput is only meaningful if there was something to write during the whole interval
+                backlog = last.mQueueDepth > 0 && sample.mQueueDepth > 0;
+            }
+            boolean slow = sample.mQueueDepth > maxDepth || stall > maxStall ||
+                    (minThroughput > 0 && backlog && throughput < minThroughput);
+
+            SlowConsumerConfig.DegradedMode mode = client.getDegradedMode();
+            if (mode == null && slow) {
+                mode = mConfig.getDegradedMode();
+                ConsumerStats clientStats = new ConsumerStats(client.getClientAddress(), client.getClientNodeId(),
+                        sample.mQueueDepth, stall, throughput, mode);
+                Logger.warn("Slow consumer detected: " + clientStats);
+                if (mode == SlowConsumerConfig.DegradedMode.EVICT) {
+                    client.evict();
+                } else {
+                    client.setDegradedMode(mode, mConfig.getSampleRate());
+                }
+                mServer.slowConsumerDetected(clientStats);
+
+            } else if (mode != null && !slow && sample.mQueueDepth <= maxDepth / 2) {
+                mode = null;
+                client.setDegradedMode(null, 1);
+                ConsumerStats clientStats = new ConsumerStats(client.getClientAddress(), client.getClientNodeId(),
+                        sample.mQueueDepth, stall, throughput, null);
+                Logger.info("Slow consumer recovered: " + clientStats);
+                mServer.slowConsumerRecovered(clientStats);
+            }
+
+            samples.put(client, sample);
+            stats.put(client.getClientAddress(), new ConsumerStats(client.getClientAddress(),
+                    client.getClientNodeId(), sample.mQueueDepth, stall, throughput, mode));
+        }
+        // samples of disconnected clients are dropped
+        mSamples = samples;
+        mStats = Collections.unmodifiableMap(stats);
+    }
+
+    private static class Sample {
+        final int mQueueDepth;
+        final long mBytesWritten;
+
+        Sample(int queueDepth, long bytesWritten) {
+            mQueueDepth = queueDepth;
+            mBytesWritten = bytesWritten;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package de.fabmax.pubsub;
+
+import de.fabmax.pubsub.codec.Codec;
+import de.fabmax.pubsub.util.ThreadFactories;
+import de.fabmax.pubsub.util.UnixSockets;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Max on 24.02.2015.
+ */
+class StreamConnection extends Connection {
+
+    private Closeable mSocket;
+    private final String mRemoteAddress;
+
+    private InputStream mInStream;
+    private OutputStream mOutStream;
+
+    private final ConnectionReceiver mReceiver;
+    private final ConnectionSender mSender;
+    private final Thread mReceiverThread;
+    private final Thread mSenderThread;
+
+    public StreamConnection(Socket socket, Codec.CodecFactory<?> codecFactory, ConnectionConfig config,
+                            boolean isDaemon) throws IOException {
+        this(socket, socket.getInputStream(), socket.getOutputStream(), socket.getRemoteSocketAddress().toString(),
+                codecFactory, config, isDaemon);
+    }
+
+    /**
+     * Creates a connection for a blocking socket channel, which has no {@link java.net.Socket}, e.g. a unix domain
+     * socket channel.
+     */
+    public StreamConnection(SocketChannel channel, String remoteAddress, Codec.CodecFactory<?> codecFactory,
+                            ConnectionConfig config, boolean isDaemon) {
+        this(channel, UnixSockets.newInputStream(channel), UnixSockets.newOutputStream(channel), remoteAddress,
+                codecFactory, config, isDaemon);
+    }
+
+    /**
+     * Creates a connection, which exchanges data through the ring buffers of a shared memory segment.
+     */
+    public StreamConnection(SharedMemorySegment segment, String remoteAddress, Codec.CodecFactory<?> codecFactory,
+                            ConnectionConfig config, boolean isDaemon) {
+        this(segment, segment.getInputStream(), segment.getOutputStream(), remoteAddress, codecFactory, config,
+                isDaemon);
+    }
+
+    private StreamConnection(Closeable socket, InputStream inStream, OutputStream outStream, String remoteAddress,
+                             Codec.CodecFactory<?> codecFactory, ConnectionConfig config, boolean isDaemon) {
+        super(config, config.getParkingStrategy());
+        mSocket = socket;
+        mRemoteAddress = remoteAddress;
+
+        mInStream = inStream;
+        mOutStream = outStream;
+
+        mReceiver = new ConnectionReceiver(codecFactory);
+        mSender = new ConnectionSender(codecFactory, config);
+        mReceiverThread = ThreadFactories.newThread(config.getThreadFactory(), mReceiver,
+                "ConnectionReceiver " + mRemoteAddress, isDaemon);
+        mSenderThread = ThreadFactories.newThread(config.getThreadFactory(), mSender,
+                "ConnectionSender " + mRemoteAddress, isDaemon);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    protected Codec getSendCodec() {
+        return mSender.mCodec;
+    }
+
+    @Override
+    public void open() {
+        mReceiver.mCodec.setRelayMode(isRelayMode());
+        mReceiverThread.start();
+        mSenderThread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        boolean wasClosed = markClosed();
+
+        // sender thread might be waiting for queued messages
+        mSenderThread.interrupt();
+
+        if (mOutStream != null) {
+            try {
+                mOutStream.close();
+            } catch(IOException e) {
+                Logger.error("Failed closing output stream", e);
+            }
+            mOutStream = null;
+        }
+
+        if (mInStream != null) {
+            try {
+                mInStream.close();
+            } catch(IOException e) {
+                Logger.error("Failed closing input stream", e);
+            }
+            mInStream = null;
+        }
+
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch(IOException e) {
+                Logger.error("Failed closing socket", e);
+            }
+            mSocket = null;
+        }
+
+        if (!wasClosed) {
+            fireConnectionClosed();
+            Logger.debug("Connection closed");
+        }
+    }
+
+    @Override
+    public void waitForClose() throws InterruptedException {
+        mSenderThread.join();
+    }
+
+    private class ConnectionReceiver implements Runnable {
+        private final Codec mCodec;
+
+        public ConnectionReceiver(Codec.CodecFactory<?> codecFactory) {
+            mCodec = codecFactory.createCodec();
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] buffer = new byte[4096];
+                InputStream inStream = mInStream;
+                while (!isClosed()) {
+                    int len = inStream.read(buffer);
+                    if (len > 0) {
+                        mCodec.decodeData(buffer, 0, len);
+                        dispatchReceivedMessages(mCodec);
+                    } else if (len < 0) {
+                        // connection closed
+                        close();
+                    }
+                }
+            } catch (IOException e) {
+                // if closed socket was closed on purpose
+                if (!isClosed()) {
+                    Logger.debug("Connection closed by server", e);
+                }
+                close();
+            }
+        }
+    }
+
+    private class ConnectionSender implements Runnable {
+        private final Codec mCodec;
+        private final byte[] mBatchBuffer;
+        private final long mLingerTimeNanos;
+        private int mBatchLen = 0;
+
+        public ConnectionSender(Codec.CodecFactory codecFactory, ConnectionConfig config) {
+            mCodec = codecFactory.createCodec();
+            mBatchBuffer = new byte[config.getMaxBatchSize()];
+            mLingerTimeNanos = config.getLingerTime(TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isClosed()) {
+                    SharedFrame frame = mSendQueue.take();
+                    long lingerEnd = System.nanoTime() + mLingerTimeNanos;
+
+                    // drain the send queue and coalesce as many messages as possible into a single write
+                    while (frame != null) {
+                        try {
+                            append(encodeFrame(frame, mCodec));
+                        } finally {
+                            frame.release();
+                        }
+                        frame = mSendQueue.poll();
+                        if (frame == null && mLingerTimeNanos > 0) {
+                            long wait = lingerEnd - System.nanoTime();
+                            if (wait > 0) {
+                                frame = mSendQueue.poll(wait, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    }
+                    flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // if closed socket was closed on purpose
+                if (!isClosed()) {
+                    Logger.error("Error in client sender", e);
+                }
+                close();
+            }
+        }
+
+        private void append(byte[] data) throws IOException {
+            if (mBatchLen + data.length > mBatchBuffer.length) {
+                flush();
+            }
+            if (data.length >= mBatchBuffer.length) {
+                // message is larger than the batch buffer, write it directly
+                write(data, data.length);
+            } else {
+                System.arraycopy(data, 0, mBatchBuffer, mBatchLen, data.length);
+                mBatchLen += data.length;
+            }
+        }
+
+        private void flush() throws IOException {
+            if (mBatchLen > 0) {
+                write(mBatchBuffer, mBatchLen);
+                mBatchLen = 0;
+            }
+        }
+
+        private void write(byte[] data, int len) throws IOException {
+            OutputStream out = mOutStream;
+            if (out != null) {
+                writeStarted();
+                out.write(data, 0, len);
+                writeFinished(len, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package de.fabmax.pubsub;
+
+/**
+ * Selects the I/O model used for connections between {@link de.fabmax.pubsub.ClientNode}s and
+ * {@link de.fabmax.pubsub.ServerNode}s. Both modes use the same wire format, i.e. clients and servers using different
+ * transport modes can be mixed freely.
+ */
+public enum TransportMode {
+
+    /**
+     * Blocking socket I/O, every connection is served by a dedicated receiver and sender thread.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking socket I/O, all connections are served by a small fixed-size pool of selector threads. The number
+     * of threads stays constant regardless of the number of connected clients.
+     */
+    NIO
+}
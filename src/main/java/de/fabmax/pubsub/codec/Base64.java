@@ -36,6 +36,9 @@ public class Base64 {
     };
 
     public static byte[] decode(String base64) {
+        if (base64.isEmpty()) {
+            return new byte[0];
+        }
         int dstLen = base64.length() / 4 * 3;
         if (base64.charAt(base64.length() - 1) == '=') {
             dstLen--;
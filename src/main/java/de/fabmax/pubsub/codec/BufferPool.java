@@ -0,0 +1,65 @@
+package de.fabmax.pubsub.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A global pool of byte buffers, which are used by codecs to temporarily hold large frames. Buffer sizes are powers of
+ * two, buffers of each size are kept in a separate free list. The total size of all pooled buffers is limited, buffers
+ * released while the pool is full are left to the garbage collector.
+ */
+class BufferPool {
+
+    private static final int MIN_SIZE_BITS = 12;
+    private static final int MAX_SIZE_BITS = 30;
+
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final List<ConcurrentLinkedQueue<byte[]>> sFreeLists = new ArrayList<>();
+    private static final AtomicLong sPooledBytes = new AtomicLong(0);
+
+    static {
+        for (int i = MIN_SIZE_BITS; i <= MAX_SIZE_BITS; i++) {
+            sFreeLists.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * Returns a buffer with a size of at least minSize bytes. The size of the returned buffer is minSize rounded up to
+     * the next power of two (and at least 4 kB).
+     */
+    static byte[] acquire(int minSize) {
+        int bits = sizeBits(minSize);
+        if (bits > MAX_SIZE_BITS) {
+            return new byte[minSize];
+        }
+        byte[] buf = sFreeLists.get(bits - MIN_SIZE_BITS).poll();
+        if (buf != null) {
+            sPooledBytes.addAndGet(-buf.length);
+            return buf;
+        }
+        return new byte[1 << bits];
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller anymore.
+     */
+    static void release(byte[] buf) {
+        int bits = sizeBits(buf.length);
+        if (bits <= MAX_SIZE_BITS && buf.length == 1 << bits) {
+            if (sPooledBytes.addAndGet(buf.length) <= MAX_POOLED_BYTES) {
+                sFreeLists.get(bits - MIN_SIZE_BITS).offer(buf);
+            } else {
+                // pool is full
+                sPooledBytes.addAndGet(-buf.length);
+            }
+        }
+    }
+
+    private static int sizeBits(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(bits, MIN_SIZE_BITS);
+    }
+}
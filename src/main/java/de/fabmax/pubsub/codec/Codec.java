@@ -2,6 +2,8 @@ package de.fabmax.pubsub.codec;
 
 import de.fabmax.pubsub.Message;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by Max on 25.02.2015.
  */
@@ -9,8 +11,40 @@ public abstract class Codec {
 
     public static Codec.CodecFactory<?> defaultCodecFactory = new Codec.CodecFactory<>(ProtobufCodec.class);
 
+    private boolean mRelayMode = false;
+
+    /**
+     * Enables or disables relay mode. In relay mode, decoded messages are {@link de.fabmax.pubsub.codec.RelayMessage}s,
+     * which decode their data only on demand and can be forwarded without encoding them again. Codecs which don't
+     * support relay mode ignore this setting.
+     */
+    public void setRelayMode(boolean relayMode) {
+        mRelayMode = relayMode;
+    }
+
+    public boolean isRelayMode() {
+        return mRelayMode;
+    }
+
     public abstract byte[] encodeMessage(Message message);
 
+    /**
+     * Returns the number of bytes {@link #encodeMessage(Message, ByteBuffer)} writes for the given message. The
+     * default implementation encodes the message, codecs able to compute the size in advance should override this.
+     */
+    public int getEncodedSize(Message message) {
+        return encodeMessage(message).length;
+    }
+
+    /**
+     * Encodes the given message into the given buffer, which must have at least {@link #getEncodedSize(Message)}
+     * bytes remaining. The default implementation encodes the message into a temporary array, codecs able to write
+     * directly into the buffer should override this.
+     */
+    public void encodeMessage(Message message, ByteBuffer dst) {
+        dst.put(encodeMessage(message));
+    }
+
     public abstract void decodeData(byte[] buf, int off, int len);
 
     public abstract boolean hasMessage();
@@ -2,57 +2,113 @@ package de.fabmax.pubsub.codec;
 
 import de.fabmax.pubsub.Bundle;
 import de.fabmax.pubsub.Message;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.pmw.tinylog.Logger;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 
 /**
+ * Codec encoding messages as JSON objects, one message per line. Messages are written and parsed with a minimal
+ * streaming JSON writer / reader operating directly on UTF-8 bytes. Received data is scanned only once for line
+ * breaks, complete lines are parsed directly from the input buffer, only an incomplete last line is copied.
+ *
  * Created by Max on 24.02.2015.
  */
 public class JsonCodec extends Codec {
 
-    private final StringBuffer mReceiveBuffer = new StringBuffer();
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private byte[] mReceiveBuffer = null;
+    private int mBufferPos = 0;
     private final Deque<Message> mReceivedMessages = new ArrayDeque<>();
 
     @Override
     public byte[] encodeMessage(Message message) {
-        JSONObject obj = new JSONObject();
-        obj.put("cId", message.getChannelId());
-        obj.put("top", message.getTopic());
-
-        if (message.getData() != null && !message.getData().isEmpty()) {
-            obj.put("data", serializeBundle(message.getData()));
+        JsonWriter out = new JsonWriter();
+        out.writeAscii("{\"cId\":");
+        out.writeString(message.getChannelId());
+        out.writeAscii(",\"top\":");
+        out.writeString(message.getTopic());
+
+        Bundle data = message.getData();
+        if (data != null && !data.isEmpty()) {
+            out.writeAscii(",\"data\":");
+            serializeBundle(data, out);
         }
-
-        return (obj.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        out.writeAscii("}\n");
+        return out.toByteArray();
     }
 
     @Override
     public void decodeData(byte[] data, int off, int len) {
-        String recv = new String(data, off, len, StandardCharsets.UTF_8);
-        int lenBefore = mReceiveBuffer.length();
-        mReceiveBuffer.append(recv);
+        int end = off + len;
+        if (mBufferPos > 0) {
+            // receive buffer contains the beginning of a line, append data up to the next line break
+            int lf = indexOfLf(data, off, end);
+            int cpEnd = lf < 0 ? end : lf;
+            ensureReceiveBufferSize(mBufferPos + cpEnd - off);
+            System.arraycopy(data, off, mReceiveBuffer, mBufferPos, cpEnd - off);
+            mBufferPos += cpEnd - off;
+            if (lf < 0) {
+                return;
+            }
+            decodeLine(mReceiveBuffer, 0, mBufferPos);
+            mBufferPos = 0;
+            off = lf + 1;
+        }
+
+        // decode all complete lines directly from the input buffer
+        int lf;
+        while ((lf = indexOfLf(data, off, end)) >= 0) {
+            decodeLine(data, off, lf);
+            off = lf + 1;
+        }
 
-        int lfPos = recv.indexOf('\n');
-        if (lfPos != -1) {
-            lfPos += lenBefore;
+        if (off < end) {
+            // keep incomplete line in receive buffer
+            ensureReceiveBufferSize(end - off);
+            System.arraycopy(data, off, mReceiveBuffer, 0, end - off);
+            mBufferPos = end - off;
+        } else if (mReceiveBuffer != null && mReceiveBuffer.length > INITIAL_BUFFER_SIZE) {
+            // long line was received completely, return large buffer to pool
+            BufferPool.release(mReceiveBuffer);
+            mReceiveBuffer = null;
         }
+    }
 
-        while (lfPos != -1) {
-            recv = mReceiveBuffer.substring(0, lfPos);
-            mReceiveBuffer.replace(0, lfPos+1, "");
-            lfPos = mReceiveBuffer.indexOf("\n");
+    private static int indexOfLf(byte[] buf, int off, int end) {
+        for (int i = off; i < end; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureReceiveBufferSize(int size) {
+        if (mReceiveBuffer == null) {
+            mReceiveBuffer = size > INITIAL_BUFFER_SIZE ? BufferPool.acquire(size) : new byte[INITIAL_BUFFER_SIZE];
+        } else if (mReceiveBuffer.length < size) {
+            byte[] newBuffer = BufferPool.acquire(size);
+            System.arraycopy(mReceiveBuffer, 0, newBuffer, 0, mBufferPos);
+            if (mReceiveBuffer.length > INITIAL_BUFFER_SIZE) {
+                BufferPool.release(mReceiveBuffer);
+            }
+            mReceiveBuffer = newBuffer;
+        }
+    }
 
-            try {
-                mReceivedMessages.addLast(deserializeMessage(recv));
-            } catch (Exception e) {
-                Logger.error("Failed to deserialize message: " + recv, e);
-                e.printStackTrace();
+    private void decodeLine(byte[] buf, int off, int end) {
+        JsonReader in = new JsonReader(buf, off, end);
+        try {
+            if (in.skipWhitespace()) {
+                mReceivedMessages.addLast(deserializeMessage(in));
             }
+        } catch (RuntimeException e) {
+            Logger.error("Failed to deserialize message: " + new String(buf, off, end - off, StandardCharsets.UTF_8), e);
         }
     }
 
@@ -66,185 +122,664 @@ public class JsonCodec extends Codec {
         return mReceivedMessages.pollFirst();
     }
 
-    private Message deserializeMessage(String representation) throws Exception {
-        JSONObject obj = new JSONObject(representation);
+    private Message deserializeMessage(JsonReader in) {
         Message msg = new Message();
-        msg.setTopic(obj.getString("top"));
-        msg.setChannelId(obj.getString("cId"));
-
-        if (obj.has("data")) {
-            msg.setData(deserializeBundle(obj.getJSONArray("data")));
+        in.expect('{');
+        if (!in.tryConsume('}')) {
+            do {
+                String name = in.readString();
+                in.expect(':');
+                switch (name) {
+                    case "cId":  msg.setChannelId(in.readString()); break;
+                    case "top":  msg.setTopic(in.readString()); break;
+                    case "data": msg.setData(deserializeBundle(in)); break;
+                    default:     in.skipValue(); break;
+                }
+            } while (in.tryConsume(','));
+            in.expect('}');
+        }
+        if (in.skipWhitespace()) {
+            throw new IllegalStateException("Unexpected data after message at " + in.mPos);
+        }
+        if (msg.getChannelId() == null || msg.getTopic() == null) {
+            // every message must be routed by its channel ID
+            throw new IllegalStateException("Message without channel ID or topic");
         }
-
         return msg;
     }
 
-    private Bundle deserializeBundle(JSONArray data) {
+    private Bundle deserializeBundle(JsonReader in) {
+        if (in.tryConsumeNull()) {
+            return null;
+        }
         Bundle b = new Bundle();
-        for (int i = 0; i < data.length(); i++) {
-            JSONObject item = data.getJSONObject(i);
-            String key = item.getString("k");
-            Bundle.ElementType type = Enum.valueOf(Bundle.ElementType.class, item.getString("t"));
-            switch (type) {
-                case BOOLEAN:       b.putBoolean(key, item.getBoolean("v")); break;
-                case BOOLEAN_ARRAY: b.putBooleanArray(key, booleanArray(item.getJSONArray("v"))); break;
-                case BUNDLE:        b.putBundle(key, deserializeBundle(item.getJSONArray("v"))); break;
-                case BUNDLE_ARRAY:  b.putBundleArray(key, bundleArray(item.getJSONArray("v"))); break;
-                case BYTE_ARRAY:    b.putByteArray(key, Base64.decode(item.getString("v"))); break;
-                case DOUBLE:        b.putDouble(key, item.getDouble("v")); break;
-                case DOUBLE_ARRAY:  b.putDoubleArray(key, doubleArray(item.getJSONArray("v"))); break;
-                case FLOAT:         b.putFloat(key, (float) item.getDouble("v")); break;
-                case FLOAT_ARRAY:   b.putFloatArray(key, floatArray(item.getJSONArray("v"))); break;
-                case INT:           b.putInt(key, item.getInt("v")); break;
-                case INT_ARRAY:     b.putIntArray(key, intArray(item.getJSONArray("v"))); break;
-                case LONG:          b.putLong(key, item.getLong("v")); break;
-                case LONG_ARRAY:    b.putLongArray(key, longArray(item.getJSONArray("v"))); break;
-                case STRING:        b.putString(key, item.getString("v")); break;
-                case STRING_ARRAY:  b.putStringArray(key, stringArray(item.getJSONArray("v"))); break;
-            }
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                deserializeItem(in, b);
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
         return b;
     }
 
-    private JSONArray serializeBundle(Bundle bundle) {
-        JSONArray data = new JSONArray();
+    private void deserializeItem(JsonReader in, Bundle b) {
+        String key = null;
+        Bundle.ElementType type = null;
+        int valuePos = -1;
+        Object value = null;
+
+        in.expect('{');
+        if (!in.tryConsume('}')) {
+            do {
+                String name = in.readString();
+                in.expect(':');
+                if ("k".equals(name)) {
+                    key = in.readString();
+                } else if ("t".equals(name)) {
+                    type = Enum.valueOf(Bundle.ElementType.class, in.readString());
+                } else if ("v".equals(name) && type != null) {
+                    value = deserializeValue(in, type);
+                } else if ("v".equals(name)) {
+                    // value precedes its type, remember its position and parse it after the type is known
+                    in.skipWhitespace();
+                    valuePos = in.mPos;
+                    in.skipValue();
+                } else {
+                    in.skipValue();
+                }
+            } while (in.tryConsume(','));
+            in.expect('}');
+        }
+
+        if (key == null || type == null) {
+            throw new IllegalStateException("Incomplete bundle item at " + in.mPos);
+        }
+        if (valuePos >= 0) {
+            int pos = in.mPos;
+            in.mPos = valuePos;
+            value = deserializeValue(in, type);
+            in.mPos = pos;
+        }
+        b.put(key, type, value);
+    }
+
+    private Object deserializeValue(JsonReader in, Bundle.ElementType type) {
+        if (in.tryConsumeNull()) {
+            return null;
+        }
+        switch (type) {
+            case BOOLEAN:       return in.readBoolean();
+            case BOOLEAN_ARRAY: return booleanArray(in);
+            case BUNDLE:        return deserializeBundle(in);
+            case BUNDLE_ARRAY:  return bundleArray(in);
+            case BYTE_ARRAY:    return Base64.decode(in.readString());
+            case DOUBLE:        return in.readDouble();
+            case DOUBLE_ARRAY:  return doubleArray(in);
+            case FLOAT:         return (float) in.readDouble();
+            case FLOAT_ARRAY:   return floatArray(in);
+            case INT:           return (int) in.readLong(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            case INT_ARRAY:     return intArray(in);
+            case LONG:          return in.readLong(Long.MIN_VALUE, Long.MAX_VALUE);
+            case LONG_ARRAY:    return longArray(in);
+            case STRING:        return in.readString();
+            case STRING_ARRAY:  return stringArray(in);
+            default:            throw new IllegalStateException("Unsupported type: " + type);
+        }
+    }
 
+    private void serializeBundle(Bundle bundle, JsonWriter out) {
+        out.writeByte('[');
+        boolean first = true;
         for (String key : bundle.keySet()) {
+            if (!first) {
+                out.writeByte(',');
+            }
+            first = false;
+
             Bundle.ElementType type = bundle.getType(key);
-            JSONObject item = new JSONObject();
-            item.put("k", key);
-            item.put("t", type.toString());
-            switch (type) {
-                case BOOLEAN:       item.put("v", bundle.getBoolean(key)); break;
-                case BOOLEAN_ARRAY: item.put("v", booleanArray(bundle.getBooleanArray(key))); break;
-                case BUNDLE:        item.put("v", serializeBundle(bundle.getBundle(key))); break;
-                case BUNDLE_ARRAY:  item.put("v", bundleArray(bundle.getBundleArray(key))); break;
-                case BYTE_ARRAY:    item.put("v", Base64.encode(bundle.getByteArray(key))); break;
-                case DOUBLE:        item.put("v", bundle.getDouble(key)); break;
-                case DOUBLE_ARRAY:  item.put("v", doubleArray(bundle.getDoubleArray(key))); break;
-                case FLOAT:         item.put("v", bundle.getFloat(key)); break;
-                case FLOAT_ARRAY:   item.put("v", floatArray(bundle.getFloatArray(key))); break;
-                case INT:           item.put("v", bundle.getInt(key)); break;
-                case INT_ARRAY:     item.put("v", intArray(bundle.getIntArray(key))); break;
-                case LONG:          item.put("v", bundle.getLong(key)); break;
-                case LONG_ARRAY:    item.put("v", longArray(bundle.getLongArray(key))); break;
-                case STRING:        item.put("v", bundle.getString(key)); break;
-                case STRING_ARRAY:  item.put("v", stringArray(bundle.getStringArray(key))); break;
+            out.writeAscii("{\"k\":");
+            out.writeString(key);
+            out.writeAscii(",\"t\":\"");
+            out.writeAscii(type.toString());
+            out.writeByte('"');
+
+            Object value = bundle.get(key);
+            if (value != null) {
+                out.writeAscii(",\"v\":");
+                serializeValue(type, value, out);
             }
-            data.put(item);
+            out.writeByte('}');
         }
-        return data;
+        out.writeByte(']');
     }
 
-    private JSONArray booleanArray(boolean[] array) {
-        JSONArray arr = new JSONArray();
-        for (boolean b : array) {
-            arr.put(b);
+    private void serializeValue(Bundle.ElementType type, Object value, JsonWriter out) {
+        switch (type) {
+            case BOOLEAN:       out.writeAscii(value.toString()); break;
+            case BOOLEAN_ARRAY: booleanArray((boolean[]) value, out); break;
+            case BUNDLE:        serializeBundle((Bundle) value, out); break;
+            case BUNDLE_ARRAY:  bundleArray((Bundle[]) value, out); break;
+            case BYTE_ARRAY:    out.writeString(Base64.encode((byte[]) value)); break;
+            case DOUBLE:        out.writeDouble((Double) value); break;
+            case DOUBLE_ARRAY:  doubleArray((double[]) value, out); break;
+            case FLOAT:         out.writeFloat((Float) value); break;
+            case FLOAT_ARRAY:   floatArray((float[]) value, out); break;
+            case INT:           out.writeAscii(value.toString()); break;
+            case INT_ARRAY:     intArray((int[]) value, out); break;
+            case LONG:          out.writeAscii(value.toString()); break;
+            case LONG_ARRAY:    longArray((long[]) value, out); break;
+            case STRING:        out.writeString((String) value); break;
+            case STRING_ARRAY:  stringArray((String[]) value, out); break;
         }
-        return arr;
     }
 
-    private boolean[] booleanArray(JSONArray array) {
-        boolean[] arr = new boolean[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = array.getBoolean(i);
+    private void booleanArray(boolean[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeAscii(array[i] ? "true" : "false");
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray bundleArray(Bundle[] array) {
-        JSONArray arr = new JSONArray();
-        for (Bundle b : array) {
-            arr.put(serializeBundle(b));
+    private boolean[] booleanArray(JsonReader in) {
+        boolean[] arr = new boolean[8];
+        int n = 0;
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                if (n == arr.length) {
+                    arr = Arrays.copyOf(arr, n * 2);
+                }
+                arr[n++] = in.readBoolean();
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
-        return arr;
+        return Arrays.copyOf(arr, n);
     }
 
-    private Bundle[] bundleArray(JSONArray array) {
-        Bundle[] arr = new Bundle[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = deserializeBundle(array.getJSONArray(i));
+    private void bundleArray(Bundle[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            if (array[i] != null) {
+                serializeBundle(array[i], out);
+            } else {
+                out.writeAscii("null");
+            }
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray doubleArray(double[] array) {
-        JSONArray arr = new JSONArray();
-        for (double d : array) {
-            arr.put(d);
+    private Bundle[] bundleArray(JsonReader in) {
+        ArrayList<Bundle> arr = new ArrayList<>();
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                arr.add(deserializeBundle(in));
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
-        return arr;
+        return arr.toArray(new Bundle[arr.size()]);
     }
 
-    private double[] doubleArray(JSONArray array) {
-        double[] arr = new double[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = array.getDouble(i);
+    private void doubleArray(double[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeDouble(array[i]);
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray floatArray(float[] array) {
-        JSONArray arr = new JSONArray();
-        for (float f : array) {
-            arr.put(f);
+    private double[] doubleArray(JsonReader in) {
+        double[] arr = new double[8];
+        int n = 0;
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                if (n == arr.length) {
+                    arr = Arrays.copyOf(arr, n * 2);
+                }
+                arr[n++] = in.readDouble();
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
-        return arr;
+        return Arrays.copyOf(arr, n);
     }
 
-    private float[] floatArray(JSONArray array) {
-        float[] arr = new float[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = (float) array.getDouble(i);
+    private void floatArray(float[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeFloat(array[i]);
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray intArray(int[] array) {
-        JSONArray arr = new JSONArray();
-        for (int i : array) {
-            arr.put(i);
+    private float[] floatArray(JsonReader in) {
+        float[] arr = new float[8];
+        int n = 0;
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                if (n == arr.length) {
+                    arr = Arrays.copyOf(arr, n * 2);
+                }
+                arr[n++] = (float) in.readDouble();
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
-        return arr;
+        return Arrays.copyOf(arr, n);
     }
 
-    private int[] intArray(JSONArray array) {
-        int[] arr = new int[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = array.getInt(i);
+    private void intArray(int[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeAscii(Integer.toString(array[i]));
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray longArray(long[] array) {
-        JSONArray arr = new JSONArray();
-        for (long l : array) {
-            arr.put(l);
+    private int[] intArray(JsonReader in) {
+        int[] arr = new int[8];
+        int n = 0;
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                if (n == arr.length) {
+                    arr = Arrays.copyOf(arr, n * 2);
+                }
+                arr[n++] = (int) in.readLong(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            } while (in.tryConsume(','));
+            in.expect(']');
         }
-        return arr;
+        return Arrays.copyOf(arr, n);
     }
 
-    private long[] longArray(JSONArray array) {
-        long[] arr = new long[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = array.getLong(i);
+    private void longArray(long[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeAscii(Long.toString(array[i]));
         }
-        return arr;
+        out.writeByte(']');
     }
 
-    private JSONArray stringArray(String[] array) {
-        JSONArray arr = new JSONArray();
-        for (String s : array) {
-            arr.put(s);
+    private long[] longArray(JsonReader in) {
+        long[] arr = new long[8];
+        int n = 0;
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                if (n == arr.length) {
+                    arr = Arrays.copyOf(arr, n * 2);
+                }
+                arr[n++] = in.readLong(Long.MIN_VALUE, Long.MAX_VALUE);
+            } while (in.tryConsume(','));
+            in.expect(']');
+        }
+        return Arrays.copyOf(arr, n);
+    }
+
+    private void stringArray(String[] array, JsonWriter out) {
+        out.writeByte('[');
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeString(array[i]);
+        }
+        out.writeByte(']');
+    }
+
+    private String[] stringArray(JsonReader in) {
+        ArrayList<String> arr = new ArrayList<>();
+        in.expect('[');
+        if (!in.tryConsume(']')) {
+            do {
+                arr.add(in.readString());
+            } while (in.tryConsume(','));
+            in.expect(']');
+        }
+        return arr.toArray(new String[arr.size()]);
+    }
+
+    /**
+     * Minimal JSON writer, which directly produces UTF-8 encoded bytes.
+     */
+    private static class JsonWriter {
+        private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private byte[] mBuf = new byte[256];
+        private int mLen = 0;
+
+        void writeByte(int b) {
+            if (mLen == mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, mBuf.length * 2);
+            }
+            mBuf[mLen++] = (byte) b;
+        }
+
+        void writeAscii(String s) {
+            ensureCapacity(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                mBuf[mLen++] = (byte) s.charAt(i);
+            }
+        }
+
+        void writeDouble(double d) {
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                // JSON has no representation for non-finite numbers, they are written as strings
+                writeString(Double.toString(d));
+            } else {
+                writeAscii(Double.toString(d));
+            }
+        }
+
+        void writeFloat(float f) {
+            if (Float.isNaN(f) || Float.isInfinite(f)) {
+                writeString(Float.toString(f));
+            } else {
+                writeAscii(Float.toString(f));
+            }
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeAscii("null");
+                return;
+            }
+            // worst case is 6 bytes per char (\\uXXXX escape)
+            ensureCapacity(s.length() * 6 + 2);
+            byte[] buf = mBuf;
+            int pos = mLen;
+            buf[pos++] = '"';
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    buf[pos++] = (byte) c;
+                } else if (c == '"' || c == '\\') {
+                    buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                } else if (c == '\n') {
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'n';
+                } else if (c == '\r') {
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'r';
+                } else if (c == '\t') {
+                    buf[pos++] = '\\';
+                    buf[pos++] = 't';
+                } else if (c < 0x20 || Character.isSurrogate(c) &&
+                        !(Character.isHighSurrogate(c) && i + 1 < s.length() &&
+                                Character.isLowSurrogate(s.charAt(i + 1)))) {
+                    // control characters and unpaired surrogates are escaped
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'u';
+                    buf[pos++] = HEX_DIGITS[(c >> 12) & 0xf];
+                    buf[pos++] = HEX_DIGITS[(c >> 8) & 0xf];
+                    buf[pos++] = HEX_DIGITS[(c >> 4) & 0xf];
+                    buf[pos++] = HEX_DIGITS[c & 0xf];
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c)) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            buf[pos++] = '"';
+            mLen = pos;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuf, mLen);
+        }
+
+        private void ensureCapacity(int n) {
+            if (mLen + n > mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mLen + n));
+            }
         }
-        return arr;
     }
 
-    private String[] stringArray(JSONArray array) {
-        String[] arr = new String[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            arr[i] = array.getString(i);
+    /**
+     * Minimal JSON reader, which tokenizes a single line of UTF-8 encoded bytes.
+     */
+    private static class JsonReader {
+        private final byte[] mBuf;
+        private final int mEnd;
+        private int mPos;
+
+        JsonReader(byte[] buf, int off, int end) {
+            mBuf = buf;
+            mPos = off;
+            mEnd = end;
+        }
+
+        /**
+         * Skips whitespace and returns true if there is more data. Like org.json, all control characters are treated as
+         * whitespace.
+         */
+        boolean skipWhitespace() {
+            while (mPos < mEnd) {
+                if ((mBuf[mPos] & 0xff) > ' ') {
+                    return true;
+                }
+                mPos++;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!tryConsume(c)) {
+                throw new IllegalStateException("Expected '" + c + "' at " + mPos);
+            }
+        }
+
+        boolean tryConsume(char c) {
+            if (skipWhitespace() && mBuf[mPos] == c) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean tryConsumeNull() {
+            return tryConsumeLiteral("null");
+        }
+
+        boolean readBoolean() {
+            if (tryConsumeLiteral("true")) {
+                return true;
+            } else if (tryConsumeLiteral("false")) {
+                return false;
+            }
+            throw new IllegalStateException("Expected boolean at " + mPos);
+        }
+
+        long readLong(long min, long max) {
+            skipWhitespace();
+            int start = mPos;
+            boolean negative = mPos < mEnd && mBuf[mPos] == '-';
+            if (negative) {
+                mPos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (mPos < mEnd && mBuf[mPos] >= '0' && mBuf[mPos] <= '9') {
+                value = value * 10 - (mBuf[mPos++] - '0');
+                digits++;
+            }
+            if (digits == 0 || digits > 18 || (mPos < mEnd && isNumberChar(mBuf[mPos]))) {
+                // long numbers or numbers with fraction / exponent are parsed the slow way
+                mPos = start;
+                String token = readNumberToken();
+                long l;
+                try {
+                    l = Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    l = (long) Double.parseDouble(token);
+                }
+                return checkRange(l, min, max);
+            }
+            return checkRange(negative ? value : -value, min, max);
+        }
+
+        double readDouble() {
+            if (skipWhitespace() && mBuf[mPos] == '"') {
+                // non-finite values are encoded as strings
+                return Double.parseDouble(readString());
+            }
+            return Double.parseDouble(readNumberToken());
+        }
+
+        String readString() {
+            if (tryConsumeNull()) {
+                return null;
+            }
+            expect('"');
+            int start = mPos;
+            while (mPos < mEnd) {
+                byte b = mBuf[mPos];
+                if (b == '"') {
+                    String s = new String(mBuf, start, mPos - start, StandardCharsets.UTF_8);
+                    mPos++;
+                    return s;
+                } else if (b == '\\') {
+                    return readEscapedString(start);
+                }
+                mPos++;
+            }
+            throw new IllegalStateException("Unterminated string");
+        }
+
+        void skipValue() {
+            if (!skipWhitespace()) {
+                throw new IllegalStateException("Expected value at " + mPos);
+            }
+            byte b = mBuf[mPos];
+            if (b == '"') {
+                readString();
+            } else if (b == '{' || b == '[') {
+                byte close = b == '{' ? (byte) '}' : (byte) ']';
+                mPos++;
+                if (!tryConsume((char) close)) {
+                    do {
+                        if (b == '{') {
+                            readString();
+                            expect(':');
+                        }
+                        skipValue();
+                    } while (tryConsume(','));
+                    expect((char) close);
+                }
+            } else if (!tryConsumeLiteral("null") && !tryConsumeLiteral("true") && !tryConsumeLiteral("false")) {
+                readNumberToken();
+            }
+        }
+
+        private String readEscapedString(int start) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(new String(mBuf, start, mPos - start, StandardCharsets.UTF_8));
+            while (mPos < mEnd) {
+                byte b = mBuf[mPos];
+                if (b == '"') {
+                    mPos++;
+                    return sb.toString();
+                } else if (b == '\\') {
+                    if (mPos + 1 >= mEnd) {
+                        break;
+                    }
+                    byte esc = mBuf[mPos + 1];
+                    mPos += 2;
+                    switch (esc) {
+                        case '"':  sb.append('"'); break;
+                        case '\\': sb.append('\\'); break;
+                        case '/':  sb.append('/'); break;
+                        case 'b':  sb.append('\b'); break;
+                        case 'f':  sb.append('\f'); break;
+                        case 'n':  sb.append('\n'); break;
+                        case 'r':  sb.append('\r'); break;
+                        case 't':  sb.append('\t'); break;
+                        case 'u':
+                            if (mPos + 4 > mEnd) {
+                                throw new IllegalStateException("Invalid unicode escape at " + mPos);
+                            }
+                            sb.append((char) Integer.parseInt(new String(mBuf, mPos, 4, StandardCharsets.US_ASCII), 16));
+                            mPos += 4;
+                            break;
+                        default:
+                            throw new IllegalStateException("Invalid escape sequence at " + mPos);
+                    }
+                } else {
+                    // copy unescaped run of bytes
+                    int runStart = mPos;
+                    while (mPos < mEnd && mBuf[mPos] != '"' && mBuf[mPos] != '\\') {
+                        mPos++;
+                    }
+                    sb.append(new String(mBuf, runStart, mPos - runStart, StandardCharsets.UTF_8));
+                }
+            }
+            throw new IllegalStateException("Unterminated string");
+        }
+
+        private String readNumberToken() {
+            skipWhitespace();
+            int start = mPos;
+            while (mPos < mEnd && isNumberChar(mBuf[mPos])) {
+                mPos++;
+            }
+            if (start == mPos) {
+                throw new IllegalStateException("Expected number at " + mPos);
+            }
+            return new String(mBuf, start, mPos - start, StandardCharsets.US_ASCII);
+        }
+
+        private boolean tryConsumeLiteral(String literal) {
+            if (!skipWhitespace() || mPos + literal.length() > mEnd) {
+                return false;
+            }
+            for (int i = 0; i < literal.length(); i++) {
+                if (mBuf[mPos + i] != literal.charAt(i)) {
+                    return false;
+                }
+            }
+            mPos += literal.length();
+            return true;
+        }
+
+        private static boolean isNumberChar(byte b) {
+            return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+        }
+
+        private long checkRange(long value, long min, long max) {
+            if (value < min || value > max) {
+                throw new IllegalStateException("Number out of range at " + mPos);
+            }
+            return value;
         }
-        return arr;
     }
 }
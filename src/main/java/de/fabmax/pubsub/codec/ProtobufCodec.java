@@ -1,13 +1,16 @@
 package de.fabmax.pubsub.codec;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Descriptors;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import de.fabmax.pubsub.*;
 import de.fabmax.pubsub.Message;
 import org.pmw.tinylog.Logger;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,16 +20,21 @@ import java.util.Map;
  */
 public class ProtobufCodec extends Codec {
 
-    private static final int MAGIC = 0xefb24af1;
+    static final int MAGIC = 0xefb24af1;
     private static final byte[] MAGIC_BYTES = new byte[] {
             (byte) (MAGIC >> 24), (byte) (MAGIC >> 16), (byte) (MAGIC >> 8), (byte) MAGIC
     };
     private static final int DEFAULT_MAX_MSG_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
 
     private final Deque<Message> mReceivedMessages = new ArrayDeque<>();
-    private final byte[] mReceiveBuffer;
     private final int mMaxMsgSize;
+
+    // receive buffer is allocated on first use and only grows if a large frame is received, large buffers are taken
+    // from the BufferPool and returned to it as soon as they are not needed anymore
+    private byte[] mReceiveBuffer = null;
     private int mBufferPos = 0;
+    private int mPendingPacketSize = 0;
 
     public ProtobufCodec() {
         this(DEFAULT_MAX_MSG_SIZE);
@@ -34,11 +42,16 @@ public class ProtobufCodec extends Codec {
 
     public ProtobufCodec(int maxMsgSize) {
         mMaxMsgSize = maxMsgSize;
-        mReceiveBuffer = new byte[maxMsgSize + 8];
     }
 
     @Override
     public byte[] encodeMessage(Message message) {
+        byte[] raw = getRawFrame(message);
+        if (raw != null) {
+            // forward the original frame
+            return raw;
+        }
+
         byte[] payload = encode(message);
         byte[] data = new byte[payload.length + 8];
 
@@ -53,61 +66,116 @@ public class ProtobufCodec extends Codec {
         return data;
     }
 
+    /**
+     * Returns the original frame of the given message if it is a {@link RelayMessage} decoded by a ProtobufCodec (or
+     * subclass) and wasn't modified since. Otherwise null is returned.
+     */
+    protected static byte[] getRawFrame(Message message) {
+        if (message instanceof RelayMessage) {
+            return ((RelayMessage) message).getRawFrame(ProtobufCodec.class);
+        }
+        return null;
+    }
+
     @Override
     public void decodeData(byte[] buf, int off, int len) {
         while (len > 0) {
-            int cpLen = Math.min(len, mReceiveBuffer.length - mBufferPos);
-            System.arraycopy(buf, off, mReceiveBuffer, mBufferPos, cpLen);
-            mBufferPos += cpLen;
-            len -= cpLen;
-
-            // search for sync bytes / packet start
-            int startPos = 0;
-            while (!hasSync(mReceiveBuffer, startPos) && startPos < mBufferPos) {
-                startPos++;
+            if (mBufferPos == 0) {
+                // decode all complete packets directly from the input buffer, without copying them
+                int consumed = decodePackets(buf, off, len);
+                off += consumed;
+                len -= consumed;
+
+                if (len > 0) {
+                    // remaining data is an incomplete packet, keep it in the receive buffer
+                    ensureReceiveBufferSize(Math.max(mPendingPacketSize, len));
+                    System.arraycopy(buf, off, mReceiveBuffer, 0, len);
+                    mBufferPos = len;
+                    len = 0;
+                }
+
+            } else {
+                // receive buffer contains an incomplete packet, append only as much data as is needed to complete the
+                // packet (or its header), remaining data is decoded directly from the input buffer afterwards
+                int target = mPendingPacketSize > 0 ? mPendingPacketSize : 8;
+                ensureReceiveBufferSize(target);
+                int cpLen = Math.min(len, target - mBufferPos);
+                System.arraycopy(buf, off, mReceiveBuffer, mBufferPos, cpLen);
+                mBufferPos += cpLen;
+                off += cpLen;
+                len -= cpLen;
+
+                int consumed = decodePackets(mReceiveBuffer, 0, mBufferPos);
+                if (consumed > 0) {
+                    mBufferPos -= consumed;
+                    System.arraycopy(mReceiveBuffer, consumed, mReceiveBuffer, 0, mBufferPos);
+                }
             }
-            if (startPos > 0) {
+        }
+
+        if (mBufferPos == 0 && mReceiveBuffer != null && mReceiveBuffer.length > INITIAL_BUFFER_SIZE) {
+            // large packet was received completely, return large buffer to pool
+            BufferPool.release(mReceiveBuffer);
+            mReceiveBuffer = null;
+        }
+    }
+
+    /**
+     * Decodes all complete packets in the given buffer range and returns the number of consumed bytes. If the range
+     * ends with an incomplete packet, whose header is available, mPendingPacketSize is set to the size of that packet.
+     */
+    private int decodePackets(byte[] buf, int off, int len) {
+        int pos = off;
+        int end = off + len;
+        mPendingPacketSize = 0;
+
+        while (end - pos >= 8) {
+            if (!hasSync(buf, pos)) {
                 // skip garbage data before sync, this only happens if we have lost sync before
-                if (startPos == mBufferPos) {
-                    mBufferPos = 0;
-                    startPos = 0;
-                } else {
-                    System.arraycopy(mReceiveBuffer, startPos, mReceiveBuffer, 0, mBufferPos - startPos);
-                    mBufferPos -= startPos;
-                    startPos = 0;
-                }
+                pos++;
+                continue;
             }
 
-            while (mBufferPos > 8) {
-                // valid sync bytes found + packet length available
-                int pktLen = ((mReceiveBuffer[startPos + 4] & 0xff) << 24) |
-                             ((mReceiveBuffer[startPos + 5] & 0xff) << 16) |
-                             ((mReceiveBuffer[startPos + 6] & 0xff) << 8) |
-                              (mReceiveBuffer[startPos + 7] & 0xff);
-                if (pktLen <= mBufferPos - 8) {
-                    // packet is completely available, decode it
-                    Message msg = decode(ByteString.copyFrom(mReceiveBuffer, 8, pktLen));
-                    if (msg != null) {
-                        mReceivedMessages.addLast(msg);
-                    }
-
-                    // remove decoded bytes from buffer
-                    if (mBufferPos > pktLen + 8) {
-                        System.arraycopy(mReceiveBuffer, pktLen + 8, mReceiveBuffer, 0, mBufferPos - pktLen - 8);
-                        mBufferPos -= pktLen + 8;
-                    } else {
-                        mBufferPos = 0;
-                    }
-                } else if (pktLen >= mMaxMsgSize) {
-                    Logger.error("To large packet size: " + pktLen + " bytes, max is: " + mMaxMsgSize + " bytes");
-                    // drop data
-                    mBufferPos = 0;
+            int pktLen = ((buf[pos + 4] & 0xff) << 24) |
+                         ((buf[pos + 5] & 0xff) << 16) |
+                         ((buf[pos + 6] & 0xff) << 8) |
+                          (buf[pos + 7] & 0xff);
+            if (pktLen < 0 || pktLen > mMaxMsgSize) {
+                Logger.error("To large packet size: " + pktLen + " bytes, max is: " + mMaxMsgSize + " bytes");
+                // drop data, skip sync bytes and search for next packet start
+                pos += 4;
+            } else if (pktLen <= end - pos - 8) {
+                // packet is completely available, decode it
+                Message msg;
+                if (isRelayMode()) {
+                    msg = decodeHeader(Arrays.copyOfRange(buf, pos, pos + pktLen + 8));
                 } else {
-                    // packet is not yet complete
-                    break;
+                    msg = decode(buf, pos + 8, pktLen);
+                }
+                if (msg != null) {
+                    mReceivedMessages.addLast(msg);
                 }
+                pos += pktLen + 8;
+            } else {
+                // packet is not yet complete
+                mPendingPacketSize = pktLen + 8;
+                break;
             }
         }
+        return pos - off;
+    }
+
+    private void ensureReceiveBufferSize(int size) {
+        if (mReceiveBuffer == null) {
+            mReceiveBuffer = size > INITIAL_BUFFER_SIZE ? BufferPool.acquire(size) : new byte[INITIAL_BUFFER_SIZE];
+        } else if (mReceiveBuffer.length < size) {
+            byte[] newBuffer = BufferPool.acquire(size);
+            System.arraycopy(mReceiveBuffer, 0, newBuffer, 0, mBufferPos);
+            if (mReceiveBuffer.length > INITIAL_BUFFER_SIZE) {
+                BufferPool.release(mReceiveBuffer);
+            }
+            mReceiveBuffer = newBuffer;
+        }
     }
 
     private boolean hasSync(byte[] buf, int pos) {
@@ -169,7 +237,7 @@ public class ProtobufCodec extends Codec {
         return bundleBuilder;
     }
 
-    private Bundle deserilaize(BundleOuterClass.BundleMessage.BundleOrBuilder bundle) {
+    private static Bundle deserilaize(BundleOuterClass.BundleMessage.BundleOrBuilder bundle) {
         Bundle data = new Bundle();
         for (int i = 0; i < bundle.getDataCount(); i++) {
             BundleOuterClass.BundleMessage.Item it = bundle.getData(i);
@@ -195,49 +263,114 @@ public class ProtobufCodec extends Codec {
         return data;
     }
 
-    private Message decode(ByteString buf) {
+    /**
+     * Decodes a single message from the given payload (without frame header).
+     */
+    protected Message decode(byte[] buf, int off, int len) {
         try {
-            BundleOuterClass.BundleMessage msg = BundleOuterClass.BundleMessage.parseFrom(buf);
+            // parse directly from the given buffer, CodedInputStream copies strings and byte arrays it returns
+            CodedInputStream in = CodedInputStream.newInstance(buf, off, len);
+            BundleOuterClass.BundleMessage msg = BundleOuterClass.BundleMessage.parseFrom(in);
 
             Message dec = new Message();
             dec.setChannelId(msg.getChannel());
             dec.setTopic(msg.getTopic());
-
             if (msg.hasData()) {
-                Bundle data = new Bundle();
-                dec.setData(data);
-
-                BundleOuterClass.BundleMessage.Bundle bundle = msg.getData();
-                for (int i = 0; i < bundle.getDataCount(); i++) {
-                    BundleOuterClass.BundleMessage.Item it = bundle.getData(i);
-                    String key = it.getKey();
-                    switch (it.getValueCase()) {
-                        case BOOLVAL:     data.putBoolean(key, it.getBoolVal()); break;
-                        case BOOLARRAY:   data.putBooleanArray(key, getBoolArray(it.getBoolArray())); break;
-                        case BUNDLEVAL:   data.putBundle(key, deserilaize(it.getBundleVal())); break;
-                        case BUNDLEARRAY: data.putBundleArray(key, getBundleArray(it.getBundleArray())); break;
-                        case BYTEARRAY:   data.putByteArray(key, it.getByteArray().toByteArray()); break;
-                        case DOUBLEVAL:   data.putDouble(key, it.getDoubleVal()); break;
-                        case DOUBLEARRAY: data.putDoubleArray(key, getDoubleArray(it.getDoubleArray())); break;
-                        case FLOATVAL:    data.putFloat(key, it.getFloatVal()); break;
-                        case FLOATARRAY:  data.putFloatArray(key, getFloatArray(it.getFloatArray())); break;
-                        case INTVAL:      data.putInt(key, it.getIntVal()); break;
-                        case INTARRAY:    data.putIntArray(key, getIntArray(it.getIntArray())); break;
-                        case LONGVAL:     data.putLong(key, it.getLongVal()); break;
-                        case LONGARRAY:   data.putLongArray(key, getLongArray(it.getLongArray())); break;
-                        case STRINGVAL:   data.putString(key, it.getStringVal()); break;
-                        case STRINGARRAY: data.putStringArray(key, getStringArray(it.getStringArray())); break;
-                    }
-                }
+                dec.setData(deserilaize(msg.getData()));
             }
             return dec;
 
-        } catch (InvalidProtocolBufferException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Decodes only the fields of the given frame, which are needed for routing the message and returns a
+     * {@link ProtobufRelayMessage}, which decodes the remaining data on demand.
+     */
+    private Message decodeHeader(byte[] frame) {
+        try {
+            CodedInputStream in = CodedInputStream.newInstance(frame, 8, frame.length - 8);
+            String channel = "";
+            String topic = "";
+            long[] ptpIds = null;
+
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case BundleOuterClass.BundleMessage.CHANNEL_FIELD_NUMBER:
+                        channel = in.readStringRequireUtf8();
+                        break;
+                    case BundleOuterClass.BundleMessage.TOPIC_FIELD_NUMBER:
+                        topic = in.readStringRequireUtf8();
+                        break;
+                    case BundleOuterClass.BundleMessage.DATA_FIELD_NUMBER:
+                        int limit = in.pushLimit(in.readRawVarint32());
+                        ptpIds = scanPtpIds(in);
+                        in.popLimit(limit);
+                        break;
+                    default:
+                        in.skipField(tag);
+                }
+            }
+
+            if (ptpIds != null) {
+                return new ProtobufRelayMessage(frame, channel, topic, true, ptpIds[0], ptpIds[1]);
+            } else {
+                return new ProtobufRelayMessage(frame, channel, topic, false, 0, 0);
+            }
+
+        } catch (IOException e) {
+            Logger.error("Dropping message with corrupt header", e);
+        }
+        return null;
+    }
+
+    /**
+     * Scans the top-level items of an encoded bundle for point-to-point node IDs. Returns an array containing the
+     * from and to node IDs or null if the bundle does not contain both.
+     */
+    private static long[] scanPtpIds(CodedInputStream in) throws IOException {
+        boolean hasFrom = false;
+        boolean hasTo = false;
+        long[] ptpIds = new long[2];
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != BundleOuterClass.BundleMessage.Bundle.DATA_FIELD_NUMBER) {
+                in.skipField(tag);
+                continue;
+            }
+
+            int limit = in.pushLimit(in.readRawVarint32());
+            String key = null;
+            Long longVal = null;
+            int itemTag;
+            while ((itemTag = in.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(itemTag);
+                if (field == BundleOuterClass.BundleMessage.Item.KEY_FIELD_NUMBER) {
+                    key = in.readStringRequireUtf8();
+                } else if (field == BundleOuterClass.BundleMessage.Item.LONGVAL_FIELD_NUMBER) {
+                    longVal = in.readSInt64();
+                } else {
+                    in.skipField(itemTag);
+                }
+            }
+            in.popLimit(limit);
+
+            if (longVal != null && PtpMessage.KEY_FROM_NODE.equals(key)) {
+                ptpIds[0] = longVal;
+                hasFrom = true;
+            } else if (longVal != null && PtpMessage.KEY_TO_NODE.equals(key)) {
+                ptpIds[1] = longVal;
+                hasTo = true;
+            }
+        }
+        return hasFrom && hasTo ? ptpIds : null;
+    }
+
     private BundleOuterClass.BundleMessage.BoolArray.Builder createBoolArray(boolean[] array) {
         BundleOuterClass.BundleMessage.BoolArray.Builder builder = BundleOuterClass.BundleMessage.BoolArray.newBuilder();
         for (boolean b : array) {
@@ -246,7 +379,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private boolean[] getBoolArray(BundleOuterClass.BundleMessage.BoolArray array) {
+    private static boolean[] getBoolArray(BundleOuterClass.BundleMessage.BoolArray array) {
         boolean[] a = new boolean[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
@@ -262,7 +395,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private Bundle[] getBundleArray(BundleOuterClass.BundleMessage.BundleArray array) {
+    private static Bundle[] getBundleArray(BundleOuterClass.BundleMessage.BundleArray array) {
         Bundle[] a = new Bundle[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = deserilaize(array.getArray(i));
@@ -278,7 +411,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private double[] getDoubleArray(BundleOuterClass.BundleMessage.DoubleArray array) {
+    private static double[] getDoubleArray(BundleOuterClass.BundleMessage.DoubleArray array) {
         double[] a = new double[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
@@ -294,7 +427,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private float[] getFloatArray(BundleOuterClass.BundleMessage.FloatArray array) {
+    private static float[] getFloatArray(BundleOuterClass.BundleMessage.FloatArray array) {
         float[] a = new float[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
@@ -310,7 +443,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private int[] getIntArray(BundleOuterClass.BundleMessage.Sint32Array array) {
+    private static int[] getIntArray(BundleOuterClass.BundleMessage.Sint32Array array) {
         int[] a = new int[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
@@ -334,7 +467,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private short[] getShortArray(BundleOuterClass.BundleMessage.Sint32Array array) {
+    private static short[] getShortArray(BundleOuterClass.BundleMessage.Sint32Array array) {
         short[] a = new short[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = (short) array.getArray(i);
@@ -350,7 +483,7 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private long[] getLongArray(BundleOuterClass.BundleMessage.Sint64Array array) {
+    private static long[] getLongArray(BundleOuterClass.BundleMessage.Sint64Array array) {
         long[] a = new long[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
@@ -366,11 +499,24 @@ public class ProtobufCodec extends Codec {
         return builder;
     }
 
-    private String[] getStringArray(BundleOuterClass.BundleMessage.StringArray array) {
+    private static String[] getStringArray(BundleOuterClass.BundleMessage.StringArray array) {
         String[] a = new String[array.getArrayCount()];
         for (int i = 0; i < a.length; i++) {
             a[i] = array.getArray(i);
         }
         return a;
     }
+
+    private static class ProtobufRelayMessage extends RelayMessage {
+        ProtobufRelayMessage(byte[] rawFrame, String channelId, String topic, boolean isPtp, long from, long to) {
+            super(ProtobufCodec.class, rawFrame, channelId, topic, isPtp, from, to);
+        }
+
+        @Override
+        protected Bundle decodeData(byte[] rawFrame) throws IOException {
+            CodedInputStream in = CodedInputStream.newInstance(rawFrame, 8, rawFrame.length - 8);
+            BundleOuterClass.BundleMessage msg = BundleOuterClass.BundleMessage.parseFrom(in);
+            return msg.hasData() ? deserilaize(msg.getData()) : null;
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package de.fabmax.pubsub.codec;
+
+import de.fabmax.pubsub.Bundle;
+import de.fabmax.pubsub.Message;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+
+/**
+ * A message decoded by a {@link de.fabmax.pubsub.codec.Codec} in relay mode. Only the header fields needed for routing
+ * (channel ID, topic and point-to-point addresses) are decoded, the message data is decoded on first access. As long
+ * as the message is not modified, it keeps its original encoded frame, which is sent as is when the message is
+ * encoded again by a codec of the same type.
+ *
+ * Since the data is not decoded before the message is relayed, corrupt data is only detected on first access. Such
+ * messages are not delivered locally, see {@link #isCorrupt(Message)}, receivers decoding the relayed frame drop them
+ * as well.
+ */
+public abstract class RelayMessage extends Message {
+
+    private final Class<? extends Codec> mCodecType;
+    private byte[] mRawFrame;
+    private boolean mDataDecoded = false;
+    private boolean mCorrupt = false;
+
+    private final boolean mIsPtp;
+    private final long mFromNodeId;
+    private final long mToNodeId;
+
+    protected RelayMessage(Class<? extends Codec> codecType, byte[] rawFrame, String channelId, String topic,
+                           boolean isPtp, long fromNodeId, long toNodeId) {
+        super(topic);
+        mCodecType = codecType;
+        mRawFrame = rawFrame;
+        mChannelId = channelId;
+        mIsPtp = isPtp;
+        mFromNodeId = fromNodeId;
+        mToNodeId = toNodeId;
+    }
+
+    /**
+     * Decodes the message data from the raw frame.
+     *
+     * @throws IOException if the data is corrupt
+     */
+    protected abstract Bundle decodeData(byte[] rawFrame) throws IOException;
+
+    /**
+     * Returns true if the given message is a relay message, whose data can't be decoded. Decodes the data if this
+     * wasn't done yet. Corrupt messages must be dropped instead of being delivered.
+     */
+    public static boolean isCorrupt(Message message) {
+        if (message instanceof RelayMessage) {
+            RelayMessage relayMessage = (RelayMessage) message;
+            synchronized (relayMessage) {
+                relayMessage.getData();
+                return relayMessage.mCorrupt;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the original encoded frame if it is still valid and was encoded by the given codec type, otherwise null.
+     */
+    public synchronized byte[] getRawFrame(Class<? extends Codec> codecType) {
+        return codecType == mCodecType ? mRawFrame : null;
+    }
+
+    public boolean isPtpMessage() {
+        return mIsPtp;
+    }
+
+    public long getFromNodeId() {
+        return mFromNodeId;
+    }
+
+    public long getToNodeId() {
+        return mToNodeId;
+    }
+
+    @Override
+    public synchronized Bundle getData() {
+        if (!mDataDecoded) {
+            try {
+                mData = decodeData(mRawFrame);
+            } catch (IOException e) {
+                Logger.error("Dropping message with corrupt data, channel: " + mChannelId + ", topic: " + mTopic, e);
+                mCorrupt = true;
+            }
+            mDataDecoded = true;
+        }
+        return mData;
+    }
+
+    @Override
+    public synchronized void setData(Bundle data) {
+        mData = data;
+        mDataDecoded = true;
+        mRawFrame = null;
+    }
+
+    @Override
+    public synchronized void setChannelId(String channelId) {
+        if (channelId == null ? mChannelId != null : !channelId.equals(mChannelId)) {
+            mRawFrame = null;
+        }
+        super.setChannelId(channelId);
+    }
+
+    @Override
+    public synchronized void setTopic(String topic) {
+        if (topic == null ? mTopic != null : !topic.equals(mTopic)) {
+            mRawFrame = null;
+        }
+        super.setTopic(topic);
+    }
+}
@@ -0,0 +1,955 @@
+package de.fabmax.pubsub.codec;
+
+import de.fabmax.pubsub.Bundle;
+import de.fabmax.pubsub.Message;
+import org.pmw.tinylog.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A codec producing exactly the same wire format as {@link de.fabmax.pubsub.codec.ProtobufCodec}, hence both codecs
+ * can be mixed freely. Instead of building generated protobuf message objects, this codec computes the encoded size
+ * in a first pass and then writes the message directly into the target buffer. Decoding reads directly into a
+ * {@link de.fabmax.pubsub.Bundle} without any intermediate objects.
+ *
+ * Null values in bundles can not be represented in the protobuf wire format, items with null values are encoded
+ * without value and are dropped by the decoder.
+ */
+public class StreamingProtobufCodec extends ProtobufCodec {
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LEN = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    // field numbers, see bundle.proto
+    private static final int MSG_CHANNEL = 1;
+    private static final int MSG_TOPIC = 2;
+    private static final int MSG_DATA = 3;
+    private static final int BUNDLE_DATA = 1;
+    private static final int ARRAY_ELEMS = 1;
+    private static final int ITEM_KEY = 1;
+    private static final int ITEM_BOOL = 3;
+    private static final int ITEM_BOOL_ARRAY = 4;
+    private static final int ITEM_BUNDLE = 5;
+    private static final int ITEM_BUNDLE_ARRAY = 6;
+    private static final int ITEM_BYTE_ARRAY = 7;
+    private static final int ITEM_DOUBLE = 8;
+    private static final int ITEM_DOUBLE_ARRAY = 9;
+    private static final int ITEM_FLOAT = 10;
+    private static final int ITEM_FLOAT_ARRAY = 11;
+    private static final int ITEM_INT = 12;
+    private static final int ITEM_INT_ARRAY = 13;
+    private static final int ITEM_LONG = 14;
+    private static final int ITEM_LONG_ARRAY = 15;
+    private static final int ITEM_STRING = 16;
+    private static final int ITEM_STRING_ARRAY = 17;
+
+    public StreamingProtobufCodec() {
+        super();
+    }
+
+    public StreamingProtobufCodec(int maxMsgSize) {
+        super(maxMsgSize);
+    }
+
+    @Override
+    public byte[] encodeMessage(Message message) {
+        byte[] raw = getRawFrame(message);
+        if (raw != null) {
+            // forward the original frame
+            return raw;
+        }
+
+        SizeCache sizes = new SizeCache();
+        int payloadSize = messageSize(message, sizes);
+        byte[] data = new byte[payloadSize + 8];
+        writeMessage(message, payloadSize, sizes, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getEncodedSize(Message message) {
+        byte[] raw = getRawFrame(message);
+        if (raw != null) {
+            return raw.length;
+        }
+        return messageSize(message, new SizeCache()) + 8;
+    }
+
+    @Override
+    public void encodeMessage(Message message, ByteBuffer dst) {
+        byte[] raw = getRawFrame(message);
+        if (raw != null) {
+            dst.put(raw);
+        } else {
+            SizeCache sizes = new SizeCache();
+            int payloadSize = messageSize(message, sizes);
+            writeMessage(message, payloadSize, sizes, dst);
+        }
+    }
+
+    @Override
+    protected Message decode(byte[] buf, int off, int len) {
+        try {
+            Reader in = new Reader(buf, off, off + len);
+            Message msg = new Message();
+            msg.setChannelId("");
+            msg.setTopic("");
+
+            while (in.hasMore()) {
+                int tag = in.readVarint32();
+                int field = tag >>> 3;
+                if (field == MSG_CHANNEL && (tag & 7) == WIRE_LEN) {
+                    msg.setChannelId(in.readString());
+                } else if (field == MSG_TOPIC && (tag & 7) == WIRE_LEN) {
+                    msg.setTopic(in.readString());
+                } else if (field == MSG_DATA && (tag & 7) == WIRE_LEN) {
+                    int end = in.readLimit();
+                    msg.setData(readBundle(in, end));
+                } else {
+                    in.skip(tag);
+                }
+            }
+            return msg;
+
+        } catch (RuntimeException e) {
+            Logger.error("Failed decoding message", e);
+        }
+        return null;
+    }
+
+    /*
+     * Size computation. The sizes of all nested length-delimited structures are stored in a SizeCache in the order
+     * they are needed when the message is written, so that nothing has to be computed twice.
+     */
+
+    private static int messageSize(Message message, SizeCache sizes) {
+        int size = stringFieldSize(MSG_CHANNEL, message.getChannelId()) + stringFieldSize(MSG_TOPIC, message.getTopic());
+        Bundle data = message.getData();
+        if (data != null && !data.isEmpty()) {
+            size += lenFieldSize(MSG_DATA, bundleSize(data, sizes));
+        }
+        return size;
+    }
+
+    private static int bundleSize(Bundle bundle, SizeCache sizes) {
+        int idx = sizes.reserve();
+        int size = 0;
+        for (String key : bundle.keySet()) {
+            size += lenFieldSize(BUNDLE_DATA, itemSize(bundle, key, sizes));
+        }
+        sizes.set(idx, size);
+        return size;
+    }
+
+    private static int itemSize(Bundle bundle, String key, SizeCache sizes) {
+        int idx = sizes.reserve();
+        int size = stringFieldSize(ITEM_KEY, key);
+        Object value = bundle.get(key);
+        if (value != null) {
+            size += valueSize(bundle.getType(key), value, sizes);
+        }
+        sizes.set(idx, size);
+        return size;
+    }
+
+    private static int valueSize(Bundle.ElementType type, Object value, SizeCache sizes) {
+        switch (type) {
+            case BOOLEAN:
+                return tagSize(ITEM_BOOL) + 1;
+            case BOOLEAN_ARRAY:
+                return lenFieldSize(ITEM_BOOL_ARRAY, packedSize(((boolean[]) value).length));
+            case BUNDLE:
+                return lenFieldSize(ITEM_BUNDLE, bundleSize((Bundle) value, sizes));
+            case BUNDLE_ARRAY: {
+                int idx = sizes.reserve();
+                int size = 0;
+                for (Bundle b : (Bundle[]) value) {
+                    size += lenFieldSize(ARRAY_ELEMS, bundleSize(b != null ? b : new Bundle(), sizes));
+                }
+                sizes.set(idx, size);
+                return lenFieldSize(ITEM_BUNDLE_ARRAY, size);
+            }
+            case BYTE_ARRAY:
+                return lenFieldSize(ITEM_BYTE_ARRAY, ((byte[]) value).length);
+            case DOUBLE:
+                return tagSize(ITEM_DOUBLE) + 8;
+            case DOUBLE_ARRAY:
+                return lenFieldSize(ITEM_DOUBLE_ARRAY, packedSize(((double[]) value).length * 8));
+            case FLOAT:
+                return tagSize(ITEM_FLOAT) + 4;
+            case FLOAT_ARRAY:
+                return lenFieldSize(ITEM_FLOAT_ARRAY, packedSize(((float[]) value).length * 4));
+            case INT:
+                return tagSize(ITEM_INT) + varint32Size(zigZag32((Integer) value));
+            case INT_ARRAY: {
+                int size = 0;
+                for (int i : (int[]) value) {
+                    size += varint32Size(zigZag32(i));
+                }
+                sizes.add(size);
+                return lenFieldSize(ITEM_INT_ARRAY, packedSize(size));
+            }
+            case LONG:
+                return tagSize(ITEM_LONG) + varint64Size(zigZag64((Long) value));
+            case LONG_ARRAY: {
+                int size = 0;
+                for (long l : (long[]) value) {
+                    size += varint64Size(zigZag64(l));
+                }
+                sizes.add(size);
+                return lenFieldSize(ITEM_LONG_ARRAY, packedSize(size));
+            }
+            case STRING:
+                // a string value is written even if it is empty, otherwise the item's type would get lost
+                return lenFieldSize(ITEM_STRING, utf8Length((String) value));
+            case STRING_ARRAY: {
+                int size = 0;
+                for (String s : (String[]) value) {
+                    size += lenFieldSize(ARRAY_ELEMS, utf8Length(s));
+                }
+                return lenFieldSize(ITEM_STRING_ARRAY, size);
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported type: " + type);
+        }
+    }
+
+    /**
+     * Size of an array wrapper message containing a single packed field with the given payload size. Empty packed
+     * fields are omitted.
+     */
+    private static int packedSize(int payloadSize) {
+        return payloadSize > 0 ? lenFieldSize(ARRAY_ELEMS, payloadSize) : 0;
+    }
+
+    private static int stringFieldSize(int field, String s) {
+        int len = utf8Length(s);
+        // proto3 omits empty strings
+        return len > 0 ? lenFieldSize(field, len) : 0;
+    }
+
+    private static int lenFieldSize(int field, int len) {
+        return tagSize(field) + varint32Size(len) + len;
+    }
+
+    private static int tagSize(int field) {
+        return varint32Size(field << 3);
+    }
+
+    private static int varint32Size(int value) {
+        if ((value & (0xffffffff <<  7)) == 0) return 1;
+        if ((value & (0xffffffff << 14)) == 0) return 2;
+        if ((value & (0xffffffff << 21)) == 0) return 3;
+        if ((value & (0xffffffff << 28)) == 0) return 4;
+        return 5;
+    }
+
+    private static int varint64Size(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int len = s.length();
+        int utf8Len = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    utf8Len++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // surrogate pair, 4 bytes for 2 chars
+                    utf8Len += 2;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate, is replaced by '?'
+                } else {
+                    utf8Len += 2;
+                }
+            }
+        }
+        return utf8Len;
+    }
+
+    private static int zigZag32(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigZag64(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /*
+     * Writing
+     */
+
+    private static void writeMessage(Message message, int payloadSize, SizeCache sizes, ByteBuffer dst) {
+        dst.put((byte) (MAGIC >> 24));
+        dst.put((byte) (MAGIC >> 16));
+        dst.put((byte) (MAGIC >> 8));
+        dst.put((byte) MAGIC);
+        dst.put((byte) (payloadSize >> 24));
+        dst.put((byte) (payloadSize >> 16));
+        dst.put((byte) (payloadSize >> 8));
+        dst.put((byte) payloadSize);
+
+        writeStringField(MSG_CHANNEL, message.getChannelId(), dst);
+        writeStringField(MSG_TOPIC, message.getTopic(), dst);
+        Bundle data = message.getData();
+        if (data != null && !data.isEmpty()) {
+            writeBundle(MSG_DATA, data, sizes, dst);
+        }
+    }
+
+    private static void writeBundle(int field, Bundle bundle, SizeCache sizes, ByteBuffer dst) {
+        writeTag(field, WIRE_LEN, dst);
+        writeVarint32(sizes.next(), dst);
+        for (String key : bundle.keySet()) {
+            writeItem(bundle, key, sizes, dst);
+        }
+    }
+
+    private static void writeItem(Bundle bundle, String key, SizeCache sizes, ByteBuffer dst) {
+        writeTag(BUNDLE_DATA, WIRE_LEN, dst);
+        writeVarint32(sizes.next(), dst);
+        writeStringField(ITEM_KEY, key, dst);
+
+        Object value = bundle.get(key);
+        if (value == null) {
+            return;
+        }
+        switch (bundle.getType(key)) {
+            case BOOLEAN:
+                writeTag(ITEM_BOOL, WIRE_VARINT, dst);
+                dst.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case BOOLEAN_ARRAY: {
+                boolean[] array = (boolean[]) value;
+                writeTag(ITEM_BOOL_ARRAY, WIRE_LEN, dst);
+                writeVarint32(packedSize(array.length), dst);
+                if (array.length > 0) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(array.length, dst);
+                    for (boolean b : array) {
+                        dst.put((byte) (b ? 1 : 0));
+                    }
+                }
+                break;
+            }
+            case BUNDLE:
+                writeBundle(ITEM_BUNDLE, (Bundle) value, sizes, dst);
+                break;
+            case BUNDLE_ARRAY:
+                writeTag(ITEM_BUNDLE_ARRAY, WIRE_LEN, dst);
+                writeVarint32(sizes.next(), dst);
+                for (Bundle b : (Bundle[]) value) {
+                    writeBundle(ARRAY_ELEMS, b != null ? b : new Bundle(), sizes, dst);
+                }
+                break;
+            case BYTE_ARRAY: {
+                byte[] array = (byte[]) value;
+                writeTag(ITEM_BYTE_ARRAY, WIRE_LEN, dst);
+                writeVarint32(array.length, dst);
+                dst.put(array);
+                break;
+            }
+            case DOUBLE:
+                writeTag(ITEM_DOUBLE, WIRE_FIXED64, dst);
+                writeFixed64(Double.doubleToRawLongBits((Double) value), dst);
+                break;
+            case DOUBLE_ARRAY: {
+                double[] array = (double[]) value;
+                writeTag(ITEM_DOUBLE_ARRAY, WIRE_LEN, dst);
+                writeVarint32(packedSize(array.length * 8), dst);
+                if (array.length > 0) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(array.length * 8, dst);
+                    for (double d : array) {
+                        writeFixed64(Double.doubleToRawLongBits(d), dst);
+                    }
+                }
+                break;
+            }
+            case FLOAT:
+                writeTag(ITEM_FLOAT, WIRE_FIXED32, dst);
+                writeFixed32(Float.floatToRawIntBits((Float) value), dst);
+                break;
+            case FLOAT_ARRAY: {
+                float[] array = (float[]) value;
+                writeTag(ITEM_FLOAT_ARRAY, WIRE_LEN, dst);
+                writeVarint32(packedSize(array.length * 4), dst);
+                if (array.length > 0) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(array.length * 4, dst);
+                    for (float f : array) {
+                        writeFixed32(Float.floatToRawIntBits(f), dst);
+                    }
+                }
+                break;
+            }
+            case INT:
+                writeTag(ITEM_INT, WIRE_VARINT, dst);
+                writeVarint32(zigZag32((Integer) value), dst);
+                break;
+            case INT_ARRAY: {
+                int[] array = (int[]) value;
+                int payloadSize = sizes.next();
+                writeTag(ITEM_INT_ARRAY, WIRE_LEN, dst);
+                writeVarint32(packedSize(payloadSize), dst);
+                if (array.length > 0) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(payloadSize, dst);
+                    for (int i : array) {
+                        writeVarint32(zigZag32(i), dst);
+                    }
+                }
+                break;
+            }
+            case LONG:
+                writeTag(ITEM_LONG, WIRE_VARINT, dst);
+                writeVarint64(zigZag64((Long) value), dst);
+                break;
+            case LONG_ARRAY: {
+                long[] array = (long[]) value;
+                int payloadSize = sizes.next();
+                writeTag(ITEM_LONG_ARRAY, WIRE_LEN, dst);
+                writeVarint32(packedSize(payloadSize), dst);
+                if (array.length > 0) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(payloadSize, dst);
+                    for (long l : array) {
+                        writeVarint64(zigZag64(l), dst);
+                    }
+                }
+                break;
+            }
+            case STRING: {
+                String s = (String) value;
+                writeTag(ITEM_STRING, WIRE_LEN, dst);
+                writeVarint32(utf8Length(s), dst);
+                writeUtf8(s, dst);
+                break;
+            }
+            case STRING_ARRAY: {
+                String[] array = (String[]) value;
+                int size = 0;
+                for (String s : array) {
+                    size += lenFieldSize(ARRAY_ELEMS, utf8Length(s));
+                }
+                writeTag(ITEM_STRING_ARRAY, WIRE_LEN, dst);
+                writeVarint32(size, dst);
+                for (String s : array) {
+                    writeTag(ARRAY_ELEMS, WIRE_LEN, dst);
+                    writeVarint32(utf8Length(s), dst);
+                    writeUtf8(s, dst);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void writeStringField(int field, String s, ByteBuffer dst) {
+        int len = utf8Length(s);
+        if (len > 0) {
+            writeTag(field, WIRE_LEN, dst);
+            writeVarint32(len, dst);
+            writeUtf8(s, dst);
+        }
+    }
+
+    private static void writeTag(int field, int wireType, ByteBuffer dst) {
+        writeVarint32((field << 3) | wireType, dst);
+    }
+
+    private static void writeVarint32(int value, ByteBuffer dst) {
+        while ((value & ~0x7f) != 0) {
+            dst.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static void writeVarint64(long value, ByteBuffer dst) {
+        while ((value & ~0x7fL) != 0) {
+            dst.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static void writeFixed32(int value, ByteBuffer dst) {
+        dst.put((byte) value);
+        dst.put((byte) (value >> 8));
+        dst.put((byte) (value >> 16));
+        dst.put((byte) (value >> 24));
+    }
+
+    private static void writeFixed64(long value, ByteBuffer dst) {
+        writeFixed32((int) value, dst);
+        writeFixed32((int) (value >> 32), dst);
+    }
+
+    private static void writeUtf8(String s, ByteBuffer dst) {
+        if (s == null) {
+            return;
+        }
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xc0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xf0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                dst.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xe0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /*
+     * Reading
+     */
+
+    private static Bundle readBundle(Reader in, int end) {
+        Bundle bundle = new Bundle();
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag >>> 3 == BUNDLE_DATA && (tag & 7) == WIRE_LEN) {
+                int itemEnd = in.readLimit();
+                readItem(in, itemEnd, bundle);
+            } else {
+                in.skip(tag);
+            }
+        }
+        return bundle;
+    }
+
+    private static void readItem(Reader in, int end, Bundle bundle) {
+        String key = "";
+        Bundle.ElementType type = null;
+        Object value = null;
+
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            int field = tag >>> 3;
+            if (field >= ITEM_BOOL && field <= ITEM_STRING_ARRAY) {
+                checkWireType(field, tag & 7);
+            }
+            switch (field) {
+                case ITEM_KEY:
+                    key = in.readString();
+                    break;
+                case ITEM_BOOL:
+                    type = Bundle.ElementType.BOOLEAN;
+                    value = in.readVarint64() != 0;
+                    break;
+                case ITEM_BOOL_ARRAY:
+                    type = Bundle.ElementType.BOOLEAN_ARRAY;
+                    value = readBoolArray(in, in.readLimit());
+                    break;
+                case ITEM_BUNDLE:
+                    type = Bundle.ElementType.BUNDLE;
+                    value = readBundle(in, in.readLimit());
+                    break;
+                case ITEM_BUNDLE_ARRAY:
+                    type = Bundle.ElementType.BUNDLE_ARRAY;
+                    value = readBundleArray(in, in.readLimit());
+                    break;
+                case ITEM_BYTE_ARRAY:
+                    type = Bundle.ElementType.BYTE_ARRAY;
+                    value = in.readBytes();
+                    break;
+                case ITEM_DOUBLE:
+                    type = Bundle.ElementType.DOUBLE;
+                    value = Double.longBitsToDouble(in.readFixed64());
+                    break;
+                case ITEM_DOUBLE_ARRAY:
+                    type = Bundle.ElementType.DOUBLE_ARRAY;
+                    value = readDoubleArray(in, in.readLimit());
+                    break;
+                case ITEM_FLOAT:
+                    type = Bundle.ElementType.FLOAT;
+                    value = Float.intBitsToFloat(in.readFixed32());
+                    break;
+                case ITEM_FLOAT_ARRAY:
+                    type = Bundle.ElementType.FLOAT_ARRAY;
+                    value = readFloatArray(in, in.readLimit());
+                    break;
+                case ITEM_INT:
+                    type = Bundle.ElementType.INT;
+                    value = unZigZag32(in.readVarint32());
+                    break;
+                case ITEM_INT_ARRAY:
+                    type = Bundle.ElementType.INT_ARRAY;
+                    value = readIntArray(in, in.readLimit());
+                    break;
+                case ITEM_LONG:
+                    type = Bundle.ElementType.LONG;
+                    value = unZigZag64(in.readVarint64());
+                    break;
+                case ITEM_LONG_ARRAY:
+                    type = Bundle.ElementType.LONG_ARRAY;
+                    value = readLongArray(in, in.readLimit());
+                    break;
+                case ITEM_STRING:
+                    type = Bundle.ElementType.STRING;
+                    value = in.readString();
+                    break;
+                case ITEM_STRING_ARRAY:
+                    type = Bundle.ElementType.STRING_ARRAY;
+                    value = readStringArray(in, in.readLimit());
+                    break;
+                default:
+                    in.skip(tag);
+                    break;
+            }
+        }
+
+        if (type != null) {
+            bundle.put(key, type, value);
+        }
+    }
+
+    private static void checkWireType(int field, int wireType) {
+        int expected;
+        switch (field) {
+            case ITEM_BOOL:
+            case ITEM_INT:
+            case ITEM_LONG:
+                expected = WIRE_VARINT;
+                break;
+            case ITEM_DOUBLE:
+                expected = WIRE_FIXED64;
+                break;
+            case ITEM_FLOAT:
+                expected = WIRE_FIXED32;
+                break;
+            default:
+                expected = WIRE_LEN;
+                break;
+        }
+        if (wireType != expected) {
+            throw new IllegalStateException("Invalid wire type " + wireType + " for field " + field);
+        }
+    }
+
+    private static boolean[] readBoolArray(Reader in, int end) {
+        boolean[] array = new boolean[0];
+        int n = 0;
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                // packed elements, a bool is encoded as single byte varint
+                int elemEnd = in.readLimit();
+                array = ensureSize(array, n + elemEnd - in.pos);
+                while (in.pos < elemEnd) {
+                    array[n++] = in.readVarint64() != 0;
+                }
+            } else if (tag == ((ARRAY_ELEMS << 3) | WIRE_VARINT)) {
+                array = ensureSize(array, n + 1);
+                array[n++] = in.readVarint64() != 0;
+            } else {
+                in.skip(tag);
+            }
+        }
+        return n == array.length ? array : Arrays.copyOf(array, n);
+    }
+
+    private static Bundle[] readBundleArray(Reader in, int end) {
+        ArrayList<Bundle> bundles = new ArrayList<>();
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                bundles.add(readBundle(in, in.readLimit()));
+            } else {
+                in.skip(tag);
+            }
+        }
+        return bundles.toArray(new Bundle[bundles.size()]);
+    }
+
+    private static double[] readDoubleArray(Reader in, int end) {
+        double[] array = new double[0];
+        int n = 0;
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                int elemEnd = in.readLimit();
+                array = Arrays.copyOf(array, n + (elemEnd - in.pos) / 8);
+                while (in.pos < elemEnd) {
+                    array[n++] = Double.longBitsToDouble(in.readFixed64());
+                }
+            } else if (tag == ((ARRAY_ELEMS << 3) | WIRE_FIXED64)) {
+                array = Arrays.copyOf(array, n + 1);
+                array[n++] = Double.longBitsToDouble(in.readFixed64());
+            } else {
+                in.skip(tag);
+            }
+        }
+        return array;
+    }
+
+    private static float[] readFloatArray(Reader in, int end) {
+        float[] array = new float[0];
+        int n = 0;
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                int elemEnd = in.readLimit();
+                array = Arrays.copyOf(array, n + (elemEnd - in.pos) / 4);
+                while (in.pos < elemEnd) {
+                    array[n++] = Float.intBitsToFloat(in.readFixed32());
+                }
+            } else if (tag == ((ARRAY_ELEMS << 3) | WIRE_FIXED32)) {
+                array = Arrays.copyOf(array, n + 1);
+                array[n++] = Float.intBitsToFloat(in.readFixed32());
+            } else {
+                in.skip(tag);
+            }
+        }
+        return array;
+    }
+
+    private static int[] readIntArray(Reader in, int end) {
+        int[] array = new int[0];
+        int n = 0;
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                int elemEnd = in.readLimit();
+                array = ensureSize(array, n + in.countVarints(elemEnd));
+                while (in.pos < elemEnd) {
+                    array[n++] = unZigZag32(in.readVarint32());
+                }
+            } else if (tag == ((ARRAY_ELEMS << 3) | WIRE_VARINT)) {
+                array = ensureSize(array, n + 1);
+                array[n++] = unZigZag32(in.readVarint32());
+            } else {
+                in.skip(tag);
+            }
+        }
+        return array;
+    }
+
+    private static long[] readLongArray(Reader in, int end) {
+        long[] array = new long[0];
+        int n = 0;
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                int elemEnd = in.readLimit();
+                array = ensureSize(array, n + in.countVarints(elemEnd));
+                while (in.pos < elemEnd) {
+                    array[n++] = unZigZag64(in.readVarint64());
+                }
+            } else if (tag == ((ARRAY_ELEMS << 3) | WIRE_VARINT)) {
+                array = ensureSize(array, n + 1);
+                array[n++] = unZigZag64(in.readVarint64());
+            } else {
+                in.skip(tag);
+            }
+        }
+        return array;
+    }
+
+    private static String[] readStringArray(Reader in, int end) {
+        ArrayList<String> strings = new ArrayList<>();
+        while (in.pos < end) {
+            int tag = in.readVarint32();
+            if (tag == ((ARRAY_ELEMS << 3) | WIRE_LEN)) {
+                strings.add(in.readString());
+            } else {
+                in.skip(tag);
+            }
+        }
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    private static boolean[] ensureSize(boolean[] array, int size) {
+        return array.length >= size ? array : Arrays.copyOf(array, size);
+    }
+
+    private static int[] ensureSize(int[] array, int size) {
+        return array.length >= size ? array : Arrays.copyOf(array, size);
+    }
+
+    private static long[] ensureSize(long[] array, int size) {
+        return array.length >= size ? array : Arrays.copyOf(array, size);
+    }
+
+    private static int unZigZag32(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unZigZag64(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Stores the sizes of nested length-delimited structures computed during the size pass, which are consumed in
+     * the same order during the write pass.
+     */
+    private static class SizeCache {
+        private int[] mSizes = new int[16];
+        private int mCount = 0;
+        private int mReadPos = 0;
+
+        int reserve() {
+            if (mCount == mSizes.length) {
+                mSizes = Arrays.copyOf(mSizes, mSizes.length * 2);
+            }
+            return mCount++;
+        }
+
+        void set(int idx, int size) {
+            mSizes[idx] = size;
+        }
+
+        void add(int size) {
+            set(reserve(), size);
+        }
+
+        int next() {
+            return mSizes[mReadPos++];
+        }
+    }
+
+    /**
+     * Minimal protobuf wire format reader operating directly on a byte array.
+     */
+    private static class Reader {
+        private final byte[] mBuf;
+        private final int mEnd;
+        int pos;
+
+        Reader(byte[] buf, int off, int end) {
+            mBuf = buf;
+            pos = off;
+            mEnd = end;
+        }
+
+        boolean hasMore() {
+            return pos < mEnd;
+        }
+
+        int readVarint32() {
+            return (int) readVarint64();
+        }
+
+        long readVarint64() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        int readFixed32() {
+            checkAvailable(4);
+            int value = (mBuf[pos] & 0xff) |
+                       ((mBuf[pos + 1] & 0xff) << 8) |
+                       ((mBuf[pos + 2] & 0xff) << 16) |
+                       ((mBuf[pos + 3] & 0xff) << 24);
+            pos += 4;
+            return value;
+        }
+
+        long readFixed64() {
+            long lo = readFixed32() & 0xffffffffL;
+            long hi = readFixed32() & 0xffffffffL;
+            return lo | (hi << 32);
+        }
+
+        /**
+         * Reads the length of a length-delimited field and returns the position at which the field ends.
+         */
+        int readLimit() {
+            int len = readVarint32();
+            checkAvailable(len);
+            return pos + len;
+        }
+
+        String readString() {
+            int end = readLimit();
+            String s = new String(mBuf, pos, end - pos, StandardCharsets.UTF_8);
+            pos = end;
+            return s;
+        }
+
+        byte[] readBytes() {
+            int end = readLimit();
+            byte[] bytes = Arrays.copyOfRange(mBuf, pos, end);
+            pos = end;
+            return bytes;
+        }
+
+        int countVarints(int end) {
+            int n = 0;
+            for (int i = pos; i < end; i++) {
+                if ((mBuf[i] & 0x80) == 0) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        void skip(int tag) {
+            switch (tag & 7) {
+                case WIRE_VARINT:
+                    readVarint64();
+                    break;
+                case WIRE_FIXED64:
+                    checkAvailable(8);
+                    pos += 8;
+                    break;
+                case WIRE_LEN:
+                    pos = readLimit();
+                    break;
+                case WIRE_FIXED32:
+                    checkAvailable(4);
+                    pos += 4;
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported wire type: " + (tag & 7));
+            }
+        }
+
+        private byte readByte() {
+            checkAvailable(1);
+            return mBuf[pos++];
+        }
+
+        private void checkAvailable(int n) {
+            if (n < 0 || pos + n > mEnd) {
+                throw new IllegalStateException("Truncated message");
+            }
+        }
+    }
+}
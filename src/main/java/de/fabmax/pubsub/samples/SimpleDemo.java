@@ -4,10 +4,16 @@ import de.fabmax.pubsub.*;
 import de.fabmax.pubsub.codec.Codec;
 import de.fabmax.pubsub.codec.JsonCodec;
 import de.fabmax.pubsub.codec.ProtobufCodec;
+import de.fabmax.pubsub.codec.StreamingProtobufCodec;
 import de.fabmax.pubsub.util.LogConfigurator;
 import org.pmw.tinylog.Logger;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Max on 24.02.2015.
@@ -21,6 +27,7 @@ public class SimpleDemo {
         //messageTest();
         //codecBenchmark();
         //codecBenchmark();
+        //latencyBenchmark();
     }
 
     public static void clientServerTest() throws Exception {
@@ -110,20 +117,32 @@ public class SimpleDemo {
 
         JsonCodec jsonCodec = new JsonCodec();
         ProtobufCodec protoCodec = new ProtobufCodec();
+        StreamingProtobufCodec streamCodec = new StreamingProtobufCodec();
 
         byte[] jsonEnc = jsonCodec.encodeMessage(test);
         byte[] protoEnc = protoCodec.encodeMessage(test);
+        byte[] streamEnc = streamCodec.encodeMessage(test);
+        ByteBuffer streamBuf = ByteBuffer.allocate(65536);
 
-        System.out.println("Json size: " + jsonEnc.length + ", proto size: " + protoEnc.length);
+        System.out.println("Json size: " + jsonEnc.length + ", proto size: " + protoEnc.length +
+                ", streaming proto size: " + streamEnc.length);
 
+        // decoded messages are fetched right away, so that they don't pile up in the codecs' receive queues
         int n = 10000;
         System.out.println("Warming up...");
         for (int i = 0; i < n; i++) {
             test.getData().putInt("int", i);
             byte[] data = jsonCodec.encodeMessage(test);
             jsonCodec.decodeData(data, 0, data.length);
+            jsonCodec.getNextMessage();
             data = protoCodec.encodeMessage(test);
             protoCodec.decodeData(data, 0, data.length);
+            protoCodec.getNextMessage();
+            data = streamCodec.encodeMessage(test);
+            streamCodec.decodeData(data, 0, data.length);
+            streamCodec.getNextMessage();
+            streamBuf.clear();
+            streamCodec.encodeMessage(test, streamBuf);
         }
 
         System.out.println("Benchmarking JSON codec...");
@@ -136,6 +155,7 @@ public class SimpleDemo {
         long tJsonDec = System.nanoTime();
         for (int i = 0; i < n; i++) {
             jsonCodec.decodeData(jsonEnc, 0, jsonEnc.length);
+            jsonCodec.getNextMessage();
         }
         tJsonDec = System.nanoTime() - tJsonDec;
 
@@ -149,15 +169,109 @@ public class SimpleDemo {
         long tProtoDec = System.nanoTime();
         for (int i = 0; i < n; i++) {
             protoCodec.decodeData(protoEnc, 0, protoEnc.length);
+            protoCodec.getNextMessage();
         }
         tProtoDec = System.nanoTime() - tProtoDec;
 
+        System.out.println("Benchmarking streaming Protobuf codec...");
+        long tStreamEnc = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            test.getData().putInt("int", i);
+            streamCodec.encodeMessage(test);
+        }
+        tStreamEnc = System.nanoTime() - tStreamEnc;
+        long tStreamBufEnc = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            test.getData().putInt("int", i);
+            streamBuf.clear();
+            streamCodec.encodeMessage(test, streamBuf);
+        }
+        tStreamBufEnc = System.nanoTime() - tStreamBufEnc;
+        long tStreamDec = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            streamCodec.decodeData(streamEnc, 0, streamEnc.length);
+            streamCodec.getNextMessage();
+        }
+        tStreamDec = System.nanoTime() - tStreamDec;
+
         System.out.println("Encoding:");
         System.out.printf("  JSON:     %8.3f ms (%6.3f us / message)\n", tJsonEnc / 1e6, tJsonEnc / 1e3 / n);
         System.out.printf("  Protobuf: %8.3f ms (%6.3f us / message)\n", tProtoEnc / 1e6, tProtoEnc / 1e3 / n);
+        System.out.printf("  Stream:   %8.3f ms (%6.3f us / message)\n", tStreamEnc / 1e6, tStreamEnc / 1e3 / n);
+        System.out.printf("  Stream*:  %8.3f ms (%6.3f us / message, into reused ByteBuffer)\n",
+                tStreamBufEnc / 1e6, tStreamBufEnc / 1e3 / n);
         System.out.println("Decoding:");
         System.out.printf("  JSON:     %8.3f ms (%6.3f us / message)\n", tJsonDec / 1e6, tJsonDec / 1e3 / n);
         System.out.printf("  Protobuf: %8.3f ms (%6.3f us / message)\n", tProtoDec / 1e6, tProtoDec / 1e3 / n);
+        System.out.printf("  Stream:   %8.3f ms (%6.3f us / message)\n", tStreamDec / 1e6, tStreamDec / 1e3 / n);
+    }
+
+    /**
+     * Measures the round trip latency of small messages sent from a client to a server, which echoes them back, over
+     * TCP loopback and over shared memory.
+     */
+    public static void latencyBenchmark() throws Exception {
+        String shmDir = new File(System.getProperty("java.io.tmpdir"), "pubsub-shm").getPath();
+        System.out.println("Round trip latency, TCP loopback:");
+        latencyBenchmark("localhost", shmDir);
+        System.out.println("Round trip latency, shared memory:");
+        latencyBenchmark("shm:" + shmDir, shmDir);
+    }
+
+    private static void latencyBenchmark(String serverAddr, String shmDir) throws Exception {
+        ServerNode server = new ServerNode();
+        server.enableSharedMemoryTransport(shmDir);
+        ClientNode client = new ClientNode(serverAddr);
+        // both transports are served by blocking connections, spinning avoids the wake-up latency of parked threads
+        for (Node node : new Node[] { server, client }) {
+            node.getConnectionConfig().setTransportMode(TransportMode.BLOCKING);
+            node.getConnectionConfig().setParkingStrategy(ParkingStrategy.SPIN_YIELD_PARK);
+            node.getConnectionConfig().setLingerTime(0, TimeUnit.NANOSECONDS);
+        }
+        server.open();
+        client.open();
+
+        final Channel serverChannel = server.openChannel("echo");
+        serverChannel.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                serverChannel.publish(message);
+            }
+        });
+        final BlockingQueue<Message> replies = new ArrayBlockingQueue<>(1);
+        Channel clientChannel = client.openChannel("echo");
+        clientChannel.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                replies.add(message);
+            }
+        });
+
+        // wait a little while connection is negotiated
+        Thread.sleep(500);
+
+        int warmup = 10000;
+        int n = 50000;
+        long[] rtt = new long[n];
+        Bundle data = new Bundle();
+        data.putString("string", "ping");
+        for (int i = -warmup; i < n; i++) {
+            long t = System.nanoTime();
+            clientChannel.publish(new Message("ping", data));
+            if (replies.poll(1, TimeUnit.SECONDS) == null) {
+                System.out.println("  Timeout, message was lost");
+                break;
+            }
+            if (i >= 0) {
+                rtt[i] = System.nanoTime() - t;
+            }
+        }
+        Arrays.sort(rtt);
+        System.out.printf("  median: %8.3f us, 99%%: %8.3f us, 99.9%%: %8.3f us, max: %8.3f us\n",
+                rtt[n / 2] / 1e3, rtt[n * 99 / 100] / 1e3, rtt[n * 999 / 1000] / 1e3, rtt[n - 1] / 1e3);
+
+        client.close();
+        server.close();
     }
 
     private static Message testMessage() {
@@ -5,6 +5,7 @@ import org.pmw.tinylog.Logger;
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
 import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by Max on 07.03.2015.
@@ -19,10 +20,20 @@ public class DnsServiceAdvertiser implements Runnable {
     private final Object mLock = new Object();
 
     public DnsServiceAdvertiser(String serviceName, String serviceType, int advertisePort) {
+        this(serviceName, serviceType, advertisePort, null);
+    }
+
+    /**
+     * Creates and starts a new service advertiser, which runs on a thread created by the given thread factory. If
+     * threadFactory is null, a platform thread is used.
+     */
+    public DnsServiceAdvertiser(String serviceName, String serviceType, int advertisePort,
+                                ThreadFactory threadFactory) {
         mServiceName = serviceName;
         mServiceType = serviceType;
         mAdvertisePort = advertisePort;
-        Thread thread = new Thread(this);
+        Thread thread = ThreadFactories.newThread(threadFactory, this, "DnsServiceAdvertiser",
+                Thread.currentThread().isDaemon());
         thread.start();
     }
 
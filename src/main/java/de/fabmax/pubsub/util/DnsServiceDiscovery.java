@@ -13,13 +13,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by Max on 07.03.2015.
  */
 public class DnsServiceDiscovery implements Closeable, Runnable, ServiceListener {
 
-    private final Thread mThread;
     private boolean mDiscoveryEnabled = true;
     private boolean mEnumerate = false;
     private final String mServiceType;
@@ -31,7 +31,6 @@ public class DnsServiceDiscovery implements Closeable, Runnable, ServiceListener
 
     public DnsServiceDiscovery(String serviceType) {
         mServiceType = serviceType;
-        mThread = new Thread(this);
     }
 
     public void addDiscoveryListener(DiscoveryListener listener) {
@@ -49,7 +48,17 @@ public class DnsServiceDiscovery implements Closeable, Runnable, ServiceListener
     }
 
     public void start() {
-        mThread.start();
+        start(null);
+    }
+
+    /**
+     * Starts the discovery on a thread created by the given thread factory. If threadFactory is null, a platform
+     * thread is used.
+     */
+    public void start(ThreadFactory threadFactory) {
+        Thread thread = ThreadFactories.newThread(threadFactory, this, "DnsServiceDiscovery",
+                Thread.currentThread().isDaemon());
+        thread.start();
     }
 
     @Override
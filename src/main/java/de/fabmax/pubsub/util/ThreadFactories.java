@@ -0,0 +1,69 @@
+package de.fabmax.pubsub.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories, which can be used for the threads of a node, see
+ * {@link de.fabmax.pubsub.ConnectionConfig#setThreadFactory(ThreadFactory)}.
+ *
+ * Virtual threads are available on Java 21 and newer. They are looked up via reflection, so that the library itself
+ * still runs on older JVMs.
+ */
+public class ThreadFactories {
+
+    private static final String VIRTUAL_THREAD_PREFIX = "pubsub-virtual-";
+
+    private ThreadFactories() {
+        // static utility class
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            virtualThreads();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a factory creating virtual threads. Virtual threads are cheap to create and block, which makes the
+     * blocking transport scale to a large number of connections. Virtual threads are always daemon threads.
+     *
+     * @throws UnsupportedOperationException if the running JVM doesn't support virtual threads
+     */
+    public static ThreadFactory virtualThreads() {
+        try {
+            // Thread.ofVirtual().name(VIRTUAL_THREAD_PREFIX, 0).factory()
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, VIRTUAL_THREAD_PREFIX, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // on Java 19 and 20 virtual threads are a preview feature, which might not be enabled
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
+    /**
+     * Creates a new, not yet started thread. If factory is null, a platform thread with the given name and daemon
+     * flag is created, otherwise name and daemon flag are determined by the factory.
+     */
+    public static Thread newThread(ThreadFactory factory, Runnable runnable, String name, boolean isDaemon) {
+        if (factory != null) {
+            return factory.newThread(runnable);
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(isDaemon);
+        return thread;
+    }
+}